@@ -24,6 +24,7 @@
 package org.lamke.fileorganizer;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
@@ -34,10 +35,18 @@ import org.apache.logging.log4j.LogManager;
 public class AppMain {
 
     private Logger logger = LogManager.getLogger(AppMain.class.getName());
+    private Config config;
     private TaskQueue tasks;
     private FileSystemWatcher fileWatcher;
+    private FileNotificationPump notificationPump;
+    private FileNotificationCoalescer coalescer;
+    private FileNotificationJournal journal;
+    private DelayedTaskScheduler delayedTasks;
+    // Journal offset of the notification being processed, or -1.
+    private long processingOffset = -1;
     FileRecordCollection files;
     FileSystemUtilities fileUtilities;
+    DirectoryRescanner rescanner;
 
     /**
      * Constructor for main class
@@ -63,14 +72,59 @@ public class AppMain {
         String settingsFilePath = defaultSettingsPath
                 + "file-organizer-settings.txt";
         logger.debug("Creating Config");
-        Config config = Config.getInstance();
+        config = Config.getInstance();
         config.setConfigPath(settingsFilePath);
         config.loadConfig();
 
+        FileAttributeCache.getInstance().setTimeToLive(config.getIntSetting(
+                "ATTRIBUTE_CACHE_MS",
+                (int) FileAttributeCache.DEFAULT_TIME_TO_LIVE_MILLIS));
+        FileTypeDecider.getInstance().setCacheSize(config.getIntSetting(
+                "TYPE_CACHE_SIZE", FileTypeDecider.DEFAULT_CACHE_SIZE));
         fileUtilities = FileSystemUtilities.getInstance();
-        tasks = new TaskQueue();
+        int workerCount = config.getIntSetting("TASK_WORKERS",
+                TaskQueue.DEFAULT_WORKER_COUNT);
+        fileUtilities.setCopyEngine(new FileCopyEngine(
+                config.getIntSetting("COPY_CHUNK_KB",
+                        FileCopyEngine.DEFAULT_CHUNK_SIZE / 1024) * 1024,
+                config.getIntSetting("COPY_BUFFER_KB",
+                        FileCopyEngine.DEFAULT_BUFFER_SIZE / 1024) * 1024,
+                workerCount));
+        fileUtilities.setRateLimiter(config.getRateLimits());
+        fileUtilities.setDeduplicator(new ContentDeduplicator(
+                getDedupMode(config)));
+        FileStoreLanes lanes = new FileStoreLanes(workerCount);
+        config.getStoreLimits().forEach(lanes::setStoreLimit);
+        tasks = new TaskQueue(lanes,
+                new RetryEngine(new RetryPolicy(
+                        config.getIntSetting("RETRY_MAX_RETRIES",
+                                RetryEngine.DEFAULT_MAX_RETRIES),
+                        config.getIntSetting("RETRY_BASE_DELAY_MS", (int)
+                                RetryEngine.DEFAULT_BASE_DELAY_MILLIS),
+                        config.getIntSetting("RETRY_MAX_DELAY_MS", (int)
+                                RetryEngine.DEFAULT_MAX_DELAY_MILLIS))));
         fileWatcher = FileSystemWatcher.getInstance();
         files = FileRecordCollection.getInstance();
+        rescanner = new DirectoryRescanner(files, fileWatcher);
+        notificationPump = new FileNotificationPump(
+                createNotificationRing(config),
+                fileWatcher, PollingFileSystemWatcher.getInstance());
+        coalescer = new FileNotificationCoalescer(
+                config.getIntSetting("COALESCE_WINDOW_MS", (int)
+                        FileNotificationCoalescer.DEFAULT_COALESCE_WINDOW_MILLIS),
+                config.getIntSetting("SETTLE_QUIET_MS", (int)
+                        FileNotificationCoalescer.DEFAULT_SETTLE_QUIET_MILLIS),
+                files);
+        journal = openJournal(config);
+        String timerFile = config.getSetting("TIMER_FILE",
+                "file-organizer-timers.dat");
+        delayedTasks = new DelayedTaskScheduler(
+                config.getIntSetting("TIMER_TICK_MS",
+                        (int) DelayedTaskScheduler.DEFAULT_TICK_MILLIS),
+                timerFile.equalsIgnoreCase("NONE")
+                ? null : Paths.get(timerFile));
+        tasks.setDoneListener(delayedTasks::taskFinished);
+        delayedTasks.load();
         
         //config.logConfig();
 
@@ -79,6 +133,68 @@ public class AppMain {
         ProcessEvents();
     }
 
+    /**
+     * Build the queue between the notification pump and the processors from
+     * the queue size and overload policy settings.
+     */
+    private FileNotificationRingBuffer createNotificationRing(Config config) {
+        FileNotificationRingBuffer.OverloadPolicy policy;
+        String policyName = config.getSetting("NOTIFICATION_OVERLOAD_POLICY",
+                "BLOCK");
+        try {
+            policy = FileNotificationRingBuffer.OverloadPolicy.valueOf(
+                    policyName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.error("ERROR: Unknown overload policy {}. Using BLOCK",
+                    policyName);
+            policy = FileNotificationRingBuffer.OverloadPolicy.BLOCK;
+        }
+        String spillFile = config.getSetting("NOTIFICATION_SPILL_FILE",
+                "file-organizer-spill.dat");
+
+        return new FileNotificationRingBuffer(
+                config.getIntSetting("NOTIFICATION_QUEUE_SIZE",
+                        FileNotificationRingBuffer.DEFAULT_CAPACITY),
+                policy, Paths.get(spillFile));
+    }
+
+    /**
+     * Read the DEDUP_MODE setting.
+     */
+    private ContentDeduplicator.DedupMode getDedupMode(Config config) {
+        String modeName = config.getSetting("DEDUP_MODE", "OFF");
+        try {
+            return ContentDeduplicator.DedupMode.valueOf(
+                    modeName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.error("ERROR: Unknown dedup mode {}. Using OFF", modeName);
+            return ContentDeduplicator.DedupMode.OFF;
+        }
+    }
+
+    /**
+     * Open the notification journal named by the JOURNAL_FILE setting.
+     * Returns null if the journal is turned off or can't be opened, in which
+     * case notifications are only held in memory.
+     */
+    private FileNotificationJournal openJournal(Config config) {
+        String journalFile = config.getSetting("JOURNAL_FILE",
+                "file-organizer-journal.dat");
+        if (journalFile.equalsIgnoreCase("NONE")) {
+            logger.info("Notification journal is turned off");
+            return null;
+        }
+        try {
+            return new FileNotificationJournal(Paths.get(journalFile),
+                    config.getIntSetting("JOURNAL_SYNC_BATCH",
+                            FileNotificationJournal.DEFAULT_SYNC_BATCH_SIZE));
+        } catch (IOException e) {
+            logger.error("ERROR: Unable to open journal {}. Continuing"
+                    + " without it", journalFile, e);
+            return null;
+        }
+    }
+
     public static void main(String[] args) throws IOException,
             InterruptedException {
 
@@ -89,24 +205,88 @@ public class AppMain {
 
     private void ProcessEvents() throws InterruptedException {
 
+        // Pick up notifications that were received but not processed
+        // before the last shutdown.
+        if (journal != null) {
+            journal.replay(coalescer::addNotification);
+        }
+
+        notificationPump.start();
         for (;;) {
 
-            // Check for file notifications
-            processFileNotifications();
+            // Wait for file notifications from the pump thread, waking up
+            // early if held notifications or delayed tasks are due to be
+            // checked.
+            long waitMillis = earliestWait(
+                    coalescer.getMillisUntilNextCheck(),
+                    delayedTasks.getMillisUntilNextCheck());
+            notificationPump.drainNotifications(waitMillis,
+                    this::addNotification);
+            if (journal != null) {
+                journal.sync();
+            }
+
+            // Process any file events that have settled
+            processFileNotifications(coalescer.releaseReadyNotifications());
+
+            // Everything before the oldest held notification, unfinished
+            // task or unsaved delayed task is done with
+            if (journal != null) {
+                long oldest = oldestOffset(oldestOffset(
+                        coalescer.getOldestJournalOffset(),
+                        tasks.getOldestJournalOffset()),
+                        delayedTasks.getOldestJournalOffset());
+                journal.commitConsumerOffset(
+                        (oldest < 0) ? journal.getEndOffset() : oldest);
+            }
+
+            // Run reminders and delayed actions that are due
+            delayedTasks.runDueTasks(tasks);
 
-            // Process any file events
-            // Check whether reminders are due
             // Check whether the user has indicated they want to quit
             // or has changed the app settings/configuration.
-            //logger.info("Sleeping 1 second");
-            Thread.sleep(1000);
         }
 
     }
 
-    private void processFileNotifications() {
-        FileNotificationCollection notifications
-                = fileWatcher.getFileNotificationsPoll(10);
+    /**
+     * Combine two wait times where -1 means no limit.
+     */
+    private static long earliestWait(long first, long second) {
+        if (first < 0) {
+            return second;
+        }
+        return (second < 0) ? first : Math.min(first, second);
+    }
+
+    /**
+     * Combine two journal offsets where -1 means none.
+     */
+    private static long oldestOffset(long first, long second) {
+        if (first < 0) {
+            return second;
+        }
+        return (second < 0) ? first : Math.min(first, second);
+    }
+
+    /**
+     * Journal a notification from the pump and hand it to the coalescer.
+     */
+    private void addNotification(FileNotification notification) {
+        long journalOffset = -1;
+        if (journal != null) {
+            try {
+                journalOffset = journal.append(notification);
+            } catch (IOException e) {
+                logger.error("ERROR: Unable to journal notification {}",
+                        notification.getNotificationAsString(), e);
+            }
+        }
+        coalescer.addNotification(notification, journalOffset);
+    }
+
+    private void processFileNotifications(
+            FileNotificationCollection notifications) {
         if (notifications == null) {
             // No notifications to process right now
             logger.debug("No notifications found");
@@ -121,6 +301,7 @@ public class AppMain {
                     = notifications.popNotification();
             logger.info("Notification: {}",
                     notification.getNotificationAsString());
+            processingOffset = notification.journalOffset;
 
             switch (notification.getFileNotificationType()) {
                 case CREATE:
@@ -132,9 +313,15 @@ public class AppMain {
                 case MODIFY:
                     processFileModification(notification);
                     break;
+                case MOVE:
+                    processFileMove(notification);
+                    break;
+                case OVERFLOW:
+                    processOverflow(notification);
+                    break;
                 case NONE:
                     logger.error(
-                            "ERROR: FileWatcher reported overflow condition");
+                            "ERROR: FileWatcher reported empty notification");
                     break;
 
                 default:
@@ -142,7 +329,13 @@ public class AppMain {
                             "ERROR: FileWatcher reported undefined event kind");
             }
 
+            // Delayed tasks changed for this notification aren't durable
+            // until the timer file is saved.
+            if (delayedTasks.hasUnsavedChanges()) {
+                delayedTasks.holdJournalOffset(processingOffset);
+            }
         }
+        processingOffset = -1;
     }
 
     private void processFileCreation(FileNotification notification) {
@@ -158,14 +351,12 @@ public class AppMain {
         FileRecord file = new FileRecord(filePath,
                 notification.getFileNotificationType());
         if (file.buildFileRecord()) {
-            //Test copy of files
-            String destPath = "c:\\crl\\dev\\test\\dest\\" + file.getFileName();
-            fileUtilities.copyFile(filePath, destPath);
-            file.filePath = destPath;
-            files.addFileRecord(destPath, file);
+            files.addFileRecord(filePath, file);
             logger.info(
                     "Added file to store. New store count is: {}",
                     files.getFileRecordCount());
+            queueActions(file, filePath,
+                    FileNotification.NotificationType.CREATE);
         } else {
             logger.info(
                     "File validation failed. ",
@@ -177,18 +368,78 @@ public class AppMain {
     private void processFileDeletion(FileNotification notification) {
         logger.info("File Deletion: Removing {} from file store",
                 notification.getFilePath());
+        delayedTasks.cancelPath(notification.getFilePath());
+        FileRecord file = files.getFileRecord(notification.getFilePath());
+        if (file != null) {
+            queueActions(file, notification.getFilePath(),
+                    FileNotification.NotificationType.DELETE);
+        }
         files.removeFileRecord(notification.getFilePath());
         logger.info(
                 "Removed file from store. New store count is: {}",
                 files.getFileRecordCount());
     }
 
+    private void processFileMove(FileNotification notification) {
+        if (!files.moveFileRecord(notification.getSourcePath(),
+                notification.getFilePath())) {
+            // Nothing known about the old path, so this is new to us.
+            logger.info("File Move: No record for {}. Treating {} as new",
+                    notification.getSourcePath(), notification.getFilePath());
+            processFileCreation(notification);
+            return;
+        }
+        delayedTasks.movePath(notification.getSourcePath(),
+                notification.getFilePath());
+        logger.info("File Move: Record moved from {} to {}",
+                notification.getSourcePath(), notification.getFilePath());
+    }
+
+    /**
+     * Rescan the directory and hand what changed to the coalescer, so the
+     * recovered notifications are merged with any live ones for the same
+     * files and wait for them to settle. They keep the overflow's journal
+     * offset until they are processed.
+     */
+    private void processOverflow(FileNotification notification) {
+        logger.info("Overflow: Rescanning {} for lost notifications",
+                notification.getFilePath());
+        FileNotificationCollection recovered
+                = rescanner.rescanDirectory(notification.getFilePath());
+        while (recovered.getNotificationCount() > 0) {
+            coalescer.addNotification(recovered.popNotification(),
+                    notification.journalOffset);
+        }
+    }
+
     private void processFileModification(FileNotification notification) {
-        // For now, just log this
         logger.info(
                 "File Modification event for {}",
                 notification.getFilePath());
+        FileRecord file = files.getFileRecord(notification.getFilePath());
+        if (file != null) {
+            queueActions(file, notification.getFilePath(),
+                    FileNotification.NotificationType.MODIFY);
+        }
+    }
 
+    /**
+     * Queue a task for every configured action that applies to this change.
+     * Actions with a delay wait in the delayed task scheduler first.
+     */
+    private void queueActions(FileRecord file, String filePath,
+            FileNotification.NotificationType notificationType) {
+        for (FileTypeActionDef actionDef : config.getFileTypeActions(
+                file.getFileTypeName(), notificationType)) {
+            Task task = new Task(actionDef, filePath, notificationType,
+                    file.getContentHash());
+            task.journalOffset = processingOffset;
+            if (actionDef.delayMillis > 0) {
+                delayedTasks.schedule(task, actionDef.delayMillis);
+            } else {
+                tasks.addTask(task);
+            }
+        }
     }
 
 }
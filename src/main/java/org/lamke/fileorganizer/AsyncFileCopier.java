@@ -0,0 +1,365 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class copies files without a thread waiting on each copy. Reads and
+ * writes go through AsynchronousFileChannel, and each finished read or
+ * write starts the next one from its completion handler, so a small pool
+ * of threads can keep many copies moving, e.g. when thousands of small
+ * files arrive at once.
+ *
+ * Each copy in flight holds one buffer from a pool, and the size of the
+ * pool bounds the number of copies in flight. Copies started while every
+ * buffer is in use wait in FIFO order for one to be returned.
+ *
+ * Like FileCopyEngine, a copy fails if the destination already exists, and
+ * a copy that fails or is cancelled through its future removes the partial
+ * destination file. This class is thread safe.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class AsyncFileCopier {
+
+    /**
+     * Default number of copies in flight.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    /**
+     * Default size of the copy buffers.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default number of threads the reads and writes run on.
+     */
+    public static final int DEFAULT_THREAD_COUNT
+            = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Millisecs an idle I/O thread waits for work before it ends.
+     */
+    private static final long IDLE_THREAD_MILLIS = 30000;
+
+    private final Logger logger
+            = LogManager.getLogger(AsyncFileCopier.class.getName());
+    private final int maxInFlight;
+    private final int bufferSize;
+    private final ThreadPoolExecutor ioThreads;
+    // Buffers returned by finished copies. Guarded by this.
+    private final ArrayDeque<ByteBuffer> freeBuffers;
+    // Copies waiting for a buffer. Guarded by this.
+    private final ArrayDeque<AsyncCopy> waiting;
+    private int buffersCreated = 0;
+    private boolean closed = false;
+
+    /**
+     * One copy, which moves on to its next read or write as the last one
+     * completes.
+     */
+    private class AsyncCopy {
+
+        final Path source;
+        final Path dest;
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        ByteBuffer buffer;
+        AsynchronousFileChannel in;
+        AsynchronousFileChannel out;
+        long size;
+        long position = 0;
+
+        final CompletionHandler<Integer, Void> readDone
+                = new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer count, Void attachment) {
+                if (count < 0) {
+                    // The source shrank after its size was read.
+                    fail(new EOFException("Source " + source + " ended at "
+                            + position + " of " + size + " bytes"));
+                    return;
+                }
+                buffer.flip();
+                write();
+            }
+
+            @Override
+            public void failed(Throwable failure, Void attachment) {
+                fail(failure);
+            }
+        };
+
+        final CompletionHandler<Integer, Void> writeDone
+                = new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer count, Void attachment) {
+                position += count;
+                if (buffer.hasRemaining()) {
+                    write();
+                } else if (position >= size) {
+                    // Saves a read to find the end, most of the cost of
+                    // copying a small file.
+                    finish();
+                } else {
+                    read();
+                }
+            }
+
+            @Override
+            public void failed(Throwable failure, Void attachment) {
+                fail(failure);
+            }
+        };
+
+        AsyncCopy(Path source, Path dest) {
+            this.source = source;
+            this.dest = dest;
+        }
+
+        void start(ByteBuffer buffer) {
+            this.buffer = buffer;
+            if (result.isCancelled()) {
+                release(buffer);
+                return;
+            }
+            try {
+                in = AsynchronousFileChannel.open(source,
+                        EnumSet.of(StandardOpenOption.READ), ioThreads);
+                out = AsynchronousFileChannel.open(dest,
+                        EnumSet.of(StandardOpenOption.CREATE_NEW,
+                                StandardOpenOption.WRITE), ioThreads);
+                // From here on the destination is ours to remove on failure.
+                size = in.size();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+            if (size == 0) {
+                finish();
+            } else {
+                read();
+            }
+        }
+
+        void read() {
+            if (result.isCancelled()) {
+                fail(new CancellationException());
+                return;
+            }
+            buffer.clear();
+            try {
+                in.read(buffer, position, null, readDone);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        void write() {
+            try {
+                out.write(buffer, position, null, writeDone);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        void finish() {
+            try {
+                in.close();
+                out.close();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            release(buffer);
+            result.complete(position);
+        }
+
+        void fail(Throwable failure) {
+            closeQuietly(in);
+            if (out != null) {
+                closeQuietly(out);
+                deletePartial(dest);
+            }
+            release(buffer);
+            result.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * This is the AsyncFileCopier constructor.
+     *
+     * @param maxInFlight most copies in flight at once
+     * @param bufferSize size of the copy buffers
+     * @param threadCount number of threads the reads and writes run on
+     */
+    AsyncFileCopier(int maxInFlight, int bufferSize, int threadCount) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.bufferSize = Math.max(4096, bufferSize);
+        this.freeBuffers = new ArrayDeque<>();
+        this.waiting = new ArrayDeque<>();
+        threadCount = Math.max(1, threadCount);
+        AtomicInteger threadNumber = new AtomicInteger();
+        ioThreads = new ThreadPoolExecutor(threadCount, threadCount,
+                IDLE_THREAD_MILLIS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "async-copy-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        ioThreads.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * copy() Start copying a file. The copy starts at once if fewer than
+     * the max copies are in flight, and otherwise when one finishes.
+     *
+     * @param source file to copy
+     * @param dest path of the new copy, which must not exist
+     * @return CompletableFuture completed with the number of bytes copied.
+     * Cancelling it stops the copy and removes the partial destination.
+     */
+    public CompletableFuture<Long> copy(Path source, Path dest) {
+        AsyncCopy copy = new AsyncCopy(source, dest);
+        ByteBuffer buffer;
+        synchronized (this) {
+            if (closed) {
+                copy.result.completeExceptionally(
+                        new RejectedExecutionException("Copier is closed"));
+                return copy.result;
+            }
+            buffer = freeBuffers.poll();
+            if (buffer == null) {
+                if (buffersCreated >= maxInFlight) {
+                    waiting.add(copy);
+                    return copy.result;
+                }
+                buffersCreated++;
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        copy.start(buffer);
+        return copy.result;
+    }
+
+    /**
+     * Hand a finished copy's buffer to the next waiting copy, or back to
+     * the pool. The next copy is started on an I/O thread rather than on
+     * this stack, since a copy that finishes or fails at once releases its
+     * buffer again, and a long run of those would overflow the stack. The
+     * buffer stays in use until it starts, so the threads aren't stopped
+     * in between.
+     */
+    private void release(ByteBuffer buffer) {
+        AsyncCopy next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                freeBuffers.push(buffer);
+                stopIfIdle();
+                return;
+            }
+        }
+        ioThreads.execute(() -> next.start(buffer));
+    }
+
+    /**
+     * getInFlightCount() Get the number of copies holding a buffer.
+     *
+     * @return int number of copies in flight
+     */
+    public synchronized int getInFlightCount() {
+        return buffersCreated - freeBuffers.size();
+    }
+
+    /**
+     * getWaitingCount() Get the number of copies waiting for a buffer.
+     *
+     * @return int number of waiting copies
+     */
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * close() Stop taking copies and stop the I/O threads once the copies
+     * already taken, including those waiting for a buffer, have finished.
+     */
+    public synchronized void close() {
+        closed = true;
+        stopIfIdle();
+    }
+
+    private synchronized void stopIfIdle() {
+        // Copies in flight still need the threads for their next read or
+        // write.
+        if (closed && waiting.isEmpty()
+                && freeBuffers.size() == buffersCreated) {
+            ioThreads.shutdown();
+        }
+    }
+
+    private void closeQuietly(AsynchronousFileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Ignoring failure to close {}", channel);
+        }
+    }
+
+    private void deletePartial(Path dest) {
+        try {
+            Files.deleteIfExists(dest);
+        } catch (IOException e) {
+            logger.error("ERROR: Unable to remove partial copy {}", dest);
+        }
+    }
+
+}
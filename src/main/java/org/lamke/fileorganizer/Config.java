@@ -27,6 +27,9 @@ import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -44,10 +47,14 @@ public class Config {
     private static Config configInstance = null;
 
     private FileSystemWatcher watcher = null;
+    private PollingFileSystemWatcher pollingWatcher = null;
     private final Logger logger = LogManager.getLogger(Config.class.getName());
     private String configFile = null;
     ArrayList<WatchPath> watchPaths;
     ArrayList<FileTypeActionDef> fileTypes;
+    HashMap<String, String> settings;
+    DestinationRateLimiter rateLimits;
+    LinkedHashMap<String, Integer> storeLimits;
 
     /**
      * Private Config constructor because this is a singleton class.
@@ -56,8 +63,12 @@ public class Config {
     private Config() {
         try {
             watcher = FileSystemWatcher.getInstance();
+            pollingWatcher = PollingFileSystemWatcher.getInstance();
             fileTypes = new ArrayList<>();
             watchPaths = new ArrayList<>();
+            settings = new HashMap<>();
+            rateLimits = new DestinationRateLimiter();
+            storeLimits = new LinkedHashMap<>();
         } catch (IOException e) {
             logger.log(Level.ERROR, e.toString());
         }
@@ -88,7 +99,9 @@ public class Config {
 
     /**
      * Load the app configuration from the config file on disk, initializing
-     * WatchPaths and other relevant objects to prepare for operation.
+     * WatchPaths and other relevant objects to prepare for operation. Watch
+     * paths are registered once the whole file has been read so the settings
+     * apply no matter where they appear in the file.
      *
      */
     public void loadConfig() {
@@ -113,6 +126,15 @@ public class Config {
                     case "ACTION":
                         addAction(lineParts);
                         break;
+                    case "SETTING":
+                        addSetting(lineParts);
+                        break;
+                    case "RATELIMIT":
+                        addRateLimit(lineParts);
+                        break;
+                    case "STORELIMIT":
+                        addStoreLimit(lineParts);
+                        break;
                     default:
                         logger.error("ERROR: Bad Line Format - {}", currentLine);
                 }
@@ -123,6 +145,8 @@ public class Config {
             logger.error("FATAL ERROR: Unable to load config file - {}", configFile);
             e.printStackTrace();
         }
+
+        configureWatcher();
         logger.debug("End Config load");
 
     }
@@ -137,50 +161,308 @@ public class Config {
 
     }
 
-    private void addWatch(String[] lineParts) throws IOException {
-        // Line Format: WATCHPATH	"c:\crl\down"	N
-        // Should be two more tokens, a path and a recursion choice
+    /**
+     * Get a setting value as a String.
+     *
+     * @param name setting name as it appears in the config file
+     * @param defaultValue value to return if the setting is not present
+     * @return String setting value
+     */
+    public String getSetting(String name, String defaultValue) {
+        return settings.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Get a setting value as an int.
+     *
+     * @param name setting name as it appears in the config file
+     * @param defaultValue value to return if the setting is not present or
+     * is not a valid number
+     * @return int setting value
+     */
+    public int getIntSetting(String name, int defaultValue) {
+        String value = settings.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.error("ERROR: Setting {} has bad number format - {}",
+                    name, value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Apply the watcher settings and register all configured watch paths
+     * with the FileSystemWatcher.
+     */
+    private void configureWatcher() {
+        watcher.setShardCount(getIntSetting("WATCH_SHARDS",
+                FileSystemWatcher.DEFAULT_SHARD_COUNT));
+        watcher.setNotificationBatchSize(getIntSetting(
+                "NOTIFICATION_BATCH_SIZE",
+                FileSystemWatcher.DEFAULT_NOTIFICATION_BATCH_SIZE));
+        watcher.setWatchBudget(getIntSetting("WATCH_BUDGET", 0));
+        watcher.setBudgetFallback(pollingWatcher);
+        pollingWatcher.setPollInterval(
+                getIntSetting("POLL_MIN_INTERVAL_MS", (int)
+                        PollingFileSystemWatcher.DEFAULT_MIN_INTERVAL_MILLIS),
+                getIntSetting("POLL_MAX_INTERVAL_MS", (int)
+                        PollingFileSystemWatcher.DEFAULT_MAX_INTERVAL_MILLIS));
+
+        for (WatchPath watchPath : watchPaths) {
+            FileWatcher pathWatcher = watchPath.isPathPolled()
+                    ? pollingWatcher : watcher;
+            try {
+                pathWatcher.addWatchPath(watchPath.getPathString(),
+                        watchPath.isPathRecursive());
+            } catch (IOException e) {
+                logger.error("ERROR: Unable to watch path {} - {}",
+                        watchPath.getPathString(), e.toString());
+            }
+        }
+    }
+
+    private void addSetting(String[] lineParts) {
+        // Line Format: SETTING	NOTIFICATION_BATCH_SIZE	1000
+        if (lineParts.length < 3) {
+            logger.error("ERROR: Bad Line Format - {}",
+                    String.join(" ", lineParts));
+            return;
+        }
+        String name = lineParts[1];
+        String value = lineParts[2].replace("\"", "");
+
+        logger.debug("Adding Setting: {} = {}", name, value);
+        settings.put(name, value);
+    }
+
+    private void addRateLimit(String[] lineParts) {
+        // Line Format: RATELIMIT	"d:\archive"	50M	20	[2]
+        if (lineParts.length < 4) {
+            logger.error("ERROR: Bad Line Format - {}",
+                    String.join(" ", lineParts));
+            return;
+        }
+        String path = lineParts[1].replace("\"", "");
+        long bytesPerSecond = parseByteCount(lineParts[2]);
+        if (bytesPerSecond < 0) {
+            logger.error("ERROR: Bad byte rate {} for {}", lineParts[2], path);
+            return;
+        }
+        double operationsPerSecond;
+        double burstSeconds;
+        try {
+            operationsPerSecond = Double.parseDouble(lineParts[3]);
+            burstSeconds = (lineParts.length > 4)
+                    ? Double.parseDouble(lineParts[4])
+                    : DestinationRateLimiter.DEFAULT_BURST_SECONDS;
+        } catch (NumberFormatException e) {
+            logger.error("ERROR: Bad file rate or burst for {} - {}", path,
+                    e.getMessage());
+            return;
+        }
+        if (operationsPerSecond < 0 || !(burstSeconds > 0)) {
+            logger.error("ERROR: Bad file rate {} or burst {} for {}",
+                    operationsPerSecond, burstSeconds, path);
+            return;
+        }
+
+        logger.debug("Adding Rate Limit: {} bytes/sec, {} ops/sec, {} sec"
+                + " burst for {}", bytesPerSecond, operationsPerSecond,
+                burstSeconds, path);
+        rateLimits.setLimit(path, bytesPerSecond, operationsPerSecond,
+                burstSeconds);
+    }
+
+    /**
+     * Parse a byte count such as 512K, 50M or 1G. A number with no unit is
+     * bytes.
+     *
+     * @return long byte count, or -1 if it isn't valid
+     */
+    private static long parseByteCount(String count) {
+        long unit;
+        switch (Character.toUpperCase(count.charAt(count.length() - 1))) {
+            case 'K':
+                unit = 1024L;
+                break;
+            case 'M':
+                unit = 1024L * 1024;
+                break;
+            case 'G':
+                unit = 1024L * 1024 * 1024;
+                break;
+            default:
+                unit = 0;
+        }
+        String number = (unit == 0)
+                ? count : count.substring(0, count.length() - 1);
+        try {
+            long value = Long.parseLong(number);
+            return (value < 0) ? -1 : value * Math.max(1, unit);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * getRateLimits() Get the I/O rate limits for destination directories.
+     * Limits can be changed through the returned limiter while the app
+     * runs.
+     *
+     * @return DestinationRateLimiter holding the configured limits
+     */
+    public DestinationRateLimiter getRateLimits() {
+        return rateLimits;
+    }
+
+    private void addStoreLimit(String[] lineParts) {
+        // Line Format: STORELIMIT	"z:\"	2
+        if (lineParts.length < 3) {
+            logger.error("ERROR: Bad Line Format - {}",
+                    String.join(" ", lineParts));
+            return;
+        }
+        String path = lineParts[1].replace("\"", "");
+        int workerCount;
+        try {
+            workerCount = Integer.parseInt(lineParts[2]);
+        } catch (NumberFormatException e) {
+            logger.error("ERROR: Bad worker count {} for {}", lineParts[2],
+                    path);
+            return;
+        }
+        logger.debug("Adding Store Limit: {} workers for {}", workerCount,
+                path);
+        storeLimits.put(path, workerCount);
+    }
+
+    /**
+     * getStoreLimits() Get the number of tasks that can use each configured
+     * file store at once, by a path on the store.
+     *
+     * @return LinkedHashMap of worker counts by path
+     */
+    public LinkedHashMap<String, Integer> getStoreLimits() {
+        return storeLimits;
+    }
+
+    private void addWatch(String[] lineParts) {
+        // Line Format: WATCHPATH	"c:\crl\down"	N	[POLL]
+        // Should be two more tokens, a path and a recursion choice, and
+        // optionally the POLL keyword to poll the path instead of relying
+        // on OS change notification.
         String path = lineParts[1];
         String recursion = lineParts[2];
         boolean isRecursive = false;
         if (recursion.equals("Y") || recursion.equals("y")) {
             isRecursive = true;
         }
+        boolean isPolled = (lineParts.length > 3)
+                && lineParts[3].equalsIgnoreCase("POLL");
 
-        logger.debug("Adding Watch Path: {}. Recursion = {}", path, isRecursive);
+        logger.debug("Adding Watch Path: {}. Recursion = {}. Polled = {}",
+                path, isRecursive, isPolled);
         path = path.replace("\"", "");
-        WatchPath watchPath = new WatchPath(path, isRecursive);
+        WatchPath watchPath = new WatchPath(path, isRecursive, isPolled);
         watchPaths.add(watchPath);
-
-        // Add to FileSystemWatcher
-        watcher.addWatchPath(path, isRecursive);
     }
 
     private void addAction(String[] lineParts) {
-        //Line Format: ACTION	GIF	CREATE  MOVE 1 "c:\crl\dev\test\dest"
+        //Line Format: ACTION	GIF	CREATE  MOVE 1 "c:\crl\dev\test\dest"	[7d]
         String fileType = lineParts[1];
         String changeType = lineParts[2];
         String action = lineParts[3];
         int priority = Integer.parseInt(lineParts[4]);
         String path = lineParts[5];
+        long delayMillis = 0;
+        if (lineParts.length > 6) {
+            delayMillis = parseDelay(lineParts[6]);
+            if (delayMillis < 0) {
+                logger.error("ERROR: Bad action delay {}. Acting at once",
+                        lineParts[6]);
+                delayMillis = 0;
+            }
+        }
 
         logger.debug("Adding File Action: Priority {} - When {} has change {},"
-                + " do {} with path {}",
-                priority, fileType, changeType, action, path);
+                + " do {} with path {} after {} ms",
+                priority, fileType, changeType, action, path, delayMillis);
         path = path.replace("\"", "");
         FileTypeActionDef fileTypeDefinition
                 = new FileTypeActionDef(fileType, changeType, action,
-                        path, priority);
+                        path, priority, delayMillis);
         fileTypes.add(fileTypeDefinition);
 
     }
 
+    /**
+     * Parse a delay such as 30s, 15m, 12h or 7d. A number with no unit is
+     * millisecs.
+     *
+     * @return long delay in millisecs, or -1 if it isn't valid
+     */
+    private static long parseDelay(String delay) {
+        long unitMillis;
+        switch (Character.toLowerCase(delay.charAt(delay.length() - 1))) {
+            case 's':
+                unitMillis = 1000L;
+                break;
+            case 'm':
+                unitMillis = 60 * 1000L;
+                break;
+            case 'h':
+                unitMillis = 60 * 60 * 1000L;
+                break;
+            case 'd':
+                unitMillis = 24 * 60 * 60 * 1000L;
+                break;
+            default:
+                unitMillis = 0;
+        }
+        String number = (unitMillis == 0)
+                ? delay : delay.substring(0, delay.length() - 1);
+        try {
+            long value = Long.parseLong(number);
+            return (value < 0) ? -1 : value * Math.max(1, unitMillis);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * getFileTypeActions() Get the configured actions for a change of the
+     * given kind to a file of the given type.
+     *
+     * @param typeName file type code from FileTypeDecider
+     * @param notificationType kind of change
+     * @return List of matching actions, possibly empty
+     */
+    public List<FileTypeActionDef> getFileTypeActions(String typeName,
+            FileNotification.NotificationType notificationType) {
+        List<FileTypeActionDef> actions = new ArrayList<>();
+        for (FileTypeActionDef actionDef : fileTypes) {
+            if (actionDef.matches(typeName, notificationType)) {
+                actions.add(actionDef);
+            }
+        }
+        return actions;
+    }
+
     public void logConfig() {
         logger.info("Begin Log of Config");
+        logger.info("Settings");
+        settings.forEach((name, value) -> {
+            logger.info("Setting: {} = {}", name, value);
+        });
         logger.info("Watch Paths");
         for (WatchPath path : watchPaths) {
-            logger.info("Path: {}. Recursive = {}",
-                    path.getPathString(), path.isPathRecursive());
+            logger.info("Path: {}. Recursive = {}. Polled = {}",
+                    path.getPathString(), path.isPathRecursive(),
+                    path.isPathPolled());
         }
         logger.info("File Type Definitions");
         fileTypes.forEach((_item) -> {
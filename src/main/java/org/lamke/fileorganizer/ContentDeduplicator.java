@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class keeps files that are already at a MOVE or COPY destination
+ * from being copied there again. Each destination directory is indexed by
+ * file size the first time a file goes there, and files placed there by the
+ * app are added as they arrive. A file is only hashed if a file of the same
+ * size is in the destination, and then only as far as it takes to rule the
+ * match out, using ContentHash.
+ *
+ * When a duplicate is found, SKIP mode doesn't copy the file, and LINK mode
+ * creates a hard link to the existing copy at the destination path. Either
+ * way a MOVE then deletes the source, since its content has arrived.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class ContentDeduplicator {
+
+    /**
+     * What to do with a file whose content is already at its destination.
+     */
+    public enum DedupMode {
+        OFF, SKIP, LINK
+    }
+
+    /**
+     * A file in a destination directory.
+     */
+    private static class IndexedFile {
+
+        final Path path;
+        final ContentHash contentHash;
+
+        IndexedFile(Path path, ContentHash contentHash) {
+            this.path = path;
+            this.contentHash = contentHash;
+        }
+    }
+
+    private final Logger logger
+            = LogManager.getLogger(ContentDeduplicator.class.getName());
+    private final DedupMode mode;
+    // Files in each destination directory, by size.
+    private final HashMap<Path, HashMap<Long, List<IndexedFile>>> directories;
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * This is the ContentDeduplicator constructor.
+     *
+     * @param mode what to do with duplicates
+     */
+    ContentDeduplicator(DedupMode mode) {
+        this.mode = mode;
+        this.directories = new HashMap<>();
+    }
+
+    /**
+     * placeDuplicate() If the file's content is already in the destination
+     * directory, deal with it as the mode says instead of copying it.
+     *
+     * @param source file being moved or copied
+     * @param dest path it is going to
+     * @param sourceHash hashes kept for the source, may be null
+     * @param isMove true for a MOVE, which deletes the source
+     * @return true if the file was handled, false if it must be copied
+     * @throws IOException if the source couldn't be deleted after a MOVE
+     */
+    public boolean placeDuplicate(Path source, Path dest,
+            ContentHash sourceHash, boolean isMove) throws IOException {
+        if (mode == DedupMode.OFF) {
+            return false;
+        }
+        ContentHash hash = (sourceHash != null) ? sourceHash
+                : new ContentHash();
+        Path duplicate;
+        try {
+            duplicate = findDuplicate(source, hash, dest.getParent());
+        } catch (IOException e) {
+            logger.debug("Unable to check {} for duplicates - {}", source,
+                    e.toString());
+            return false;
+        }
+        if (duplicate == null) {
+            return false;
+        }
+
+        if (mode == DedupMode.LINK && !duplicate.equals(dest)) {
+            try {
+                Files.createLink(dest, duplicate);
+                FileAttributeCache.getInstance().invalidate(dest);
+                addFile(dest, hash);
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.debug("Unable to link {} to {}. Copying instead",
+                        dest, duplicate);
+                return false;
+            }
+        }
+        if (isMove) {
+            Files.delete(source);
+            FileAttributeCache.getInstance().invalidate(source);
+        }
+        duplicateCount.incrementAndGet();
+        bytesSaved.addAndGet(hash.getSize());
+        logger.info("{} has the same content as {}. Not copied", source,
+                duplicate);
+        return true;
+    }
+
+    /**
+     * addFile() Note that a file with the given content has been placed at a
+     * destination.
+     *
+     * @param dest path of the new file
+     * @param sourceHash hashes of the file it was copied from, may be null
+     */
+    public void addFile(Path dest, ContentHash sourceHash) {
+        if (mode == DedupMode.OFF) {
+            return;
+        }
+        ContentHash hash = new ContentHash();
+        try {
+            hash.refresh(dest);
+        } catch (IOException e) {
+            return;
+        }
+        if (sourceHash != null) {
+            hash.copyFrom(sourceHash);
+        }
+        synchronized (directories) {
+            HashMap<Long, List<IndexedFile>> bySize
+                    = directories.get(dest.getParent());
+            if (bySize != null) {
+                bySize.computeIfAbsent(hash.getSize(),
+                        k -> new ArrayList<>(1))
+                        .add(new IndexedFile(dest, hash));
+            }
+        }
+    }
+
+    /**
+     * Find a file in the directory with the same content as the source.
+     *
+     * @return Path of the duplicate, or null if there is none
+     */
+    private Path findDuplicate(Path source, ContentHash sourceHash,
+            Path directory) throws IOException {
+        // The source is watched, so a cached entry for it is dropped when it
+        // changes. Files already in the destination may not be, so each
+        // candidate is read again.
+        long size = sourceHash.refresh(
+                FileAttributeCache.getInstance().getAttributes(source));
+        List<IndexedFile> candidates;
+        synchronized (directories) {
+            HashMap<Long, List<IndexedFile>> bySize
+                    = directories.get(directory);
+            if (bySize == null) {
+                bySize = indexDirectory(directory);
+                directories.put(directory, bySize);
+            }
+            List<IndexedFile> sameSize = bySize.get(size);
+            if (sameSize == null) {
+                return null;
+            }
+            candidates = new ArrayList<>(sameSize);
+        }
+
+        for (IndexedFile candidate : candidates) {
+            if (candidate.path.equals(source)) {
+                continue;
+            }
+            try {
+                if (candidate.contentHash.refresh(candidate.path) != size) {
+                    // Changed since it was indexed.
+                    removeFile(directory, candidate);
+                    continue;
+                }
+                if (sourceHash.sameContent(source, candidate.contentHash,
+                        candidate.path)) {
+                    return candidate.path;
+                }
+            } catch (IOException e) {
+                removeFile(directory, candidate);
+            }
+        }
+        return null;
+    }
+
+    private void removeFile(Path directory, IndexedFile file) {
+        synchronized (directories) {
+            HashMap<Long, List<IndexedFile>> bySize
+                    = directories.get(directory);
+            if (bySize == null) {
+                return;
+            }
+            for (List<IndexedFile> sameSize : bySize.values()) {
+                sameSize.remove(file);
+            }
+        }
+    }
+
+    /**
+     * Index the files already in a directory by size.
+     */
+    private HashMap<Long, List<IndexedFile>> indexDirectory(Path directory) {
+        HashMap<Long, List<IndexedFile>> bySize = new HashMap<>();
+        try (DirectoryStream<Path> entries
+                = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes = Files.readAttributes(entry,
+                        BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (!attributes.isRegularFile()) {
+                    continue;
+                }
+                bySize.computeIfAbsent(attributes.size(),
+                        k -> new ArrayList<>(1)).add(new IndexedFile(entry,
+                        new ContentHash(attributes.size(),
+                                attributes.lastModifiedTime().toMillis())));
+            }
+        } catch (IOException e) {
+            logger.debug("Unable to index {} - {}", directory, e.toString());
+        }
+        logger.debug("Indexed {} file sizes in {}", bySize.size(), directory);
+        return bySize;
+    }
+
+    public DedupMode getMode() {
+        return mode;
+    }
+
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    /**
+     * getBytesSaved() Get the number of bytes that weren't copied because
+     * they were already at their destination.
+     *
+     * @return long bytes saved
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * This class holds what is known about a file's content, for finding
+ * duplicates cheaply. Files of different sizes can't match, so the size is
+ * compared first. Next is a partial hash of the size and the first and last
+ * blocks, which tells most same-size files apart after reading a little of
+ * each. Only files that still match are fully hashed, read through pooled
+ * direct buffers rather than a memory mapping, since a mapping keeps the
+ * file open until it is garbage collected and on Windows that stops the
+ * source of a MOVE from being deleted. Each hash is computed when first
+ * needed and kept.
+ *
+ * The hashes belong to the file as it was when they were computed, so
+ * refresh() drops them if the file's size or modification time has
+ * changed. This class is thread safe.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class ContentHash {
+
+    /**
+     * Size of the blocks at each end of a file that go into the partial
+     * hash.
+     */
+    public static final int PARTIAL_BLOCK_SIZE = 64 * 1024;
+
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+
+    // Direct buffers for full hashes, shared by every file's hashes.
+    private static final ArrayBlockingQueue<ByteBuffer> HASH_BUFFERS
+            = new ArrayBlockingQueue<>(
+                    Runtime.getRuntime().availableProcessors());
+
+    private long size = -1;
+    private long modifiedMillis = -1;
+    private byte[] partialHash = null;
+    private byte[] fullHash = null;
+
+    /**
+     * This is the ContentHash constructor for a file not yet looked at.
+     */
+    ContentHash() {
+    }
+
+    /**
+     * This is the ContentHash constructor for a file whose size and
+     * modification time are already known.
+     *
+     * @param size file size in bytes
+     * @param modifiedMillis last modification time
+     */
+    ContentHash(long size, long modifiedMillis) {
+        this.size = size;
+        this.modifiedMillis = modifiedMillis;
+    }
+
+    /**
+     * refresh() Read the file's size and modification time, dropping the
+     * hashes if either has changed.
+     *
+     * @param file file these hashes are for
+     * @return long file size
+     * @throws IOException if the file can't be read
+     */
+    public long refresh(Path file) throws IOException {
+        return refresh(FileAttributeCache.getInstance().readAttributes(file));
+    }
+
+    /**
+     * refresh() Check attributes the caller has already read against the
+     * ones the hashes were computed for, dropping the hashes if the size or
+     * modification time has changed.
+     *
+     * @param attributes current attributes of the file
+     * @return long file size
+     */
+    public synchronized long refresh(BasicFileAttributes attributes) {
+        long modified = attributes.lastModifiedTime().toMillis();
+        if (attributes.size() != size || modified != modifiedMillis) {
+            size = attributes.size();
+            modifiedMillis = modified;
+            partialHash = null;
+            fullHash = null;
+        }
+        return size;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * getPartialHash() Get the hash of the file's size and its first and
+     * last blocks.
+     *
+     * @param file file these hashes are for
+     * @return byte[] SHA-256 digest
+     * @throws IOException if the file can't be read
+     */
+    public synchronized byte[] getPartialHash(Path file) throws IOException {
+        if (partialHash == null) {
+            MessageDigest digest = newDigest();
+            ByteBuffer sizeBytes = ByteBuffer.allocate(Long.BYTES);
+            sizeBytes.putLong(0, size);
+            digest.update(sizeBytes);
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.READ)) {
+                ByteBuffer block = ByteBuffer.allocate(PARTIAL_BLOCK_SIZE);
+                readFully(channel, block, 0);
+                digest.update(block);
+                if (size > PARTIAL_BLOCK_SIZE) {
+                    block.clear();
+                    readFully(channel, block,
+                            Math.max(PARTIAL_BLOCK_SIZE,
+                                    size - PARTIAL_BLOCK_SIZE));
+                    digest.update(block);
+                }
+            }
+            partialHash = digest.digest();
+        }
+        return partialHash;
+    }
+
+    /**
+     * getFullHash() Get the hash of the whole file.
+     *
+     * @param file file these hashes are for
+     * @return byte[] SHA-256 digest
+     * @throws IOException if the file can't be read
+     */
+    public synchronized byte[] getFullHash(Path file) throws IOException {
+        if (fullHash == null) {
+            MessageDigest digest = newDigest();
+            ByteBuffer buffer = HASH_BUFFERS.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+            }
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.READ)) {
+                buffer.clear();
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                // Dropped if the pool is full.
+                HASH_BUFFERS.offer(buffer);
+            }
+            fullHash = digest.digest();
+        }
+        return fullHash;
+    }
+
+    /**
+     * copyFrom() Take the hashes of a file with the same content, such as
+     * the source of a copy, so they needn't be computed again.
+     *
+     * @param other hashes of the file with the same content
+     */
+    public void copyFrom(ContentHash other) {
+        byte[] otherPartial;
+        byte[] otherFull;
+        long otherSize;
+        synchronized (other) {
+            otherPartial = other.partialHash;
+            otherFull = other.fullHash;
+            otherSize = other.size;
+        }
+        synchronized (this) {
+            if (otherSize == size) {
+                partialHash = otherPartial;
+                fullHash = otherFull;
+            }
+        }
+    }
+
+    /**
+     * sameContent() Check whether two files have the same content, going
+     * from the cheapest test to the most costly.
+     *
+     * @param file file these hashes are for
+     * @param other hashes of the other file
+     * @param otherFile the other file
+     * @return true if the content is the same
+     * @throws IOException if either file can't be read
+     */
+    public boolean sameContent(Path file, ContentHash other, Path otherFile)
+            throws IOException {
+        return getSize() == other.getSize()
+                && Arrays.equals(getPartialHash(file),
+                        other.getPartialHash(otherFile))
+                && Arrays.equals(getFullHash(file),
+                        other.getFullHash(otherFile));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+}
@@ -0,0 +1,422 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class holds tasks that are to run after a delay, such as actions
+ * configured to wait until a file has been in place for some days, and
+ * hands them to the TaskQueue when they come due. Tasks are held on a
+ * TimingWheel and indexed by file path, so a file's delayed tasks can be
+ * dropped when it is deleted or follow it when it is moved.
+ *
+ * Pending tasks are saved to a timer file, at most once per save interval
+ * and only when they have changed, and loaded again at startup. Tasks that
+ * came due while the app wasn't running fire on the first tick. Tasks
+ * handed to the TaskQueue stay in the timer file until the TaskQueue reports
+ * them finished, so a crash while one is queued or waiting for a retry
+ * doesn't lose it. Until changes are saved, the oldest journal offset behind
+ * them is held, so the notification journal isn't trimmed past a change the
+ * timer file doesn't reflect yet. Without a timer file, the journal offsets
+ * of pending tasks are held instead, so they are rebuilt from the journal
+ * after a restart.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class DelayedTaskScheduler {
+
+    /**
+     * Default resolution of delays.
+     */
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+
+    /**
+     * Default number of ticks in one turn of the wheel.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 4096;
+
+    /**
+     * Least time between saves of the timer file.
+     */
+    public static final long SAVE_INTERVAL_MILLIS = 5000;
+
+    private static final int FILE_VERSION = 1;
+    private static final FileNotification.NotificationType[] TYPES
+            = FileNotification.NotificationType.values();
+
+    private final Logger logger
+            = LogManager.getLogger(DelayedTaskScheduler.class.getName());
+    private final TimingWheel<Task> wheel;
+    private final HashMap<String, List<TimingWheel.Timer<Task>>> timersByPath;
+    private final Path timerFile;
+    private boolean dirty = false;
+    private long lastSaveMillis = 0;
+    // Oldest journal offset behind a change not yet saved, or -1.
+    private long unsavedJournalOffset = -1;
+    // Tasks handed to the TaskQueue that haven't finished yet.
+    private final Set<Task> firedTasks
+            = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile boolean firedTaskFinished = false;
+
+    /**
+     * This is the DelayedTaskScheduler constructor.
+     *
+     * @param tickMillis resolution of delays
+     * @param timerFile file pending tasks are saved to, or null to keep them
+     * only in memory
+     */
+    DelayedTaskScheduler(long tickMillis, Path timerFile) {
+        this.wheel = new TimingWheel<>(tickMillis, DEFAULT_WHEEL_SIZE,
+                System.currentTimeMillis());
+        this.timersByPath = new HashMap<>();
+        this.timerFile = timerFile;
+    }
+
+    /**
+     * schedule() Hold a task until the delay has passed.
+     *
+     * @param task task to run
+     * @param delayMillis time to wait before running it
+     */
+    public void schedule(Task task, long delayMillis) {
+        scheduleAt(task, System.currentTimeMillis() + delayMillis);
+        logger.debug("Delaying task {} by {} ms", task.getTaskAsString(),
+                delayMillis);
+    }
+
+    private void scheduleAt(Task task, long deadlineMillis) {
+        TimingWheel.Timer<Task> timer = wheel.schedule(task, deadlineMillis);
+        timersByPath.computeIfAbsent(task.getFilePath(),
+                k -> new ArrayList<>(1)).add(timer);
+        dirty = true;
+    }
+
+    /**
+     * cancelPath() Drop every delayed task for a file.
+     *
+     * @param filePath path of the file
+     * @return int number of tasks dropped
+     */
+    public int cancelPath(String filePath) {
+        List<TimingWheel.Timer<Task>> timers = timersByPath.remove(filePath);
+        if (timers == null) {
+            return 0;
+        }
+        for (TimingWheel.Timer<Task> timer : timers) {
+            wheel.cancel(timer);
+        }
+        dirty = true;
+        return timers.size();
+    }
+
+    /**
+     * movePath() Point a file's delayed tasks at the path it was moved to,
+     * keeping their deadlines.
+     *
+     * @param oldPath path the tasks were scheduled for
+     * @param newPath path the file now has
+     */
+    public void movePath(String oldPath, String newPath) {
+        List<TimingWheel.Timer<Task>> timers = timersByPath.remove(oldPath);
+        if (timers == null) {
+            return;
+        }
+        for (TimingWheel.Timer<Task> timer : timers) {
+            wheel.cancel(timer);
+            Task task = timer.getItem();
+            Task movedTask = new Task(task.getActionDef(), newPath,
+                    task.getNotificationType());
+            movedTask.journalOffset = task.journalOffset;
+            scheduleAt(movedTask, timer.getDeadlineMillis());
+        }
+    }
+
+    /**
+     * runDueTasks() Hand every task that has come due to the task queue and
+     * save the pending tasks if they have changed.
+     *
+     * @param tasks queue to run the due tasks on
+     * @return int number of tasks handed over
+     */
+    public int runDueTasks(TaskQueue tasks) {
+        long now = System.currentTimeMillis();
+        int count = wheel.advance(now, task -> {
+            List<TimingWheel.Timer<Task>> timers
+                    = timersByPath.get(task.getFilePath());
+            if (timers != null) {
+                timers.removeIf(timer -> timer.getItem() == task);
+                if (timers.isEmpty()) {
+                    timersByPath.remove(task.getFilePath());
+                }
+            }
+            if (timerFile != null) {
+                firedTasks.add(task);
+            }
+            tasks.addTask(task);
+        });
+        if (firedTaskFinished) {
+            firedTaskFinished = false;
+            dirty = true;
+        }
+        if (count > 0) {
+            dirty = true;
+            logger.debug("{} delayed tasks due, {} still pending", count,
+                    wheel.size());
+        }
+        if (dirty && now - lastSaveMillis >= SAVE_INTERVAL_MILLIS) {
+            save();
+        }
+        return count;
+    }
+
+    /**
+     * getMillisUntilNextCheck() Get how long the caller can wait before
+     * calling runDueTasks() again.
+     *
+     * @return long millisecs to wait, or -1 if nothing is pending
+     */
+    public long getMillisUntilNextCheck() {
+        long now = System.currentTimeMillis();
+        long wait = wheel.getMillisUntilNextDeadline(now);
+        if (dirty && timerFile != null) {
+            long untilSave = Math.max(0,
+                    lastSaveMillis + SAVE_INTERVAL_MILLIS - now);
+            wait = (wait < 0) ? untilSave : Math.min(wait, untilSave);
+        }
+        return wait;
+    }
+
+    public int getPendingCount() {
+        return wheel.size();
+    }
+
+    /**
+     * taskFinished() Note that a task handed to the TaskQueue has succeeded
+     * or been given up on, so it can be dropped from the timer file. This is
+     * called from the TaskQueue's worker threads.
+     *
+     * @param task task that finished
+     */
+    public void taskFinished(Task task) {
+        if (firedTasks.remove(task)) {
+            firedTaskFinished = true;
+        }
+    }
+
+    /**
+     * hasUnsavedChanges() Check whether tasks were scheduled, dropped or
+     * moved since the timer file was last saved.
+     *
+     * @return true if there are changes to save
+     */
+    public boolean hasUnsavedChanges() {
+        return dirty;
+    }
+
+    /**
+     * holdJournalOffset() Keep the journal from being trimmed past a change
+     * until the pending tasks are next saved.
+     *
+     * @param journalOffset journal offset of the change
+     */
+    public void holdJournalOffset(long journalOffset) {
+        if (timerFile != null && journalOffset >= 0
+                && (unsavedJournalOffset < 0
+                || journalOffset < unsavedJournalOffset)) {
+            unsavedJournalOffset = journalOffset;
+        }
+    }
+
+    /**
+     * getOldestJournalOffset() Get the journal offset of the oldest change
+     * not yet saved to the timer file. Without a timer file, this is the
+     * oldest journal offset of a pending task.
+     *
+     * @return long oldest journal offset, or -1 if everything is saved
+     */
+    public long getOldestJournalOffset() {
+        if (timerFile != null) {
+            return unsavedJournalOffset;
+        }
+        long[] oldest = {-1};
+        wheel.forEach(timer -> {
+            long offset = timer.getItem().journalOffset;
+            if (offset >= 0 && (oldest[0] < 0 || offset < oldest[0])) {
+                oldest[0] = offset;
+            }
+        });
+        return oldest[0];
+    }
+
+    /**
+     * load() Schedule the tasks saved in the timer file.
+     *
+     * @return int number of tasks loaded
+     */
+    public int load() {
+        if (timerFile == null) {
+            return 0;
+        }
+        int count = 0;
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(timerFile)))) {
+            if (input.readInt() != FILE_VERSION) {
+                logger.error("ERROR: Unknown format in timer file {}",
+                        timerFile);
+                return 0;
+            }
+            int total = input.readInt();
+            for (; count < total; count++) {
+                long deadlineMillis = input.readLong();
+                FileTypeActionDef actionDef = new FileTypeActionDef(
+                        input.readUTF(), input.readUTF(), input.readUTF(),
+                        input.readUTF(), input.readInt(), input.readLong());
+                String filePath = input.readUTF();
+                FileNotification.NotificationType type
+                        = TYPES[input.readByte()];
+                scheduleAt(new Task(actionDef, filePath, type),
+                        deadlineMillis);
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            logger.error("ERROR: Unable to read timer file {} after {} tasks",
+                    timerFile, count, e);
+        }
+        dirty = false;
+        logger.info("Loaded {} delayed tasks from {}", count, timerFile);
+        return count;
+    }
+
+    /**
+     * save() Write the pending tasks, and the tasks handed to the TaskQueue
+     * that haven't finished, to the timer file. The file is written under a
+     * temporary name, forced to disk and then renamed, so a crash mid-save
+     * leaves the previous file in place.
+     */
+    public void save() {
+        lastSaveMillis = System.currentTimeMillis();
+        if (timerFile == null) {
+            dirty = false;
+            return;
+        }
+        List<Task> fired = new ArrayList<>(firedTasks);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(FILE_VERSION);
+            output.writeInt(wheel.size() + fired.size());
+            IOException[] failure = new IOException[1];
+            wheel.forEach(timer -> {
+                if (failure[0] != null) {
+                    return;
+                }
+                try {
+                    writeTask(output, timer.getDeadlineMillis(),
+                            timer.getItem());
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            // Fired tasks are due at once when loaded again.
+            for (Task task : fired) {
+                writeTask(output, 0, task);
+            }
+        } catch (IOException e) {
+            logger.error("ERROR: Unable to save timer file {}", timerFile, e);
+            return;
+        }
+        Path tempFile = Paths.get(timerFile.toString() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            logger.error("ERROR: Unable to save timer file {}", timerFile, e);
+            return;
+        }
+        try {
+            Files.move(tempFile, timerFile,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            markSaved();
+        } catch (IOException e) {
+            logger.error("ERROR: Unable to replace timer file {}", timerFile,
+                    e);
+        }
+    }
+
+    /**
+     * Note that the pending tasks are saved, so their changes no longer
+     * need to be kept in the journal. Fired tasks keep their offsets, since
+     * the TaskQueue releases them by those offsets when they finish.
+     */
+    private void markSaved() {
+        dirty = false;
+        unsavedJournalOffset = -1;
+        wheel.forEach(timer -> timer.getItem().journalOffset = -1);
+    }
+
+    private void writeTask(DataOutputStream output, long deadlineMillis,
+            Task task) throws IOException {
+        FileTypeActionDef actionDef = task.getActionDef();
+        output.writeLong(deadlineMillis);
+        output.writeUTF(actionDef.fileTypeName);
+        output.writeUTF(actionDef.changeType);
+        output.writeUTF(actionDef.action);
+        output.writeUTF(actionDef.changePath);
+        output.writeInt(actionDef.priority);
+        output.writeLong(actionDef.delayMillis);
+        output.writeUTF(task.getFilePath());
+        output.writeByte(task.getNotificationType().ordinal());
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class holds I/O rate limits for destination directories. Each limit
+ * has a token bucket for bytes per second and one for file operations per
+ * second, and applies to everything under its directory. Where limits are
+ * nested, the one for the deepest directory applies. Limits can be added or
+ * changed while copies are running. This class is thread safe.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class DestinationRateLimiter {
+
+    /**
+     * Default burst allowance, in seconds of the rate.
+     */
+    public static final double DEFAULT_BURST_SECONDS = 1.0;
+
+    /**
+     * The limits for one destination directory.
+     */
+    public static class DestinationLimit {
+
+        final Path directory;
+        final TokenBucket bytes;
+        final TokenBucket operations;
+
+        DestinationLimit(Path directory, TokenBucket bytes,
+                TokenBucket operations) {
+            this.directory = directory;
+            this.bytes = bytes;
+            this.operations = operations;
+        }
+
+        public TokenBucket getByteBucket() {
+            return bytes;
+        }
+
+        public TokenBucket getOperationBucket() {
+            return operations;
+        }
+    }
+
+    private final Logger logger
+            = LogManager.getLogger(DestinationRateLimiter.class.getName());
+    private final CopyOnWriteArrayList<DestinationLimit> limits
+            = new CopyOnWriteArrayList<>();
+
+    /**
+     * setLimit() Set or change the limits for a destination directory.
+     *
+     * @param directory destination directory
+     * @param bytesPerSecond byte rate, 0 for no limit
+     * @param operationsPerSecond file operation rate, 0 for no limit
+     * @param burstSeconds burst allowance, in seconds of each rate
+     */
+    public synchronized void setLimit(String directory, long bytesPerSecond,
+            double operationsPerSecond, double burstSeconds) {
+        Path path = Paths.get(directory).toAbsolutePath().normalize();
+        double byteBurst = bytesPerSecond * burstSeconds;
+        double operationBurst = operationsPerSecond * burstSeconds;
+        for (DestinationLimit limit : limits) {
+            if (limit.directory.equals(path)) {
+                limit.bytes.setRate(bytesPerSecond, byteBurst);
+                limit.operations.setRate(operationsPerSecond, operationBurst);
+                logger.info("Changed rate limit for {}", path);
+                return;
+            }
+        }
+        limits.add(new DestinationLimit(path,
+                new TokenBucket(bytesPerSecond, byteBurst),
+                new TokenBucket(operationsPerSecond, operationBurst)));
+        logger.info("Rate limit for {}: {} bytes/sec, {} ops/sec", path,
+                bytesPerSecond, operationsPerSecond);
+    }
+
+    /**
+     * getLimit() Get the limits that apply to a destination path.
+     *
+     * @param dest destination file path
+     * @return DestinationLimit for the deepest limited directory holding the
+     * path, or null if none applies
+     */
+    public DestinationLimit getLimit(String dest) {
+        if (limits.isEmpty()) {
+            return null;
+        }
+        Path path = Paths.get(dest).toAbsolutePath().normalize();
+        DestinationLimit best = null;
+        for (DestinationLimit limit : limits) {
+            if (path.startsWith(limit.directory) && (best == null
+                    || limit.directory.getNameCount()
+                    > best.directory.getNameCount())) {
+                best = limit;
+            }
+        }
+        return best;
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class recovers from lost file notifications. When the OS reports that
+ * events for a directory overflowed, the directory is rescanned and compared
+ * with the FileRecordCollection, and synthetic CREATE and DELETE
+ * notifications are built for whatever changed. Files that were already in
+ * the directory when it was first watched have no records, so they are
+ * told apart using the entries the FileSystemWatcher saw at registration.
+ * A new sub-directory of a recursive watch is registered, and CREATEs are
+ * built for what is in it.
+ *
+ * DELETEs are only built for files missing from a complete listing, or when
+ * the directory itself is gone, so a directory that can't be read doesn't
+ * cause its files to be forgotten. Only the affected directory is read, so
+ * recovery cost depends on that directory's size rather than on everything
+ * being watched.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class DirectoryRescanner {
+
+    private final Logger logger
+            = LogManager.getLogger(DirectoryRescanner.class.getName());
+    private final FileRecordCollection files;
+    private final FileSystemWatcher watcher;
+
+    /**
+     * This is the DirectoryRescanner constructor.
+     *
+     * @param files FileRecordCollection to compare the directory against
+     * @param watcher watcher that registered the directories rescanned
+     */
+    DirectoryRescanner(FileRecordCollection files, FileSystemWatcher watcher) {
+        this.files = files;
+        this.watcher = watcher;
+    }
+
+    /**
+     * rescanDirectory() Compare the contents of a directory with the file
+     * records held for it and build notifications for the differences.
+     *
+     * @param directoryPath path of the directory to rescan
+     * @return FileNotificationCollection of synthetic CREATE and DELETE
+     * notifications, possibly empty
+     */
+    public FileNotificationCollection rescanDirectory(String directoryPath) {
+        FileNotificationCollection notifications
+                = new FileNotificationCollection();
+        Path directory = Paths.get(directoryPath);
+        Set<String> knownFiles
+                = files.getFileRecordPathsInDirectory(directoryPath);
+        Set<String> foundFiles = new HashSet<>();
+
+        try (DirectoryStream<Path> entries
+                = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String entryPath = entry.toString();
+                foundFiles.add(entryPath);
+                if (!knownFiles.contains(entryPath)
+                        && !watcher.wasPresentAtRegistration(entry)) {
+                    notifications.addNotification(new FileNotification(
+                            FileNotification.NotificationType.CREATE,
+                            entryPath));
+                    watcher.watchNewDirectory(entry, notifications);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // The directory is gone, so nothing we knew about in it exists.
+            logger.info("Rescanned directory {} no longer exists",
+                    directoryPath);
+        } catch (IOException | DirectoryIteratorException e) {
+            // The listing is incomplete, so a missing file may still be
+            // there. Only report the files that were found.
+            logger.error("Unable to rescan directory {} - {}",
+                    directoryPath, e.toString());
+            return notifications;
+        }
+
+        watcher.retainRegisteredEntries(directory, foundFiles);
+        for (String knownFile : knownFiles) {
+            if (!foundFiles.contains(knownFile)) {
+                notifications.addNotification(new FileNotification(
+                        FileNotification.NotificationType.DELETE,
+                        knownFile));
+            }
+        }
+
+        logger.info("Rescanned {}: {} entries on disk, {} records, "
+                + "{} notifications built", directoryPath, foundFiles.size(),
+                knownFiles.size(), notifications.getNotificationCount());
+        return notifications;
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class holds a compact snapshot of one directory's entries: name, size,
+ * modification time, file key and whether the entry is a directory. Entries
+ * are kept sorted by name in parallel arrays, so two snapshots of the same
+ * directory can be compared in a single merge pass.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+class DirectorySnapshot {
+
+    private static final DirectorySnapshot EMPTY = new DirectorySnapshot(
+            new String[0], new long[0], new long[0], new Object[0],
+            new boolean[0]);
+
+    private final String[] names;
+    private final long[] sizes;
+    private final long[] modifiedTimes;
+    private final Object[] fileKeys;
+    private final boolean[] directories;
+
+    private DirectorySnapshot(String[] names, long[] sizes,
+            long[] modifiedTimes, Object[] fileKeys, boolean[] directories) {
+        this.names = names;
+        this.sizes = sizes;
+        this.modifiedTimes = modifiedTimes;
+        this.fileKeys = fileKeys;
+        this.directories = directories;
+    }
+
+    /**
+     * Get a snapshot with no entries.
+     *
+     * @return DirectorySnapshot with no entries
+     */
+    static DirectorySnapshot empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Read the entries of a directory. Symbolic links are not followed, and
+     * entries that disappear while the directory is read are left out.
+     *
+     * @param directory directory to read
+     * @return DirectorySnapshot of the directory
+     * @throws IOException if the directory can't be read
+     */
+    static DirectorySnapshot scan(Path directory) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream
+                = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        String[] entryNames = new String[entries.size()];
+        for (int i = 0; i < entryNames.length; i++) {
+            entryNames[i] = entries.get(i).getFileName().toString();
+        }
+        Arrays.sort(entryNames);
+
+        int count = 0;
+        long[] entrySizes = new long[entryNames.length];
+        long[] entryTimes = new long[entryNames.length];
+        Object[] entryKeys = new Object[entryNames.length];
+        boolean[] entryDirs = new boolean[entryNames.length];
+        for (String name : entryNames) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(directory.resolve(name),
+                        BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            entryNames[count] = name;
+            entrySizes[count] = attrs.size();
+            entryTimes[count] = attrs.lastModifiedTime().toMillis();
+            entryKeys[count] = attrs.fileKey();
+            entryDirs[count] = attrs.isDirectory();
+            count++;
+        }
+
+        return new DirectorySnapshot(Arrays.copyOf(entryNames, count),
+                Arrays.copyOf(entrySizes, count),
+                Arrays.copyOf(entryTimes, count),
+                Arrays.copyOf(entryKeys, count),
+                Arrays.copyOf(entryDirs, count));
+    }
+
+    /**
+     * Compare this snapshot with an older snapshot of the same directory and
+     * add a notification for each entry that was created, deleted or
+     * modified. An entry whose file key changed was replaced, so it is
+     * reported as deleted and created again.
+     *
+     * @param previous older snapshot of the directory
+     * @param directory directory both snapshots were taken of
+     * @param notifications collection to add notifications to
+     * @return int number of notifications added
+     */
+    int diff(DirectorySnapshot previous, Path directory,
+            FileNotificationCollection notifications) {
+        int added = 0;
+        int i = 0;
+        int j = 0;
+        while (i < names.length || j < previous.names.length) {
+            int order;
+            if (i >= names.length) {
+                order = 1;
+            } else if (j >= previous.names.length) {
+                order = -1;
+            } else {
+                order = names[i].compareTo(previous.names[j]);
+            }
+
+            if (order < 0) {
+                addNotification(notifications, directory, names[i],
+                        FileNotification.NotificationType.CREATE);
+                added++;
+                i++;
+            } else if (order > 0) {
+                addNotification(notifications, directory, previous.names[j],
+                        FileNotification.NotificationType.DELETE);
+                added++;
+                j++;
+            } else {
+                if (fileKeys[i] != null && previous.fileKeys[j] != null
+                        && !fileKeys[i].equals(previous.fileKeys[j])) {
+                    addNotification(notifications, directory, names[i],
+                            FileNotification.NotificationType.DELETE);
+                    addNotification(notifications, directory, names[i],
+                            FileNotification.NotificationType.CREATE);
+                    added += 2;
+                } else if (!directories[i]
+                        && (sizes[i] != previous.sizes[j]
+                        || modifiedTimes[i] != previous.modifiedTimes[j])) {
+                    addNotification(notifications, directory, names[i],
+                            FileNotification.NotificationType.MODIFY);
+                    added++;
+                }
+                i++;
+                j++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Get the names of the entries that are directories.
+     *
+     * @return List of sub-directory names
+     */
+    List<String> getDirectoryNames() {
+        List<String> directoryNames = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            if (directories[i]) {
+                directoryNames.add(names[i]);
+            }
+        }
+        return directoryNames;
+    }
+
+    /**
+     * Get the number of entries in the snapshot.
+     *
+     * @return int number of entries
+     */
+    int getEntryCount() {
+        return names.length;
+    }
+
+    private static void addNotification(
+            FileNotificationCollection notifications, Path directory,
+            String name, FileNotification.NotificationType type) {
+        notifications.addNotification(new FileNotification(type,
+                directory.resolve(name).toString()));
+    }
+
+}
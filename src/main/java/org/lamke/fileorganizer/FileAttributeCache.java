@@ -0,0 +1,242 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the attributes read for a file for a short time, so the
+ * stages that handle one change, e.g. settling, building the file record,
+ * duplicate checks and moves, share one filesystem call instead of each
+ * making their own. On a network mount every call is a round trip.
+ *
+ * An entry is used until its time to live runs out or the path is
+ * invalidated, which happens when a notification arrives for the path and
+ * when the app moves or copies the file. A fresh read of a path replaces
+ * its entry, and is counted as a change when the file's key or modification
+ * time differ from the entry's. Links are not followed. Failed reads are
+ * not kept.
+ *
+ * This is a singleton class. Use the getInstance method to access the
+ * object. It is thread safe.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileAttributeCache {
+
+    /**
+     * Default millisecs an entry is used for.
+     */
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 2000;
+
+    /**
+     * Most entries kept. The least recently used go first.
+     */
+    public static final int MAX_ENTRIES = 10000;
+
+    private static FileAttributeCache attributeCacheInstance = null;
+
+    /**
+     * Attributes read for a path and when they were read.
+     */
+    private static class CachedAttributes {
+
+        final BasicFileAttributes attributes;
+        final long readNanos;
+
+        CachedAttributes(BasicFileAttributes attributes, long readNanos) {
+            this.attributes = attributes;
+            this.readNanos = readNanos;
+        }
+    }
+
+    // Guarded by this.
+    private final LinkedHashMap<Path, CachedAttributes> entries;
+    private volatile long timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(
+            DEFAULT_TIME_TO_LIVE_MILLIS);
+    private final AtomicLong readCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong changeCount = new AtomicLong();
+
+    /**
+     * Private FileAttributeCache constructor because this is a singleton
+     * class.
+     */
+    private FileAttributeCache() {
+        entries = new LinkedHashMap<Path, CachedAttributes>(256, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Path, CachedAttributes> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Public static method to get instance of FileAttributeCache class.
+     *
+     * @return FileAttributeCache instance
+     */
+    public static synchronized FileAttributeCache getInstance() {
+        if (attributeCacheInstance == null) {
+            attributeCacheInstance = new FileAttributeCache();
+        }
+        return attributeCacheInstance;
+    }
+
+    /**
+     * getAttributes() Get a file's attributes, reading them only if there
+     * is no live entry for the path.
+     *
+     * @param path file to get the attributes of
+     * @return BasicFileAttributes of the file
+     * @throws IOException if the attributes can't be read, e.g.
+     * NoSuchFileException if the file doesn't exist
+     */
+    public BasicFileAttributes getAttributes(Path path) throws IOException {
+        long now = System.nanoTime();
+        synchronized (this) {
+            CachedAttributes entry = entries.get(path);
+            if (entry != null && now - entry.readNanos < timeToLiveNanos) {
+                hitCount.incrementAndGet();
+                return entry.attributes;
+            }
+        }
+        return readAttributes(path);
+    }
+
+    /**
+     * readAttributes() Read a file's attributes and keep them for later
+     * stages, for callers that need the current values, e.g. to see
+     * whether a file is still being written.
+     *
+     * @param path file to read the attributes of
+     * @return BasicFileAttributes of the file
+     * @throws IOException if the attributes can't be read
+     */
+    public BasicFileAttributes readAttributes(Path path) throws IOException {
+        long now = System.nanoTime();
+        BasicFileAttributes attributes;
+        try {
+            readCount.incrementAndGet();
+            attributes = Files.readAttributes(path,
+                    BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            invalidate(path);
+            throw e;
+        }
+        synchronized (this) {
+            CachedAttributes old = entries.put(path,
+                    new CachedAttributes(attributes, now));
+            if (old != null && !isSameVersion(old.attributes, attributes)) {
+                changeCount.incrementAndGet();
+            }
+        }
+        return attributes;
+    }
+
+    private static boolean isSameVersion(BasicFileAttributes a,
+            BasicFileAttributes b) {
+        return Objects.equals(a.fileKey(), b.fileKey())
+                && a.lastModifiedTime().equals(b.lastModifiedTime());
+    }
+
+    /**
+     * getCachedAttributes() Get the attributes last read for a path, even
+     * if their time to live has run out, without reading the file. This is
+     * what was last known of a file that has since been deleted.
+     *
+     * @param path path to look up
+     * @return BasicFileAttributes last read, or null if there is no entry
+     */
+    public synchronized BasicFileAttributes getCachedAttributes(Path path) {
+        CachedAttributes entry = entries.get(path);
+        return (entry == null) ? null : entry.attributes;
+    }
+
+    /**
+     * invalidate() Drop the entry for a path, e.g. after the file changed.
+     *
+     * @param path path to drop
+     */
+    public synchronized void invalidate(Path path) {
+        entries.remove(path);
+    }
+
+    /**
+     * setTimeToLive() Set how long entries are used for. 0 turns the cache
+     * off.
+     *
+     * @param timeToLiveMillis millisecs an entry is used for
+     */
+    public void setTimeToLive(long timeToLiveMillis) {
+        timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(0, timeToLiveMillis));
+    }
+
+    /**
+     * getReadCount() Get the number of filesystem calls made to read
+     * attributes.
+     *
+     * @return long number of reads
+     */
+    public long getReadCount() {
+        return readCount.get();
+    }
+
+    /**
+     * getHitCount() Get the number of filesystem calls saved by using an
+     * entry.
+     *
+     * @return long number of hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * getChangeCount() Get the number of fresh reads that found a file with
+     * a different key or modification time than its entry.
+     *
+     * @return long number of changes seen
+     */
+    public long getChangeCount() {
+        return changeCount.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+}
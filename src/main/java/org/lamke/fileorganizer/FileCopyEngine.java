@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class copies files in chunks. Each chunk is handed to the OS with
+ * FileChannel.transferTo(), which can copy without bringing the data into
+ * the JVM, and between chunks the copy reports its progress and checks
+ * whether it has been cancelled or its thread interrupted. Files smaller
+ * than a chunk, and copies where transferTo() stops making progress, are
+ * copied through a direct ByteBuffer taken from a small pool instead.
+ *
+ * A copy can also compute a CRC32 of the data as it passes through, for
+ * callers that verify the copy before removing the original. Those copies
+ * always go through a buffer, since transferTo() never shows the data to
+ * the JVM.
+ *
+ * Like Files.copy(), a copy fails if the destination already exists. A copy
+ * that fails or is cancelled removes the partial destination file. This
+ * class is thread safe.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileCopyEngine {
+
+    /**
+     * Default amount copied between progress reports.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Default size of the pooled copy buffers.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Default number of copy buffers kept for reuse.
+     */
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    /**
+     * Receives progress reports from a copy.
+     */
+    public interface CopyProgressListener {
+
+        /**
+         * Called after each chunk is copied.
+         *
+         * @param bytesCopied bytes copied so far
+         * @param totalBytes size of the file
+         * @return true to carry on, false to cancel the copy
+         */
+        boolean onProgress(long bytesCopied, long totalBytes);
+    }
+
+    private final Logger logger
+            = LogManager.getLogger(FileCopyEngine.class.getName());
+    private final int chunkSize;
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> bufferPool;
+
+    /**
+     * This is the FileCopyEngine constructor.
+     *
+     * @param chunkSize bytes copied between progress reports
+     * @param bufferSize size of the pooled copy buffers
+     * @param poolSize number of copy buffers kept for reuse
+     */
+    FileCopyEngine(int chunkSize, int bufferSize, int poolSize) {
+        this.chunkSize = Math.max(64 * 1024, chunkSize);
+        this.bufferSize = Math.max(4096, bufferSize);
+        this.bufferPool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    /**
+     * copy() Copy a file.
+     *
+     * @param source file to copy
+     * @param dest path of the new copy, which must not exist
+     * @param listener receives progress reports, may be null
+     * @return long number of bytes copied
+     * @throws IOException if the copy failed, or InterruptedIOException if
+     * it was cancelled
+     */
+    public long copy(Path source, Path dest, CopyProgressListener listener)
+            throws IOException {
+        return copy(source, dest, listener, null, false);
+    }
+
+    /**
+     * copy() Copy a file, optionally computing a checksum of the data and
+     * forcing the copy to disk before returning.
+     *
+     * @param source file to copy
+     * @param dest path of the new copy, which must not exist
+     * @param listener receives progress reports, may be null
+     * @param checksum updated with every byte copied, may be null
+     * @param sync true to force the copy to disk before returning
+     * @return long number of bytes copied
+     * @throws IOException if the copy failed, or InterruptedIOException if
+     * it was cancelled
+     */
+    public long copy(Path source, Path dest, CopyProgressListener listener,
+            CRC32 checksum, boolean sync) throws IOException {
+        try (FileChannel in = FileChannel.open(source,
+                StandardOpenOption.READ)) {
+            FileChannel out = FileChannel.open(dest,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            // From here on the destination is ours to remove on failure.
+            boolean finished = false;
+            try {
+                long size = in.size();
+                long copied = (size < chunkSize || checksum != null)
+                        ? copyBuffered(in, out, 0, size, listener, checksum)
+                        : copyTransfer(in, out, size, listener);
+                if (sync) {
+                    out.force(true);
+                }
+                out.close();
+                finished = true;
+                return copied;
+            } finally {
+                if (!finished) {
+                    closeQuietly(out);
+                    deletePartial(dest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy chunk by chunk with transferTo(), switching to buffered copying
+     * if a transfer makes no progress.
+     */
+    private long copyTransfer(FileChannel in, FileChannel out, long size,
+            CopyProgressListener listener) throws IOException {
+        long position = 0;
+        while (position < size) {
+            long end = Math.min(size, position + chunkSize);
+            while (position < end) {
+                long count = in.transferTo(position, end - position, out);
+                if (count <= 0) {
+                    logger.debug("transferTo stalled at {}. Copying the rest"
+                            + " through a buffer", position);
+                    return copyBuffered(in, out, position, size, listener,
+                            null);
+                }
+                position += count;
+            }
+            checkpoint(position, size, listener);
+        }
+        return position;
+    }
+
+    /**
+     * Copy from the given position to the end through a pooled direct
+     * buffer, adding the data to the checksum if there is one.
+     */
+    private long copyBuffered(FileChannel in, FileChannel out, long position,
+            long size, CopyProgressListener listener, CRC32 checksum)
+            throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            long nextReport = position + chunkSize;
+            while (position < size) {
+                buffer.clear();
+                int read = in.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                if (checksum != null) {
+                    checksum.update(buffer);
+                    buffer.flip();
+                }
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                position += read;
+                if (position >= nextReport || position >= size) {
+                    checkpoint(position, size, listener);
+                    nextReport = position + chunkSize;
+                }
+            }
+            if (size == 0) {
+                checkpoint(0, 0, listener);
+            }
+            return position;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * checksum() Compute the CRC32 of a file's contents.
+     *
+     * @param file file to read
+     * @return long CRC32 value
+     * @throws IOException
+     */
+    public long checksum(Path file) throws IOException {
+        CRC32 checksum = new CRC32();
+        ByteBuffer buffer = acquireBuffer();
+        try (FileChannel in = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            buffer.clear();
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                checksum.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+        return checksum.getValue();
+    }
+
+    private void checkpoint(long copied, long size,
+            CopyProgressListener listener) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Copy interrupted");
+        }
+        if (listener != null && !listener.onProgress(copied, size)) {
+            throw new InterruptedIOException("Copy cancelled");
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return (buffer != null) ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        // Dropped if the pool is full.
+        bufferPool.offer(buffer);
+    }
+
+    private void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Ignoring failure to close {}", channel);
+        }
+    }
+
+    private void deletePartial(Path dest) {
+        try {
+            Files.deleteIfExists(dest);
+        } catch (IOException e) {
+            logger.error("ERROR: Unable to remove partial copy {}", dest);
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class moves files the cheapest safe way. When the source and the
+ * destination directory are on the same FileStore, the file is renamed, so
+ * no data is read or written. The rename is done by hard linking the
+ * destination and then removing the source, since creating a link fails if
+ * the destination exists, while an atomic move would replace a file created
+ * there after it was checked for. Otherwise it is copied with
+ * a checksum computed as the data passes through, the copy is forced to
+ * disk and read back to check it against the checksum, and only then is the
+ * source deleted. A copy that doesn't match is removed and the source is
+ * left in place.
+ *
+ * Counts of renames and copied moves, and of the bytes renames saved from
+ * being copied, are kept for monitoring. This class is thread safe.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileMoveStrategy {
+
+    private final Logger logger
+            = LogManager.getLogger(FileMoveStrategy.class.getName());
+    private final FileCopyEngine copyEngine;
+    private final AtomicLong renameCount = new AtomicLong();
+    private final AtomicLong copyMoveCount = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong bytesCopied = new AtomicLong();
+
+    /**
+     * This is the FileMoveStrategy constructor.
+     *
+     * @param copyEngine engine used for moves between FileStores
+     */
+    FileMoveStrategy(FileCopyEngine copyEngine) {
+        this.copyEngine = copyEngine;
+    }
+
+    /**
+     * move() Move a file. Fails if the destination already exists.
+     *
+     * @param source file to move
+     * @param dest path the file is moved to
+     * @param listener receives copy progress for moves between FileStores,
+     * may be null
+     * @throws IOException if the move failed. The source is kept unless the
+     * file has been safely written to the destination.
+     */
+    public void move(Path source, Path dest,
+            FileCopyEngine.CopyProgressListener listener) throws IOException {
+        if (Files.exists(dest, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(dest.toString());
+        }
+        if (isSameFileStore(source, dest)) {
+            long size = FileAttributeCache.getInstance()
+                    .getAttributes(source).size();
+            rename(source, dest);
+            renameCount.incrementAndGet();
+            bytesSaved.addAndGet(size);
+            logger.debug("Renamed {} to {}", source, dest);
+            return;
+        }
+        copyAndDelete(source, dest, listener);
+    }
+
+    /**
+     * Rename a file without replacing a file that appears at the
+     * destination after it was checked for.
+     */
+    private void rename(Path source, Path dest) throws IOException {
+        try {
+            Files.createLink(dest, source);
+        } catch (FileAlreadyExistsException | NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // No hard links on this store, e.g. FAT or some shares. A move
+            // without REPLACE_EXISTING still refuses an existing
+            // destination, but outside Windows it checks before renaming,
+            // so a file created in between can be replaced.
+            logger.debug("Unable to link {} to {}. Moving it", dest, source);
+            Files.move(source, dest);
+            return;
+        }
+        try {
+            Files.delete(source);
+        } catch (IOException e) {
+            // Leave one name, so a retry starts over cleanly.
+            Files.deleteIfExists(dest);
+            throw e;
+        }
+    }
+
+    private void copyAndDelete(Path source, Path dest,
+            FileCopyEngine.CopyProgressListener listener) throws IOException {
+        CRC32 checksum = new CRC32();
+        long size = copyEngine.copy(source, dest, listener, checksum, true);
+        long destChecksum = copyEngine.checksum(dest);
+        if (destChecksum != checksum.getValue()
+                || Files.size(dest) != size) {
+            Files.deleteIfExists(dest);
+            throw new IOException("Copy of " + source + " to " + dest
+                    + " failed verification");
+        }
+        try {
+            Files.delete(source);
+        } catch (IOException e) {
+            // Leave one copy, so a retry starts over cleanly.
+            Files.deleteIfExists(dest);
+            throw e;
+        }
+        copyMoveCount.incrementAndGet();
+        bytesCopied.addAndGet(size);
+        logger.debug("Moved {} to {} by copying {} bytes", source, dest,
+                size);
+    }
+
+    /**
+     * Check whether a file and the directory it is moving to are on the
+     * same FileStore.
+     */
+    private boolean isSameFileStore(Path source, Path dest) {
+        Path destDirectory = dest.toAbsolutePath().getParent();
+        if (destDirectory == null) {
+            return false;
+        }
+        try {
+            FileStore sourceStore = Files.getFileStore(source);
+            FileStore destStore = Files.getFileStore(destDirectory);
+            return sourceStore.equals(destStore);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public long getRenameCount() {
+        return renameCount.get();
+    }
+
+    public long getCopyMoveCount() {
+        return copyMoveCount.get();
+    }
+
+    /**
+     * getBytesSaved() Get the number of bytes that renames avoided copying.
+     *
+     * @return long bytes saved
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+}
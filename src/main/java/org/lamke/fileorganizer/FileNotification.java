@@ -34,20 +34,33 @@ import static java.nio.file.StandardWatchEventKinds.*;
 public class FileNotification {
 
     public enum NotificationType {
-        CREATE, DELETE, MODIFY, NONE
+        CREATE, DELETE, MODIFY, MOVE, OVERFLOW, NONE
     }
 
     public NotificationType notificationType;
     public String filePath;
+    // Previous path of the file for MOVE notifications, null otherwise.
+    public String sourcePath;
+    // Journal offset of the notification, or -1 if it wasn't journaled.
+    public long journalOffset = -1;
 
     public FileNotification(NotificationType notificationType, String filePath) {
         this.notificationType = notificationType;
         this.filePath = filePath;
+        this.sourcePath = null;
+    }
+
+    public FileNotification(NotificationType notificationType, String filePath,
+            String sourcePath) {
+        this.notificationType = notificationType;
+        this.filePath = filePath;
+        this.sourcePath = sourcePath;
     }
 
     public FileNotification() {
         this.notificationType = NotificationType.NONE;
         this.filePath = null;
+        this.sourcePath = null;
     }
 
     public void addFilePath(String path) {
@@ -58,6 +71,10 @@ public class FileNotification {
         return this.filePath;
     }
 
+    public String getSourcePath() {
+        return this.sourcePath;
+    }
+
     public void addNotificationType(NotificationType type) {
         this.notificationType = type;
     }
@@ -69,6 +86,9 @@ public class FileNotification {
     public String getNotificationAsString() {
         String notification = this.notificationType.toString() + ": "
                 + this.filePath;
+        if (this.sourcePath != null) {
+            notification = notification + " (from " + this.sourcePath + ")";
+        }
         return notification;
     }
 
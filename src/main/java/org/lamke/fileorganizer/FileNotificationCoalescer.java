@@ -0,0 +1,538 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class sits between the FileSystemWatcher and the notification
+ * processors. It merges notifications for the same path that arrive within a
+ * short window, so a large write that produces one CREATE and many MODIFY
+ * events is handled once. CREATE and MODIFY notifications are also held until
+ * the file's size and modification time have stopped changing for a quiet
+ * period, so files aren't processed while they are still being written.
+ *
+ * A DELETE and a CREATE that are pending at the same time for the same file,
+ * as recognized by its file key, are paired into a single MOVE notification
+ * so the file's record can follow it instead of being rebuilt. Since file
+ * keys can be reused once a file is gone, the created file must also have
+ * the size and modification time last cached for the deleted one. Without
+ * cached attributes for the deleted file, no pairing is done.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileNotificationCoalescer {
+
+    /**
+     * Default time a path must go without new events before its merged
+     * notification is considered for release.
+     */
+    public static final long DEFAULT_COALESCE_WINDOW_MILLIS = 250;
+
+    /**
+     * Default time a file's size and modification time must stay unchanged
+     * before a CREATE or MODIFY notification is released.
+     */
+    public static final long DEFAULT_SETTLE_QUIET_MILLIS = 1000;
+
+    private final Logger logger
+            = LogManager.getLogger(FileNotificationCoalescer.class.getName());
+    private final long coalesceWindowMillis;
+    private final long settleQuietMillis;
+    private final FileAttributeCache attributeCache
+            = FileAttributeCache.getInstance();
+    // Pending notifications by path, in order of first arrival.
+    private final LinkedHashMap<String, PendingNotification> pending;
+    // Notifications that are never merged, such as OVERFLOW.
+    private final ArrayDeque<FileNotification> passThrough;
+    // Paths of pending DELETE and CREATE notifications by file key, used to
+    // pair them into MOVE notifications.
+    private final HashMap<Object, String> deletesByFileKey;
+    private final HashMap<Object, String> createsByFileKey;
+    private final FileRecordCollection files;
+    private long receivedCount = 0;
+    private long releasedCount = 0;
+
+    /**
+     * A notification waiting for its path to go quiet.
+     */
+    private static class PendingNotification {
+
+        FileNotification.NotificationType notificationType;
+        // Set when the path was deleted before being created again, so the
+        // deletion is still reported ahead of the creation.
+        boolean deletedFirst = false;
+        // Previous path for MOVE notifications.
+        String sourcePath = null;
+        // File key when registered for MOVE pairing.
+        Object fileKey = null;
+        // Size and modification time the file had, when registered for
+        // MOVE pairing.
+        long pairSize = -1;
+        long pairModifiedMillis = -1;
+        // Journal offset of the oldest event merged into this entry, or -1.
+        long journalOffset = -1;
+        long lastEventMillis;
+        long stableSinceMillis;
+        long lastSize = -1;
+        long lastModifiedMillis = -1;
+
+        PendingNotification(FileNotification.NotificationType type,
+                long nowMillis) {
+            this.notificationType = type;
+            this.lastEventMillis = nowMillis;
+            this.stableSinceMillis = nowMillis;
+        }
+    }
+
+    /**
+     * This is the FileNotificationCoalescer constructor.
+     *
+     * @param coalesceWindowMillis time a path must be free of new events
+     * before its notification is released
+     * @param settleQuietMillis time a file's size and modification time must
+     * stay unchanged before a CREATE or MODIFY is released
+     * @param files FileRecordCollection used to find the file key of deleted
+     * files
+     */
+    FileNotificationCoalescer(long coalesceWindowMillis,
+            long settleQuietMillis, FileRecordCollection files) {
+        this.coalesceWindowMillis = coalesceWindowMillis;
+        this.settleQuietMillis = settleQuietMillis;
+        this.files = files;
+        this.pending = new LinkedHashMap<>();
+        this.passThrough = new ArrayDeque<>();
+        this.deletesByFileKey = new HashMap<>();
+        this.createsByFileKey = new HashMap<>();
+    }
+
+    /**
+     * addNotifications() Merge a collection of notifications into the
+     * pending set.
+     *
+     * @param notifications notifications to add, may be null
+     */
+    public void addNotifications(FileNotificationCollection notifications) {
+        if (notifications == null) {
+            return;
+        }
+        while (notifications.getNotificationCount() > 0) {
+            addNotification(notifications.popNotification());
+        }
+    }
+
+    /**
+     * addNotification() Merge a notification into the pending notification
+     * for its path, or start a new pending notification. Nothing keeps a
+     * reference to the given notification, so the caller can reuse it.
+     *
+     * @param notification notification to add
+     */
+    public void addNotification(FileNotification notification) {
+        addNotification(notification, -1);
+    }
+
+    /**
+     * addNotification() Merge a notification that was written to the
+     * journal. The pending entry remembers the oldest journal offset merged
+     * into it, so the journal isn't trimmed past an unreleased notification.
+     *
+     * @param notification notification to add
+     * @param journalOffset journal offset of the notification, or -1
+     */
+    public void addNotification(FileNotification notification,
+            long journalOffset) {
+        receivedCount++;
+        FileNotification.NotificationType type
+                = notification.getFileNotificationType();
+        if (type != FileNotification.NotificationType.CREATE
+                && type != FileNotification.NotificationType.DELETE
+                && type != FileNotification.NotificationType.MODIFY) {
+            // Copy it, since the caller may reuse the notification.
+            FileNotification copy = new FileNotification(type,
+                    notification.getFilePath(), notification.getSourcePath());
+            copy.journalOffset = journalOffset;
+            passThrough.add(copy);
+            return;
+        }
+
+        long now = nowMillis();
+        String path = notification.getFilePath();
+        // What was last known of a deleted file, for MOVE pairing.
+        BasicFileAttributes lastKnown
+                = (type == FileNotification.NotificationType.DELETE)
+                ? attributeCache.getCachedAttributes(Paths.get(path)) : null;
+        // Attributes read before this change are out of date.
+        attributeCache.invalidate(Paths.get(path));
+        PendingNotification entry = pending.get(path);
+        if (entry == null) {
+            entry = new PendingNotification(type, now);
+            entry.journalOffset = journalOffset;
+            pending.put(path, entry);
+            pairMove(path, entry, lastKnown);
+            return;
+        }
+
+        // The file changed, so its settle check starts over.
+        entry.lastEventMillis = now;
+        entry.stableSinceMillis = now;
+        entry.lastSize = -1;
+        switch (entry.notificationType) {
+            case CREATE:
+                if (type == FileNotification.NotificationType.DELETE) {
+                    forgetFileKey(path, entry);
+                    if (entry.deletedFirst) {
+                        entry.notificationType = type;
+                        entry.deletedFirst = false;
+                    } else {
+                        // Created and deleted again before anyone saw it.
+                        pending.remove(path);
+                    }
+                }
+                break;
+            case MODIFY:
+                if (type != FileNotification.NotificationType.MODIFY) {
+                    entry.notificationType = type;
+                    pairMove(path, entry, lastKnown);
+                }
+                break;
+            case DELETE:
+                if (type != FileNotification.NotificationType.DELETE) {
+                    forgetFileKey(path, entry);
+                    entry.notificationType = type;
+                    entry.deletedFirst = true;
+                }
+                break;
+            case MOVE:
+                if (type == FileNotification.NotificationType.DELETE) {
+                    // Moved and then deleted. The record is still held under
+                    // the old path, so report the deletion there.
+                    pending.remove(path);
+                    PendingNotification atSource
+                            = pending.get(entry.sourcePath);
+                    if (atSource == null) {
+                        atSource = new PendingNotification(type, now);
+                        pending.put(entry.sourcePath, atSource);
+                    } else if (atSource.notificationType
+                            != FileNotification.NotificationType.DELETE) {
+                        atSource.deletedFirst = true;
+                    }
+                    atSource.journalOffset = oldestOffset(
+                            atSource.journalOffset, entry.journalOffset);
+                }
+                break;
+            default:
+                entry.notificationType = type;
+        }
+    }
+
+    /**
+     * Try to pair a new CREATE or DELETE with a pending notification of the
+     * opposite kind for the same file. If they pair, the CREATE entry becomes
+     * a MOVE from the deleted path and the DELETE entry is dropped. If not,
+     * the entry is registered by file key so a later counterpart can find it.
+     * A DELETE is only registered with the deleted file's last cached
+     * attributes, which must match the created file's size and modification
+     * time.
+     */
+    private void pairMove(String path, PendingNotification entry,
+            BasicFileAttributes lastKnown) {
+        if (entry.notificationType == FileNotification.NotificationType.CREATE) {
+            BasicFileAttributes attributes = readCachedAttributes(path);
+            Object fileKey = (attributes == null) ? null : attributes.fileKey();
+            if (fileKey == null) {
+                return;
+            }
+            entry.pairSize = attributes.size();
+            entry.pairModifiedMillis = attributes.lastModifiedTime().toMillis();
+            String deletedPath = deletesByFileKey.get(fileKey);
+            if (deletedPath != null
+                    && isSameVersion(entry, pending.get(deletedPath))) {
+                deletesByFileKey.remove(fileKey);
+                PendingNotification deleted = pending.remove(deletedPath);
+                entry.journalOffset = oldestOffset(entry.journalOffset,
+                        deleted.journalOffset);
+                entry.notificationType = FileNotification.NotificationType.MOVE;
+                entry.sourcePath = deletedPath;
+                return;
+            }
+            entry.fileKey = fileKey;
+            createsByFileKey.put(fileKey, path);
+
+        } else if (entry.notificationType
+                == FileNotification.NotificationType.DELETE) {
+            FileRecord fileRecord = files.getFileRecord(path);
+            Object fileKey = (fileRecord == null)
+                    ? null : fileRecord.getFileKey();
+            if (fileKey == null || lastKnown == null
+                    || !fileKey.equals(lastKnown.fileKey())) {
+                return;
+            }
+            entry.pairSize = lastKnown.size();
+            entry.pairModifiedMillis = lastKnown.lastModifiedTime().toMillis();
+            String createdPath = createsByFileKey.get(fileKey);
+            PendingNotification created = (createdPath == null)
+                    ? null : pending.get(createdPath);
+            if (created != null && isSameVersion(entry, created)) {
+                createsByFileKey.remove(fileKey);
+                pending.remove(path);
+                created.notificationType
+                        = FileNotification.NotificationType.MOVE;
+                created.sourcePath = path;
+                created.fileKey = null;
+                created.journalOffset = oldestOffset(created.journalOffset,
+                        entry.journalOffset);
+                return;
+            }
+            entry.fileKey = fileKey;
+            deletesByFileKey.put(fileKey, path);
+        }
+    }
+
+    private static boolean isSameVersion(PendingNotification first,
+            PendingNotification second) {
+        return second != null && first.pairSize == second.pairSize
+                && first.pairModifiedMillis == second.pairModifiedMillis;
+    }
+
+    private static long oldestOffset(long first, long second) {
+        if (first < 0) {
+            return second;
+        }
+        return (second < 0) ? first : Math.min(first, second);
+    }
+
+    /**
+     * Drop an entry's MOVE pairing registration, if it has one.
+     */
+    private void forgetFileKey(String path, PendingNotification entry) {
+        if (entry.fileKey == null) {
+            return;
+        }
+        if (path.equals(deletesByFileKey.get(entry.fileKey))) {
+            deletesByFileKey.remove(entry.fileKey);
+        }
+        if (path.equals(createsByFileKey.get(entry.fileKey))) {
+            createsByFileKey.remove(entry.fileKey);
+        }
+        entry.fileKey = null;
+    }
+
+    private BasicFileAttributes readCachedAttributes(String path) {
+        try {
+            return attributeCache.getAttributes(Paths.get(path));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * releaseReadyNotifications() Remove and return every notification whose
+     * path has been quiet for the coalesce window and, for CREATE and MODIFY,
+     * whose file has settled.
+     *
+     * @return FileNotificationCollection, possibly empty
+     */
+    public FileNotificationCollection releaseReadyNotifications() {
+        FileNotificationCollection ready = new FileNotificationCollection();
+        while (!passThrough.isEmpty()) {
+            ready.addNotification(passThrough.poll());
+        }
+
+        long now = nowMillis();
+        Iterator<Map.Entry<String, PendingNotification>> it
+                = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, PendingNotification> mapEntry
+                    = it.next();
+            String path = mapEntry.getKey();
+            PendingNotification entry = mapEntry.getValue();
+            if (now - entry.lastEventMillis < coalesceWindowMillis) {
+                continue;
+            }
+
+            if (needsToSettle(entry)) {
+                if (!hasSettled(path, entry, now)) {
+                    continue;
+                }
+                if (entry.notificationType == null) {
+                    // File vanished while settling. Its DELETE event will
+                    // follow if anything needs to see it.
+                    forgetFileKey(path, entry);
+                    it.remove();
+                    if (entry.deletedFirst) {
+                        ready.addNotification(released(new FileNotification(
+                                FileNotification.NotificationType.DELETE,
+                                path), entry));
+                    }
+                    continue;
+                }
+            }
+
+            if (entry.deletedFirst) {
+                ready.addNotification(released(new FileNotification(
+                        FileNotification.NotificationType.DELETE, path),
+                        entry));
+            }
+            ready.addNotification(released(new FileNotification(
+                    entry.notificationType, path, entry.sourcePath), entry));
+            forgetFileKey(path, entry);
+            it.remove();
+        }
+
+        releasedCount += ready.getNotificationCount();
+        if (ready.getNotificationCount() > 0) {
+            logger.debug("Released {} notifications. {} received, {} released"
+                    + " in total, {} still pending",
+                    ready.getNotificationCount(), receivedCount,
+                    releasedCount, pending.size());
+        }
+        return ready;
+    }
+
+    /**
+     * Give a released notification the oldest journal offset merged into
+     * its pending entry, so the journal is only trimmed once it is handled.
+     */
+    private static FileNotification released(FileNotification notification,
+            PendingNotification entry) {
+        notification.journalOffset = entry.journalOffset;
+        return notification;
+    }
+
+    /**
+     * getMillisUntilNextCheck() Get how long the caller can wait before
+     * pending notifications need to be checked again.
+     *
+     * @return long millisecs to wait, or -1 if nothing is pending
+     */
+    public long getMillisUntilNextCheck() {
+        if (!passThrough.isEmpty()) {
+            return 0;
+        }
+        if (pending.isEmpty()) {
+            return -1;
+        }
+
+        long now = nowMillis();
+        long nextCheck = Long.MAX_VALUE;
+        for (PendingNotification entry : pending.values()) {
+            long entryCheck = entry.lastEventMillis + coalesceWindowMillis;
+            if (needsToSettle(entry) && entry.lastSize >= 0) {
+                entryCheck = Math.max(entryCheck,
+                        entry.stableSinceMillis + settleQuietMillis);
+            }
+            nextCheck = Math.min(nextCheck, entryCheck);
+        }
+        return Math.max(0, nextCheck - now);
+    }
+
+    /**
+     * getOldestJournalOffset() Get the journal offset of the oldest
+     * notification still being held. Notifications waiting to pass through
+     * are released by the next call to releaseReadyNotifications(), so only
+     * pending paths are checked.
+     *
+     * @return long oldest journal offset, or -1 if nothing held came from
+     * the journal
+     */
+    public long getOldestJournalOffset() {
+        long oldest = -1;
+        for (PendingNotification entry : pending.values()) {
+            oldest = oldestOffset(oldest, entry.journalOffset);
+        }
+        return oldest;
+    }
+
+    /**
+     * getPendingCount() Get the number of paths with notifications being
+     * held.
+     *
+     * @return int number of pending paths
+     */
+    public int getPendingCount() {
+        return pending.size() + passThrough.size();
+    }
+
+    /**
+     * Check whether a file has stopped changing. The file's size and
+     * modification time are compared with the last check, and the file is
+     * settled once they have been unchanged for the quiet period. If the file
+     * no longer exists, the entry's type is cleared and true is returned.
+     */
+    private boolean hasSettled(String path, PendingNotification entry,
+            long now) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = attributeCache.readAttributes(Paths.get(path));
+        } catch (NoSuchFileException e) {
+            entry.notificationType = null;
+            return true;
+        } catch (IOException e) {
+            logger.error("Unable to check whether {} has settled - {}",
+                    path, e.toString());
+            return true;
+        }
+
+        if (attrs.isDirectory()) {
+            return true;
+        }
+
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        if (size != entry.lastSize
+                || lastModified != entry.lastModifiedMillis) {
+            entry.lastSize = size;
+            entry.lastModifiedMillis = lastModified;
+            entry.stableSinceMillis = now;
+        }
+        return now - entry.stableSinceMillis >= settleQuietMillis;
+    }
+
+    /**
+     * Only new and modified files can still be in the middle of a write.
+     */
+    private static boolean needsToSettle(PendingNotification entry) {
+        return entry.notificationType
+                == FileNotification.NotificationType.CREATE
+                || entry.notificationType
+                == FileNotification.NotificationType.MODIFY;
+    }
+
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+}
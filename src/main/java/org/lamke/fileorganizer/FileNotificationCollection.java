@@ -23,8 +23,7 @@
  */
 package org.lamke.fileorganizer;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
 
 /**
  * This class will hold a collection of FileNotification objects. Its purpose is
@@ -34,10 +33,10 @@ import java.util.List;
  */
 public class FileNotificationCollection {
 
-    List<FileNotification> notifications;
+    ArrayDeque<FileNotification> notifications;
 
     public FileNotificationCollection() {
-        notifications = new ArrayList<>();
+        notifications = new ArrayDeque<>();
     }
 
     /**
@@ -65,13 +64,7 @@ public class FileNotificationCollection {
      *
      */
     public FileNotification popNotification() {
-        FileNotification notification = null;
-
-        if (!notifications.isEmpty()) {
-            notification = notifications.get(0);
-            notifications.remove(0);
-        }
-        return notification;
+        return notifications.poll();
 
     }
 
@@ -0,0 +1,392 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class is an append-only, memory-mapped write-ahead journal of file
+ * notifications. Every notification is appended before it is processed, and
+ * a consumer offset records how far processing has got. After a restart the
+ * entries past the consumer offset are replayed, so notifications that were
+ * received but not yet handled aren't lost.
+ *
+ * Appends are made durable in groups: the mapping is forced to disk after a
+ * configurable number of appends or when sync() is called. Offsets are
+ * logical byte positions that keep growing. When the file fills up, the
+ * consumed entries are dropped by moving the live entries to the front, and
+ * the file grows only if that isn't enough. Live entries are only moved
+ * into space that no longer holds them, and are forced to disk before the
+ * header points at them, so a crash during compaction leaves either the old
+ * or the new layout readable.
+ *
+ * Record format: int payload length, int CRC32 of the payload, then the
+ * payload: type ordinal byte, UTF path, flag byte and UTF source path if the
+ * flag is set. A zero length marks the end of the journal.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileNotificationJournal {
+
+    /**
+     * Default number of appends made durable by one force to disk.
+     */
+    public static final int DEFAULT_SYNC_BATCH_SIZE = 64;
+
+    private static final int MAGIC = 0x464F4A31;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int BASE_OFFSET_POSITION = 8;
+    private static final int CONSUMER_OFFSET_POSITION = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long INITIAL_SIZE = 16L * 1024 * 1024;
+    private static final FileNotification.NotificationType[] TYPES
+            = FileNotification.NotificationType.values();
+
+    /**
+     * Receives replayed notifications along with their journal offset.
+     */
+    public interface ReplayConsumer {
+
+        void accept(FileNotification notification, long journalOffset);
+    }
+
+    private final Logger logger
+            = LogManager.getLogger(FileNotificationJournal.class.getName());
+    private final Path journalPath;
+    private final FileChannel channel;
+    private final int syncBatchSize;
+    private final ByteArrayOutputStream payloadBytes;
+    private final DataOutputStream payload;
+    private final CRC32 crc;
+    private MappedByteBuffer buffer;
+    // Logical offset of the first byte after the header.
+    private long baseOffset;
+    private long consumerOffset;
+    private long writeOffset;
+    private int unsyncedCount = 0;
+    private boolean headerDirty = false;
+    private long appendCount = 0;
+    private long syncCount = 0;
+
+    /**
+     * Open the journal, creating it if needed, and find the end of the
+     * entries already in it.
+     *
+     * @param journalPath path of the journal file
+     * @param syncBatchSize number of appends made durable by one force
+     * @throws IOException
+     */
+    FileNotificationJournal(Path journalPath, int syncBatchSize)
+            throws IOException {
+        this.journalPath = journalPath;
+        this.syncBatchSize = Math.max(1, syncBatchSize);
+        this.payloadBytes = new ByteArrayOutputStream(256);
+        this.payload = new DataOutputStream(payloadBytes);
+        this.crc = new CRC32();
+        this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(Math.max(channel.size(), INITIAL_SIZE));
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            logger.info("Starting new journal {}", journalPath);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(BASE_OFFSET_POSITION, 0);
+            buffer.putLong(CONSUMER_OFFSET_POSITION, 0);
+            zero(HEADER_SIZE, buffer.capacity());
+            buffer.force();
+        }
+        baseOffset = buffer.getLong(BASE_OFFSET_POSITION);
+        consumerOffset = buffer.getLong(CONSUMER_OFFSET_POSITION);
+        if (baseOffset < 0 || consumerOffset < baseOffset
+                || consumerOffset - baseOffset
+                > buffer.capacity() - HEADER_SIZE) {
+            logger.error("ERROR: Journal {} has a bad header. Dropping its"
+                    + " entries", journalPath);
+            baseOffset = Math.max(0, baseOffset);
+            consumerOffset = baseOffset;
+            buffer.putLong(BASE_OFFSET_POSITION, baseOffset);
+            buffer.putLong(CONSUMER_OFFSET_POSITION, consumerOffset);
+            zero(HEADER_SIZE, buffer.capacity());
+        }
+
+        // Every entry's length and checksum are checked, so the journal ends
+        // at the first torn or corrupt entry.
+        writeOffset = consumerOffset;
+        while (readRecord(writeOffset) != null) {
+            writeOffset += RECORD_HEADER_SIZE
+                    + buffer.getInt(toPosition(writeOffset));
+        }
+        int end = toPosition(writeOffset);
+        if (end + 4 <= buffer.capacity() && buffer.getInt(end) != 0) {
+            logger.error("ERROR: Journal {} has a corrupt entry at offset {}."
+                    + " Dropping it and the entries after it", journalPath,
+                    writeOffset);
+        }
+        // Clear anything past the last good entry, such as a torn write.
+        zero(end, buffer.capacity());
+        buffer.force();
+        logger.info("Opened journal {}. {} bytes not yet processed",
+                journalPath, writeOffset - consumerOffset);
+    }
+
+    /**
+     * append() Add a notification to the end of the journal. The entry is
+     * durable once the sync batch fills or sync() is called.
+     *
+     * @param notification notification to append
+     * @return long journal offset of the entry
+     * @throws IOException
+     */
+    public long append(FileNotification notification) throws IOException {
+        payloadBytes.reset();
+        payload.writeByte(notification.notificationType.ordinal());
+        payload.writeUTF(notification.filePath);
+        payload.writeBoolean(notification.sourcePath != null);
+        if (notification.sourcePath != null) {
+            payload.writeUTF(notification.sourcePath);
+        }
+        byte[] bytes = payloadBytes.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+
+        ensureSpace(RECORD_HEADER_SIZE + bytes.length);
+        long offset = writeOffset;
+        int position = toPosition(offset);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(bytes);
+        // Length goes in last so a torn entry reads as the end.
+        buffer.putInt(position, bytes.length);
+        writeOffset += RECORD_HEADER_SIZE + bytes.length;
+        appendCount++;
+
+        unsyncedCount++;
+        if (unsyncedCount >= syncBatchSize) {
+            sync();
+        }
+        return offset;
+    }
+
+    /**
+     * sync() Force appended entries and the consumer offset to disk.
+     */
+    public void sync() {
+        if (unsyncedCount == 0 && !headerDirty) {
+            return;
+        }
+        buffer.force();
+        unsyncedCount = 0;
+        headerDirty = false;
+        syncCount++;
+    }
+
+    /**
+     * commitConsumerOffset() Record that every entry before the given offset
+     * has been processed. The offset is made durable with the next sync.
+     *
+     * @param offset journal offset of the oldest entry still needed
+     */
+    public void commitConsumerOffset(long offset) {
+        offset = Math.min(offset, writeOffset);
+        if (offset <= consumerOffset) {
+            return;
+        }
+        consumerOffset = offset;
+        buffer.putLong(CONSUMER_OFFSET_POSITION, consumerOffset);
+        headerDirty = true;
+    }
+
+    /**
+     * getEndOffset() Get the offset the next entry will be appended at.
+     * Committing this offset marks everything as processed.
+     *
+     * @return long journal end offset
+     */
+    public long getEndOffset() {
+        return writeOffset;
+    }
+
+    /**
+     * replay() Pass every entry after the consumer offset to the consumer,
+     * oldest first.
+     *
+     * @param consumer called once for each unprocessed entry
+     * @return int number of entries replayed
+     */
+    public int replay(ReplayConsumer consumer) {
+        int count = 0;
+        long offset = consumerOffset;
+        while (offset < writeOffset) {
+            FileNotification notification = readRecord(offset);
+            if (notification == null) {
+                break;
+            }
+            consumer.accept(notification, offset);
+            offset += RECORD_HEADER_SIZE + buffer.getInt(toPosition(offset));
+            count++;
+        }
+        logger.info("Replayed {} notifications from journal {}", count,
+                journalPath);
+        return count;
+    }
+
+    /**
+     * close() Sync and close the journal.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        sync();
+        logger.info("Closing journal {}. {} appends, {} syncs", journalPath,
+                appendCount, syncCount);
+        channel.close();
+    }
+
+    public long getAppendCount() {
+        return appendCount;
+    }
+
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Read and check the entry at the given offset.
+     *
+     * @return FileNotification, or null if there is no valid entry there
+     */
+    private FileNotification readRecord(long offset) {
+        int position = toPosition(offset);
+        if (position + RECORD_HEADER_SIZE > buffer.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0
+                || position + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.get(bytes);
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+            return null;
+        }
+
+        try {
+            DataInputStream input
+                    = new DataInputStream(new ByteArrayInputStream(bytes));
+            FileNotification.NotificationType type = TYPES[input.readByte()];
+            String filePath = input.readUTF();
+            String sourcePath = input.readBoolean() ? input.readUTF() : null;
+            return new FileNotification(type, filePath, sourcePath);
+        } catch (ArrayIndexOutOfBoundsException | IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Make room for an entry of the given size, first by dropping processed
+     * entries from the front of the file and then by growing it.
+     */
+    private void ensureSpace(int recordSize) throws IOException {
+        // Keep room for the zero length that marks the end.
+        long needed = (long) toPosition(writeOffset) + recordSize + 4;
+        if (needed <= buffer.capacity()) {
+            return;
+        }
+
+        int from = toPosition(consumerOffset);
+        int liveBytes = (int) (writeOffset - consumerOffset);
+        // The live entries and the end marker after them must fit in front
+        // of where the live entries are now, so moving them doesn't
+        // overwrite entries the current header still points at.
+        if (HEADER_SIZE + liveBytes + 4 <= from) {
+            int oldEnd = toPosition(writeOffset);
+            byte[] chunk = new byte[64 * 1024];
+            for (int moved = 0; moved < liveBytes; moved += chunk.length) {
+                int count = Math.min(chunk.length, liveBytes - moved);
+                buffer.position(from + moved);
+                buffer.get(chunk, 0, count);
+                buffer.position(HEADER_SIZE + moved);
+                buffer.put(chunk, 0, count);
+            }
+            zero(HEADER_SIZE + liveBytes, from);
+            // The moved entries must be on disk before the header points at
+            // them.
+            buffer.force();
+            baseOffset = consumerOffset;
+            buffer.putLong(BASE_OFFSET_POSITION, baseOffset);
+            buffer.force();
+            zero(from, oldEnd);
+            logger.debug("Compacted journal {} to {} live bytes",
+                    journalPath, liveBytes);
+
+            needed = (long) toPosition(writeOffset) + recordSize + 4;
+            if (needed <= buffer.capacity()) {
+                return;
+            }
+        }
+
+        long newSize = Math.max(needed, 2L * buffer.capacity());
+        if (newSize > Integer.MAX_VALUE) {
+            throw new IOException("Journal " + journalPath + " is full");
+        }
+        buffer.force();
+        map(newSize);
+        logger.info("Grew journal {} to {} bytes", journalPath, newSize);
+    }
+
+    private void map(long size) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private int toPosition(long offset) {
+        return (int) (HEADER_SIZE + (offset - baseOffset));
+    }
+
+    private void zero(int from, int to) {
+        byte[] zeros = new byte[Math.min(64 * 1024, Math.max(0, to - from))];
+        for (int position = from; position < to; position += zeros.length) {
+            buffer.position(position);
+            buffer.put(zeros, 0, Math.min(zeros.length, to - position));
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class runs the event pump for the file watchers. A dedicated thread
+ * per watcher shard blocks until a change is seen and then hands the
+ * resulting notifications to the processing side through one shared
+ * FileNotificationRingBuffer,
+ * so changes are picked up as soon as they arrive and nothing wakes up while
+ * the watched paths are idle.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileNotificationPump {
+
+    private final Logger logger
+            = LogManager.getLogger(FileNotificationPump.class.getName());
+    private final FileWatcher[] watchers;
+    private final FileNotificationRingBuffer notificationRing;
+    private final List<Thread> pumpThreads;
+    private volatile boolean running = false;
+
+    /**
+     * This is the FileNotificationPump constructor.
+     *
+     * @param notificationRing queue the pump threads hand notifications to
+     * @param watchers file watchers to pull notifications from
+     */
+    FileNotificationPump(FileNotificationRingBuffer notificationRing,
+            FileWatcher... watchers) {
+        this.watchers = watchers;
+        this.notificationRing = notificationRing;
+        this.pumpThreads = new ArrayList<>();
+    }
+
+    /**
+     * Start one pump thread for each watcher shard. The threads are daemons
+     * so they won't keep the app alive on their own.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (FileWatcher watcher : watchers) {
+            for (int shard = 0; shard < watcher.getShardCount(); shard++) {
+                final int pumpShard = shard;
+                Thread pumpThread = new Thread(() -> run(watcher, pumpShard),
+                        "file-notification-pump-" + pumpThreads.size());
+                pumpThread.setDaemon(true);
+                pumpThread.start();
+                pumpThreads.add(pumpThread);
+            }
+        }
+        logger.info("File notification pump started with {} threads",
+                pumpThreads.size());
+    }
+
+    /**
+     * Stop the pump threads and wait for them to exit.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Thread pumpThread : pumpThreads) {
+            pumpThread.interrupt();
+        }
+        for (Thread pumpThread : pumpThreads) {
+            pumpThread.join();
+        }
+        pumpThreads.clear();
+        logger.info("File notification pump stopped");
+    }
+
+    /**
+     * Pump loop for one shard. Blocks on the watcher shard and queues every
+     * notification it returns. The loop ends when the watcher returns null,
+     * which it only does once the thread is interrupted or the watcher is
+     * closed, so a closed watcher doesn't leave the thread spinning.
+     */
+    private void run(FileWatcher watcher, int shard) {
+        while (running && !Thread.currentThread().isInterrupted()) {
+            FileNotificationCollection notifications
+                    = watcher.getFileNotificationsBlock(shard);
+            if (notifications == null) {
+                if (running && !Thread.currentThread().isInterrupted()) {
+                    logger.error("ERROR: Watcher shard {} was closed. Stopping"
+                            + " {}", shard, Thread.currentThread().getName());
+                }
+                return;
+            }
+
+            try {
+                while (notifications.getNotificationCount() > 0) {
+                    notificationRing.publish(notifications.popNotification());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * drainNotifications() Wait up to the given timeout for notifications,
+     * then pass each one that is queued to the consumer in arrival order.
+     * The notification passed to the consumer is reused once the consumer
+     * returns, so copy anything that needs to be kept.
+     *
+     * @param millisecs max time to wait, 0 to not wait, negative to wait
+     * until a notification arrives
+     * @param consumer called once for each notification
+     * @return int number of notifications drained
+     * @throws InterruptedException
+     */
+    public int drainNotifications(long millisecs,
+            Consumer<FileNotification> consumer) throws InterruptedException {
+        return notificationRing.drainTo(millisecs, consumer);
+    }
+
+    /**
+     * getNotificationRing() Get the queue between the pump threads and the
+     * processing side, for its depth and overload counters.
+     *
+     * @return FileNotificationRingBuffer used by the pump
+     */
+    public FileNotificationRingBuffer getNotificationRing() {
+        return notificationRing;
+    }
+
+}
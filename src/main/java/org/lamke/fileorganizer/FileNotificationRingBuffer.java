@@ -0,0 +1,424 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class is a bounded channel for file notifications between the pump
+ * threads and the thread that processes them. The notifications live in a
+ * fixed ring of FileNotification slots that are allocated once and reused,
+ * so passing an event through the channel doesn't allocate. Any number of
+ * threads can publish, and a single thread drains.
+ *
+ * A slot handed to the drain consumer is only valid until the consumer
+ * returns. Consumers that keep a notification must copy what they need.
+ *
+ * What happens when the ring is full depends on the overload policy. BLOCK
+ * makes publishers wait for the consumer. COALESCE first tries to fold the
+ * new notification into a queued one for the same path and only waits if it
+ * can't. SPILL moves the oldest queued notifications to a segment file on
+ * local disk, which the consumer reads back before the rest of the ring.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileNotificationRingBuffer {
+
+    /**
+     * Default number of slots in the ring.
+     */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /**
+     * What publishers do when the ring is full.
+     */
+    public enum OverloadPolicy {
+        BLOCK, COALESCE, SPILL
+    }
+
+    // Max notifications read back from the spill segment per drain.
+    private static final int SPILL_READ_BATCH = 4096;
+    // Time to wait before reading the spill segment again after an error.
+    private static final long SPILL_RETRY_MILLIS = 1000;
+
+    private final Logger logger
+            = LogManager.getLogger(FileNotificationRingBuffer.class.getName());
+    private final FileNotification[] slots;
+    private final int mask;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // Sequence numbers of the next slot to drain and the next slot to fill.
+    // Slots between them hold published notifications.
+    private long head = 0;
+    private long tail = 0;
+    // End of the slots handed to the consumer by the drain in progress.
+    // Slots before this can't be changed until the drain frees them.
+    private long drainEnd = 0;
+    private final OverloadPolicy overloadPolicy;
+    // Sequence of the newest queued notification for each path. Only kept
+    // for the COALESCE policy.
+    private final HashMap<String, Long> sequenceByPath;
+    // Notifications moved out of the ring for the SPILL policy.
+    private final NotificationSpillSegment spillSegment;
+    private boolean overloaded = false;
+    private long blockedCount = 0;
+    private long coalescedCount = 0;
+    private long spilledCount = 0;
+
+    /**
+     * This is the FileNotificationRingBuffer constructor for a ring that
+     * blocks publishers when full.
+     *
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    FileNotificationRingBuffer(int capacity) {
+        this(capacity, OverloadPolicy.BLOCK, null);
+    }
+
+    /**
+     * This is the FileNotificationRingBuffer constructor.
+     *
+     * @param capacity number of slots, rounded up to a power of two
+     * @param overloadPolicy what publishers do when the ring is full
+     * @param spillPath segment file for the SPILL policy, ignored otherwise
+     */
+    FileNotificationRingBuffer(int capacity, OverloadPolicy overloadPolicy,
+            Path spillPath) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new FileNotification[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new FileNotification();
+        }
+        mask = size - 1;
+
+        sequenceByPath = (overloadPolicy == OverloadPolicy.COALESCE)
+                ? new HashMap<>() : null;
+        NotificationSpillSegment segment = null;
+        if (overloadPolicy == OverloadPolicy.SPILL) {
+            try {
+                segment = new NotificationSpillSegment(spillPath);
+            } catch (IOException e) {
+                logger.error("Unable to open spill file {} - {}. Blocking "
+                        + "when full instead", spillPath, e.toString());
+                overloadPolicy = OverloadPolicy.BLOCK;
+            }
+        }
+        this.spillSegment = segment;
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    /**
+     * publish() Copy a notification into the next free slot, waiting for
+     * the consumer to free one if the ring is full.
+     *
+     * @param type notification type
+     * @param filePath path of the file
+     * @param sourcePath previous path for MOVE notifications, else null
+     * @throws InterruptedException
+     */
+    public void publish(FileNotification.NotificationType type,
+            String filePath, String sourcePath) throws InterruptedException {
+        lock.lock();
+        try {
+            while (tail - head == slots.length) {
+                if (!overloaded) {
+                    overloaded = true;
+                    logger.warn("Notification queue full at {}. Applying {} "
+                            + "policy", slots.length, overloadPolicy);
+                }
+                if (overloadPolicy == OverloadPolicy.COALESCE
+                        && coalesce(type, filePath, sourcePath)) {
+                    coalescedCount++;
+                    return;
+                }
+                if (overloadPolicy == OverloadPolicy.SPILL && spill()) {
+                    continue;
+                }
+                blockedCount++;
+                notFull.await();
+            }
+            FileNotification slot = slots[(int) (tail & mask)];
+            slot.notificationType = type;
+            slot.filePath = filePath;
+            slot.sourcePath = sourcePath;
+            if (sequenceByPath != null) {
+                sequenceByPath.put(filePath, tail);
+            }
+            tail++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fold a notification into the newest queued notification for the same
+     * path, if that one isn't already being drained and already covers it.
+     * Called with the lock held.
+     */
+    private boolean coalesce(FileNotification.NotificationType type,
+            String filePath, String sourcePath) {
+        Long sequence = sequenceByPath.get(filePath);
+        if (sequence == null || sequence < drainEnd || sourcePath != null) {
+            return false;
+        }
+
+        FileNotification queued = slots[(int) (sequence & mask)];
+        if (queued.sourcePath != null) {
+            return false;
+        }
+        return (queued.notificationType == type)
+                || (queued.notificationType
+                == FileNotification.NotificationType.CREATE
+                && type == FileNotification.NotificationType.MODIFY);
+    }
+
+    /**
+     * Move every queued notification that isn't being drained to the spill
+     * segment. Called with the lock held.
+     *
+     * @return true if any slots were freed
+     */
+    private boolean spill() {
+        if (drainEnd == tail) {
+            return false;
+        }
+        try {
+            for (long sequence = drainEnd; sequence < tail; sequence++) {
+                FileNotification slot = slots[(int) (sequence & mask)];
+                spillSegment.write(slot);
+                slot.filePath = null;
+                slot.sourcePath = null;
+            }
+            spillSegment.flush();
+        } catch (IOException e) {
+            logger.error("Unable to spill notifications to {} - {}",
+                    spillSegment.getPath(), e.toString());
+            return false;
+        }
+        spilledCount += tail - drainEnd;
+        tail = drainEnd;
+        return true;
+    }
+
+    /**
+     * publish() Copy a notification into the next free slot, waiting for
+     * the consumer to free one if the ring is full.
+     *
+     * @param notification notification to copy
+     * @throws InterruptedException
+     */
+    public void publish(FileNotification notification)
+            throws InterruptedException {
+        publish(notification.notificationType, notification.filePath,
+                notification.sourcePath);
+    }
+
+    /**
+     * drainTo() Wait up to the given timeout for notifications, then pass
+     * every published notification to the consumer in order and free the
+     * slots. The consumer runs without holding the ring's lock, so
+     * publishers are not blocked while it works. If spilled notifications
+     * can't be read back, nothing is drained, so newer notifications never
+     * overtake them.
+     *
+     * @param millisecs max time to wait, 0 to not wait, negative to wait
+     * until something is published
+     * @param consumer called once for each notification
+     * @return int number of notifications drained
+     * @throws InterruptedException
+     */
+    public int drainTo(long millisecs, Consumer<FileNotification> consumer)
+            throws InterruptedException {
+        long first;
+        long last;
+        List<FileNotification> spilled = null;
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(millisecs);
+            while (tail == head && !hasSpilled()) {
+                if (millisecs < 0) {
+                    notEmpty.await();
+                } else {
+                    if (nanos <= 0) {
+                        return 0;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+            }
+
+            // Spilled notifications are older than anything in the ring,
+            // so the ring isn't drained until they have been read back.
+            if (hasSpilled()) {
+                try {
+                    spilled = spillSegment.read(SPILL_READ_BATCH);
+                } catch (IOException e) {
+                    logger.error("Unable to read spilled notifications "
+                            + "from {} - {}", spillSegment.getPath(),
+                            e.toString());
+                    long retryMillis = (millisecs < 0) ? SPILL_RETRY_MILLIS
+                            : Math.min(millisecs, SPILL_RETRY_MILLIS);
+                    notEmpty.await(retryMillis, TimeUnit.MILLISECONDS);
+                    return 0;
+                }
+            }
+            first = head;
+            last = (spilled == null) ? tail : head;
+            drainEnd = last;
+        } finally {
+            lock.unlock();
+        }
+
+        if (spilled != null) {
+            spilled.forEach(consumer);
+            return spilled.size();
+        }
+
+        // Publishers only fill slots past tail and never change slots
+        // before drainEnd, so these slots are safe to read unlocked.
+        for (long sequence = first; sequence < last; sequence++) {
+            consumer.accept(slots[(int) (sequence & mask)]);
+        }
+
+        lock.lock();
+        try {
+            for (long sequence = first; sequence < last; sequence++) {
+                FileNotification slot = slots[(int) (sequence & mask)];
+                if (sequenceByPath != null) {
+                    sequenceByPath.remove(slot.filePath, sequence);
+                }
+                slot.filePath = null;
+                slot.sourcePath = null;
+            }
+            head = last;
+            if (overloaded && (tail - head) < slots.length / 2) {
+                overloaded = false;
+                logger.info("Notification queue recovered. {} blocked, {} "
+                        + "coalesced, {} spilled so far", blockedCount,
+                        coalescedCount, spilledCount);
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return (int) (last - first);
+    }
+
+    private boolean hasSpilled() {
+        return (spillSegment != null) && spillSegment.hasPending();
+    }
+
+    /**
+     * getDepth() Get the number of notifications waiting to be drained,
+     * including any spilled to disk.
+     *
+     * @return long number of queued notifications
+     */
+    public long getDepth() {
+        lock.lock();
+        try {
+            long depth = tail - head;
+            if (spillSegment != null) {
+                depth += spillSegment.getPendingCount();
+            }
+            return depth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * getBlockedCount() Get the number of times a publisher had to wait for
+     * the consumer because the ring was full.
+     *
+     * @return long number of waits
+     */
+    public long getBlockedCount() {
+        lock.lock();
+        try {
+            return blockedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * getCoalescedCount() Get the number of notifications dropped because a
+     * queued notification for the same path already covered them.
+     *
+     * @return long number of coalesced notifications
+     */
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalescedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * getSpilledCount() Get the number of notifications moved to the spill
+     * segment on disk.
+     *
+     * @return long number of spilled notifications
+     */
+    public long getSpilledCount() {
+        lock.lock();
+        try {
+            return spilledCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * getOverloadPolicy() Get what publishers do when the ring is full.
+     *
+     * @return OverloadPolicy in use
+     */
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    /**
+     * getCapacity() Get the number of slots in the ring.
+     *
+     * @return int ring capacity
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+}
@@ -24,33 +24,46 @@
 package org.lamke.fileorganizer;
 
 import java.io.IOException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * This class represents a file (including a directory) on the file system.
  *
+ * A collection can hold millions of records, so each record is kept small.
+ * The path is held as the PathDictionary id of the parent directory plus the
+ * file name, and anything that is the same for every record, such as the
+ * logger and the action descriptions, is shared.
+ *
  * @author Chris Lamke <https://chris.lamke.org>
  */
 public class FileRecord {
 
-    private final org.apache.logging.log4j.Logger logger
+    private static final Logger logger
             = LogManager.getLogger(FileRecord.class.getName());
+    static final String UNKNOWN_TYPE = "Unknown";
+    static final String CREATE_FILE_ACTION = "Move file to new location";
+    static final String MODIFY_FILE_ACTION = "Log that file was modified";
+    static final String DELETE_FILE_ACTION = "Log that file was deleted";
     private boolean isDir = false;
     private boolean buildSuccessful = false;
     // All supported file types are listed here.
     //public enum FileRecord {
     //    GIF, JPG, PNG, WORD, PPT, XLS, TXT, XML, PDF
     //}
-    String filePath = null;
+    // PathDictionary id of the parent directory.
+    int directoryId = PathDictionary.NO_DIRECTORY;
     String fileName = null;
     FileNotification.NotificationType notificationType
             = FileNotification.NotificationType.NONE;
-    String fileTypeName = "Unknown";
-    String createFileAction = "Move file to new location";
-    String modifyFileAction = "Log that file was modified";
-    String deleteFileAction = "Log that file was deleted";
+    // One of the shared type codes from FileTypeDecider.
+    String fileTypeName = UNKNOWN_TYPE;
+    // Identity of the file on disk, used to recognize it after a rename.
+    Object fileKey = null;
+    // Content hashes, created when an action first needs them.
+    ContentHash contentHash = null;
 
     public FileRecord() {
 
@@ -58,44 +71,106 @@ public class FileRecord {
 
     public FileRecord(String filePath,
             FileNotification.NotificationType notificationType) {
-        this.filePath = filePath;
+        setPath(filePath);
         this.notificationType = notificationType;
     }
 
+    /**
+     * buildFileRecord() Fill in the record from the file on disk. Whether
+     * the file exists, whether it's a directory and its identity all come
+     * from one attribute read, which is usually already in the
+     * FileAttributeCache from the settle check.
+     *
+     * @return boolean true if the file exists, false otherwise
+     */
     public boolean buildFileRecord() {
-        FileSystemUtilities fileUtilities = FileSystemUtilities.getInstance();
-
-        // Verify if path exists and whether it's a directory
-        if (fileUtilities.filePathExists(filePath)) {
-            buildSuccessful = true;
-            isDir = fileUtilities.isDirectory(filePath);
-            fileName = fileUtilities.getFileNameFromPath(filePath);
-            try {
-                getFileRecordType();
-            } catch (IOException ex) {
-                logger.info(
-                        "Exception: Failed to determine type of {}",
-                        filePath);
-            }
+        String filePath = getPath();
+        BasicFileAttributes attributes;
+        try {
+            attributes = FileAttributeCache.getInstance().getAttributes(
+                    Paths.get(filePath));
+        } catch (IOException ex) {
+            logger.debug("Unable to read attributes of {} - {}", filePath,
+                    ex.toString());
+            return buildSuccessful;
+        }
+
+        buildSuccessful = true;
+        isDir = attributes.isDirectory();
+        fileKey = attributes.fileKey();
+        try {
+            getFileRecordType();
+        } catch (IOException ex) {
+            logger.info(
+                    "Exception: Failed to determine type of {}",
+                    filePath);
         }
         return buildSuccessful;
     }
 
     public String getFileRecordType() throws IOException {
-        if (fileTypeName.equals("Unknown")) {
+        if (fileTypeName.equals(UNKNOWN_TYPE)) {
             FileTypeDecider decider = FileTypeDecider.getInstance();
-            fileTypeName = decider.getFileType(filePath);
+            String typeCode = decider.getFileType(getPath());
+            fileTypeName = (typeCode == null) ? UNKNOWN_TYPE : typeCode;
         }
 
         return fileTypeName;
     }
 
+    public String getFileTypeName() {
+        return fileTypeName;
+    }
+
+    /**
+     * getPath() Get the full path of the file. The path is rebuilt from the
+     * directory id and name on each call, so callers that need it often
+     * should keep it.
+     *
+     * @return String full path
+     */
     public String getPath() {
-        return filePath;
+        return PathDictionary.getInstance().getPath(directoryId, fileName);
     }
 
     public String getFileName() {
         return fileName;
     }
+
+    public int getDirectoryId() {
+        return directoryId;
+    }
+
+    public Object getFileKey() {
+        return fileKey;
+    }
+
+    /**
+     * getContentHash() Get the record's content hashes, which are filled in
+     * as duplicate checks need them.
+     *
+     * @return ContentHash for this file
+     */
+    public ContentHash getContentHash() {
+        if (contentHash == null) {
+            contentHash = new ContentHash();
+        }
+        return contentHash;
+    }
+
+    public boolean isDirectory() {
+        return isDir;
+    }
+
+    /**
+     * Point this record at the path the file was renamed or moved to.
+     *
+     * @param newPath new path of the file
+     */
+    void setPath(String newPath) {
+        directoryId = PathDictionary.getInstance().getDirectoryId(
+                PathDictionary.getParentPath(newPath));
+        fileName = PathDictionary.getName(newPath);
+    }
     
 }
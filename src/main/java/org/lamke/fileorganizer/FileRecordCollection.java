@@ -23,10 +23,12 @@
  */
 package org.lamke.fileorganizer;
 
-import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * This class holds all the files being processed by the file organizer app. It
@@ -35,19 +37,29 @@ import java.util.HashMap;
  * notification. This is a singleton class. Use the getInstance method to access
  * the object.
  *
+ * Records are held by the PathDictionary id of their parent directory and
+ * then by file name, so full path strings aren't kept for every file and
+ * the records of one directory can be found without walking the whole
+ * collection.
+ *
  * @author Chris Lamke <https://chris.lamke.org>
  */
 public class FileRecordCollection {
 
     private static FileRecordCollection fileStoreInstance = null;
-    HashMap<String, FileRecord> files;
+    private final PathDictionary pathDictionary;
+    // Records by file name for each directory, indexed by directory id.
+    // Directories with no records have a null entry.
+    ArrayList<HashMap<String, FileRecord>> filesByDirectory;
+    int fileCount = 0;
 
     /**
      * Private FileStore constructor because this is a singleton class.
      *
      */
     private FileRecordCollection() {
-        files = new HashMap<>();
+        pathDictionary = PathDictionary.getInstance();
+        filesByDirectory = new ArrayList<>();
     }
 
     /**
@@ -70,7 +82,21 @@ public class FileRecordCollection {
      * @param FileRecord fileRecord FileRecord object
      */
     public void addFileRecord(String filePath, FileRecord fileRecord) {
-        files.put(filePath, fileRecord);
+        int directoryId = pathDictionary.getDirectoryId(
+                PathDictionary.getParentPath(filePath));
+        while (filesByDirectory.size() <= directoryId) {
+            filesByDirectory.add(null);
+        }
+        HashMap<String, FileRecord> directoryFiles
+                = filesByDirectory.get(directoryId);
+        if (directoryFiles == null) {
+            directoryFiles = new HashMap<>(4);
+            filesByDirectory.set(directoryId, directoryFiles);
+        }
+        if (directoryFiles.put(PathDictionary.getName(filePath),
+                fileRecord) == null) {
+            fileCount++;
+        }
     }
 
     /**
@@ -79,7 +105,7 @@ public class FileRecordCollection {
      * @param fileRecord
      */
     public void removeFileRecord(FileRecord fileRecord) {
-        files.remove(fileRecord.getPath());
+        removeFileRecord(fileRecord.getPath());
     }
 
     /**
@@ -88,7 +114,72 @@ public class FileRecordCollection {
      * @param filePath path of file to remove
      */
     public void removeFileRecord(String filePath) {
-        files.remove(filePath);
+        int directoryId = pathDictionary.findDirectoryId(
+                PathDictionary.getParentPath(filePath));
+        HashMap<String, FileRecord> directoryFiles
+                = getDirectoryFiles(directoryId);
+        if (directoryFiles == null
+                || directoryFiles.remove(PathDictionary.getName(filePath))
+                == null) {
+            return;
+        }
+
+        fileCount--;
+        if (directoryFiles.isEmpty()) {
+            filesByDirectory.set(directoryId, null);
+        }
+    }
+
+    /**
+     * moveFileRecord() Re-key an existing record after its file was renamed
+     * or moved, keeping everything already learned about the file. For a
+     * directory, the records of everything under it are moved as well.
+     *
+     * @param oldPath path the record is held under
+     * @param newPath path the file now has
+     * @return true if a record was moved, false if none was held
+     */
+    public boolean moveFileRecord(String oldPath, String newPath) {
+        FileRecord fileRecord = getFileRecord(oldPath);
+        if (fileRecord == null) {
+            return false;
+        }
+
+        removeFileRecord(oldPath);
+        fileRecord.setPath(newPath);
+        addFileRecord(newPath, fileRecord);
+
+        Set<String> childPaths = getFileRecordPathsInDirectory(oldPath);
+        if (!childPaths.isEmpty()) {
+            int newDirectoryId = pathDictionary.getDirectoryId(newPath);
+            for (String childPath : childPaths) {
+                moveFileRecord(childPath, pathDictionary.getPath(
+                        newDirectoryId, PathDictionary.getName(childPath)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * getFileRecordPathsInDirectory() Get the paths of all records whose
+     * file lives directly in the given directory.
+     *
+     * @param directoryPath path of the directory
+     * @return Set of record paths, empty if there are none
+     */
+    public Set<String> getFileRecordPathsInDirectory(String directoryPath) {
+        int directoryId = pathDictionary.findDirectoryId(
+                Paths.get(directoryPath).toString());
+        HashMap<String, FileRecord> directoryFiles
+                = getDirectoryFiles(directoryId);
+        if (directoryFiles == null) {
+            return Collections.emptySet();
+        }
+        Set<String> paths = new HashSet<>();
+        for (String name : directoryFiles.keySet()) {
+            paths.add(pathDictionary.getPath(directoryId, name));
+        }
+        return paths;
     }
 
         /**
@@ -98,7 +189,13 @@ public class FileRecordCollection {
      * @return FileRecord matching filePath string
      */
     public FileRecord getFileRecord(String filePath) {
-        return files.get(filePath);
+        HashMap<String, FileRecord> directoryFiles = getDirectoryFiles(
+                pathDictionary.findDirectoryId(
+                        PathDictionary.getParentPath(filePath)));
+        if (directoryFiles == null) {
+            return null;
+        }
+        return directoryFiles.get(PathDictionary.getName(filePath));
     }
     
     /**
@@ -108,7 +205,7 @@ public class FileRecordCollection {
      * @return true if record exists, false otherwise
      */
     public boolean recordExists(FileRecord fileRecord) {
-        return files.containsKey(fileRecord.getPath());
+        return getFileRecord(fileRecord.getPath()) != null;
     }
 
     /**
@@ -118,7 +215,7 @@ public class FileRecordCollection {
      * @return true if record exists, false otherwise
      */
     public boolean recordExists(String filePath) {
-        return files.containsKey(filePath);
+        return getFileRecord(filePath) != null;
     }
 
     /**
@@ -128,7 +225,14 @@ public class FileRecordCollection {
      * @return int number of notifications in this collection
      */
     public int getFileRecordCount() {
-        return files.size();
+        return fileCount;
+    }
+
+    private HashMap<String, FileRecord> getDirectoryFiles(int directoryId) {
+        if (directoryId < 0 || directoryId >= filesByDirectory.size()) {
+            return null;
+        }
+        return filesByDirectory.get(directoryId);
     }
 
 }
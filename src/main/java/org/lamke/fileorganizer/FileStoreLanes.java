@@ -0,0 +1,416 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class runs tasks in lanes by the file stores they read from and
+ * write to, e.g. a local disk and a network share, and limits the number
+ * of tasks using each store at once. Each pair of source and destination
+ * stores has its own priority queue. A task is only handed to a worker
+ * when both of its stores are below their limits, so tasks waiting on a
+ * slow store don't hold up tasks between fast ones, and a store shared by
+ * several lanes is still held to its own limit. A task whose source and
+ * destination are on the same store counts once against it. Stores without
+ * a limit of their own use the default.
+ *
+ * Waiting tasks are held in their lane's queue rather than by a worker, so
+ * no thread is tied up waiting for a busy store. When several lanes can
+ * start a task, the highest priority task goes first.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileStoreLanes {
+
+    /**
+     * Millisecs an idle worker thread waits for work before it ends.
+     */
+    public static final long IDLE_THREAD_MILLIS = 30000;
+
+    /**
+     * Most directories whose store is remembered. The least recently used
+     * go first.
+     */
+    public static final int MAX_KNOWN_DIRECTORIES = 4096;
+
+    /**
+     * The number of tasks using one store and how many may.
+     */
+    private static class StoreUsage {
+
+        final FileStore store;
+        int limit;
+        int activeCount = 0;
+
+        StoreUsage(FileStore store, int limit) {
+            this.store = store;
+            this.limit = limit;
+        }
+
+        boolean hasRoom() {
+            return activeCount < limit;
+        }
+    }
+
+    /**
+     * The tasks waiting to move between one pair of stores.
+     */
+    private class Lane implements Executor {
+
+        final String name;
+        final StoreUsage source;
+        final StoreUsage dest;
+        // Tasks are comparable, so the queue orders them by priority.
+        final PriorityQueue<Runnable> waiting = new PriorityQueue<>();
+
+        Lane(String name, StoreUsage source, StoreUsage dest) {
+            this.name = name;
+            this.source = source;
+            this.dest = dest;
+        }
+
+        boolean canStart() {
+            return !waiting.isEmpty() && source.hasRoom() && dest.hasRoom();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (FileStoreLanes.this) {
+                if (stopped) {
+                    throw new RejectedExecutionException("Lanes stopped");
+                }
+                waiting.add(task);
+                queuedCount++;
+            }
+            startTasks();
+        }
+    }
+
+    private final Logger logger
+            = LogManager.getLogger(FileStoreLanes.class.getName());
+    private final int defaultWorkerCount;
+    private final ThreadPoolExecutor workers;
+    // All of the following are guarded by this.
+    // Usage by store. Tasks whose store is unknown share the null entry.
+    private final HashMap<FileStore, StoreUsage> usageByStore;
+    private final HashMap<FileStore, Integer> workerLimits;
+    // Store for each directory looked up so far.
+    private final LinkedHashMap<String, FileStore> storesByDirectory;
+    // Lanes by source and destination store.
+    private final HashMap<List<FileStore>, Lane> lanes;
+    private int queuedCount = 0;
+    private int runningCount = 0;
+    private long completedCount = 0;
+    private boolean stopped = false;
+
+    /**
+     * This is the FileStoreLanes constructor.
+     *
+     * @param defaultWorkerCount worker limit for stores with no limit set
+     */
+    FileStoreLanes(int defaultWorkerCount) {
+        this.defaultWorkerCount = Math.max(1, defaultWorkerCount);
+        this.usageByStore = new HashMap<>();
+        this.workerLimits = new HashMap<>();
+        this.lanes = new HashMap<>();
+        this.storesByDirectory = new LinkedHashMap<String, FileStore>(256,
+                0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, FileStore> eldest) {
+                return size() > MAX_KNOWN_DIRECTORIES;
+            }
+        };
+        AtomicInteger threadCount = new AtomicInteger();
+        // Tasks only reach the workers once their stores have room, so the
+        // store limits bound the number of threads.
+        workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                IDLE_THREAD_MILLIS, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "task-worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * setStoreLimit() Set the number of tasks that can use the store
+     * holding a path at once.
+     *
+     * @param path any path on the store
+     * @param workerCount most tasks at once
+     */
+    public void setStoreLimit(String path, int workerCount) {
+        FileStore store = getStore(path);
+        if (store == null) {
+            logger.error("ERROR: No file store found for {}", path);
+            return;
+        }
+        workerCount = Math.max(1, workerCount);
+        synchronized (this) {
+            workerLimits.put(store, workerCount);
+            StoreUsage usage = usageByStore.get(store);
+            if (usage != null) {
+                usage.limit = workerCount;
+            }
+        }
+        logger.info("Worker limit for store {}: {}", store, workerCount);
+        startTasks();
+    }
+
+    /**
+     * getLane() Get the executor for a task, by the stores of the file it
+     * acts on and of its destination.
+     *
+     * @param task task to run
+     * @return Executor for the task's lane
+     */
+    public Executor getLane(Task task) {
+        Path parent = Paths.get(task.getFilePath()).getParent();
+        FileStore source = (parent == null)
+                ? null : getStore(parent.toString());
+        FileStore dest = "MSG".equalsIgnoreCase(task.getActionDef().action)
+                ? null : getStore(task.getActionDef().changePath);
+        synchronized (this) {
+            return lanes.computeIfAbsent(Arrays.asList(source, dest),
+                    key -> createLane(source, dest));
+        }
+    }
+
+    private Lane createLane(FileStore source, FileStore dest) {
+        Lane lane = new Lane("task-lane-" + (lanes.size() + 1),
+                getUsage(source), getUsage(dest));
+        logger.info("Started {} for {} to {}", lane.name, source, dest);
+        return lane;
+    }
+
+    private StoreUsage getUsage(FileStore store) {
+        return usageByStore.computeIfAbsent(store, key -> new StoreUsage(
+                key, (key == null)
+                        ? defaultWorkerCount
+                        : workerLimits.getOrDefault(key, defaultWorkerCount)));
+    }
+
+    /**
+     * Hand waiting tasks to the workers while their stores have room,
+     * highest priority first.
+     */
+    @SuppressWarnings("unchecked")
+    private void startTasks() {
+        List<Runnable> starting = new ArrayList<>();
+        synchronized (this) {
+            while (true) {
+                Lane next = null;
+                for (Lane lane : lanes.values()) {
+                    if (lane.canStart() && (next == null
+                            || ((Comparable<Object>) lane.waiting.peek())
+                                    .compareTo(next.waiting.peek()) < 0)) {
+                        next = lane;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                // Both stores are checked and taken under this lock, so
+                // two tasks can't each hold one of the other's stores.
+                Runnable task = next.waiting.poll();
+                queuedCount--;
+                runningCount++;
+                next.source.activeCount++;
+                if (next.dest != next.source) {
+                    next.dest.activeCount++;
+                }
+                Lane lane = next;
+                starting.add(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        finished(lane);
+                    }
+                });
+            }
+        }
+        for (Runnable task : starting) {
+            workers.execute(task);
+        }
+    }
+
+    private void finished(Lane lane) {
+        synchronized (this) {
+            runningCount--;
+            completedCount++;
+            lane.source.activeCount--;
+            if (lane.dest != lane.source) {
+                lane.dest.activeCount--;
+            }
+            notifyAll();
+        }
+        startTasks();
+    }
+
+    /**
+     * Look up the store holding a directory, going up to the nearest
+     * directory that exists, e.g. for a destination not yet created.
+     *
+     * @return FileStore, or null if none is found
+     */
+    private FileStore getStore(String directory) {
+        FileStore store;
+        synchronized (this) {
+            store = storesByDirectory.get(directory);
+        }
+        if (store != null) {
+            return store;
+        }
+        Path path = Paths.get(directory).toAbsolutePath();
+        while (path != null && !Files.exists(path)) {
+            path = path.getParent();
+        }
+        if (path == null) {
+            return null;
+        }
+        try {
+            store = Files.getFileStore(path);
+        } catch (IOException e) {
+            logger.debug("Can't get file store for {}: {}", directory,
+                    e.toString());
+            return null;
+        }
+        synchronized (this) {
+            storesByDirectory.put(directory, store);
+        }
+        return store;
+    }
+
+    /**
+     * getQueuedCount() Get the number of tasks waiting for their stores to
+     * have room.
+     *
+     * @return int number of waiting tasks
+     */
+    public synchronized int getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * getRunningCount() Get the number of tasks running.
+     *
+     * @return int number of running tasks
+     */
+    public synchronized int getRunningCount() {
+        return runningCount;
+    }
+
+    /**
+     * getActiveCount() Get the number of tasks using the store holding a
+     * path.
+     *
+     * @param path any path on the store
+     * @return int number of tasks using the store
+     */
+    public int getActiveCount(String path) {
+        FileStore store = getStore(path);
+        synchronized (this) {
+            StoreUsage usage = usageByStore.get(store);
+            return (usage == null) ? 0 : usage.activeCount;
+        }
+    }
+
+    /**
+     * getCompletedCount() Get the number of tasks finished in every lane.
+     *
+     * @return long number of finished tasks
+     */
+    public synchronized long getCompletedCount() {
+        return completedCount;
+    }
+
+    public synchronized int getLaneCount() {
+        return lanes.size();
+    }
+
+    /**
+     * shutdown() Wait for queued and running tasks to finish, then stop
+     * taking tasks. Tasks can still be queued while waiting, e.g. retries.
+     *
+     * @param timeoutNanos longest time to wait
+     * @return true if every task finished in time
+     * @throws InterruptedException
+     */
+    public boolean shutdown(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (this) {
+            while (queuedCount > 0 || runningCount > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            stopped = true;
+        }
+        workers.shutdown();
+        return workers.awaitTermination(
+                Math.max(0, deadline - System.nanoTime()),
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * shutdownNow() Stop every lane without waiting for queued tasks.
+     */
+    public void shutdownNow() {
+        synchronized (this) {
+            stopped = true;
+            for (Lane lane : lanes.values()) {
+                queuedCount -= lane.waiting.size();
+                lane.waiting.clear();
+            }
+            notifyAll();
+        }
+        workers.shutdownNow();
+    }
+
+}
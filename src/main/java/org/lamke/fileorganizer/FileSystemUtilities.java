@@ -24,7 +24,9 @@
 package org.lamke.fileorganizer;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.*;
+import java.util.concurrent.CompletableFuture;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -40,6 +42,50 @@ public class FileSystemUtilities {
     private static FileSystemUtilities fileUtilitiesInstance = null;
 
     private final Logger logger = LogManager.getLogger(FileSystemUtilities.class.getName());
+    private FileCopyEngine copyEngine = new FileCopyEngine(
+            FileCopyEngine.DEFAULT_CHUNK_SIZE,
+            FileCopyEngine.DEFAULT_BUFFER_SIZE,
+            FileCopyEngine.DEFAULT_POOL_SIZE);
+    private FileMoveStrategy moveStrategy = new FileMoveStrategy(copyEngine);
+    private ContentDeduplicator deduplicator = new ContentDeduplicator(
+            ContentDeduplicator.DedupMode.OFF);
+    private DestinationRateLimiter rateLimiter = new DestinationRateLimiter();
+    private final FileAttributeCache attributeCache
+            = FileAttributeCache.getInstance();
+    // Built on first use, since no configured action copies without
+    // waiting. Guarded by this.
+    private AsyncFileCopier asyncCopier = null;
+
+    /**
+     * Holds a copy to its destination's byte rate, by taking tokens for
+     * each chunk as it is reported.
+     */
+    private static class ThrottledListener
+            implements FileCopyEngine.CopyProgressListener {
+
+        private final TokenBucket bytes;
+        private final FileCopyEngine.CopyProgressListener listener;
+        private long bytesCharged = 0;
+
+        ThrottledListener(TokenBucket bytes,
+                FileCopyEngine.CopyProgressListener listener) {
+            this.bytes = bytes;
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean onProgress(long bytesCopied, long totalBytes) {
+            try {
+                bytes.acquire(bytesCopied - bytesCharged);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            bytesCharged = bytesCopied;
+            return (listener == null)
+                    || listener.onProgress(bytesCopied, totalBytes);
+        }
+    }
 
     /**
      * Private FileUtilities constructor because this is a singleton class.
@@ -70,25 +116,53 @@ public class FileSystemUtilities {
      * @return boolean true if move succeeded, false otherwise
      */
     public boolean moveFile(String source, String dest) {
-        boolean moveStatus = false;
-        Path result = null;
         try {
-            result = Files.move(Paths.get(source), Paths.get(dest));
+            moveFileChecked(source, dest);
+            return true;
         } catch (IOException e) {
             logger.error("Exception during attempt to move: " + e.getMessage());
-        }
-        if (result != null) {
-            moveStatus = true;
-            logger.debug("File {} moved from {} to {}", "file", source, dest);
-        } else {
             logger.error("File {} not moved from {} to {}",
                     "file", source, dest);
+            return false;
         }
-        return moveStatus;
+    }
 
+    /**
+     * Move a file, passing any failure on to the caller so it can decide
+     * whether to try again.
+     *
+     * @param source source path of file to be moved
+     * @param dest destination path for file move
+     * @throws IOException if the move failed
+     */
+    public void moveFileChecked(String source, String dest)
+            throws IOException {
+        moveFileChecked(source, dest, null);
+    }
+
+    /**
+     * Move a file, renaming it if it stays on the same FileStore and
+     * otherwise copying it, verifying the copy and deleting the source.
+     *
+     * @param source source path of file to be moved
+     * @param dest destination path for file move
+     * @param listener receives copy progress, may be null
+     * @throws IOException if the move failed
+     */
+    public void moveFileChecked(String source, String dest,
+            FileCopyEngine.CopyProgressListener listener) throws IOException {
+        Path sourcePath = Paths.get(source);
+        Path destPath = Paths.get(dest);
+        try {
+            moveStrategy.move(sourcePath, destPath, throttle(dest, listener));
+        } finally {
+            attributeCache.invalidate(sourcePath);
+            attributeCache.invalidate(destPath);
+        }
+        logger.debug("File {} moved from {} to {}", "file", source, dest);
     }
 
-        /**
+    /**
      * Copy a file from one location to another on the local file system.
      *
      * @param source source path of file to be moved
@@ -96,22 +170,172 @@ public class FileSystemUtilities {
      * @return boolean true if move succeeded, false otherwise
      */
     public boolean copyFile(String source, String dest) {
-        boolean copyStatus = false;
-        Path result = null;
         try {
-            result = Files.copy(Paths.get(source), Paths.get(dest));
+            copyFileChecked(source, dest);
+            return true;
         } catch (IOException e) {
             logger.error("Exception during attempt to copy: " + e.getMessage());
-        }
-        if (result != null) {
-            copyStatus = true;
-            logger.debug("File {} copied from {} to {}", "file", source, dest);
-        } else {
             logger.error("File {} not copied from {} to {}",
                     "file", source, dest);
+            return false;
+        }
+    }
+
+    /**
+     * Copy a file, passing any failure on to the caller so it can decide
+     * whether to try again.
+     *
+     * @param source source path of file to be copied
+     * @param dest destination path for file copy
+     * @throws IOException if the copy failed
+     */
+    public void copyFileChecked(String source, String dest)
+            throws IOException {
+        copyFileChecked(source, dest, null);
+    }
+
+    /**
+     * Copy a file in chunks, reporting progress to a listener that can
+     * cancel the copy.
+     *
+     * @param source source path of file to be copied
+     * @param dest destination path for file copy
+     * @param listener receives progress reports, may be null
+     * @throws IOException if the copy failed or was cancelled
+     */
+    public void copyFileChecked(String source, String dest,
+            FileCopyEngine.CopyProgressListener listener) throws IOException {
+        Path destPath = Paths.get(dest);
+        long bytes;
+        try {
+            bytes = copyEngine.copy(Paths.get(source), destPath,
+                    throttle(dest, listener));
+        } finally {
+            attributeCache.invalidate(destPath);
+        }
+        logger.debug("File {} copied from {} to {} ({} bytes)", "file",
+                source, dest, bytes);
+    }
+
+    /**
+     * Copy a file without waiting for it, for callers with many files to
+     * copy at once. The copy isn't held to the destination's rate limits.
+     *
+     * @param source source path of file to be copied
+     * @param dest destination path for file copy
+     * @return CompletableFuture completed with the number of bytes copied,
+     * or with the failure. Cancelling it stops the copy.
+     */
+    public CompletableFuture<Long> copyFileAsync(String source,
+            String dest) {
+        Path destPath = Paths.get(dest);
+        CompletableFuture<Long> copy = getAsyncCopier().copy(
+                Paths.get(source), destPath);
+        copy.whenComplete((bytes, failure) -> {
+            attributeCache.invalidate(destPath);
+            if (failure == null) {
+                logger.debug("File {} copied from {} to {} ({} bytes)",
+                        "file", source, dest, bytes);
+            }
+        });
+        return copy;
+    }
+
+    /**
+     * Wait for the destination's operation rate to allow another file
+     * operation, and hold the data copied to its byte rate.
+     *
+     * @return listener to pass to the copy
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private FileCopyEngine.CopyProgressListener throttle(String dest,
+            FileCopyEngine.CopyProgressListener listener)
+            throws InterruptedIOException {
+        DestinationRateLimiter.DestinationLimit limit
+                = rateLimiter.getLimit(dest);
+        if (limit == null) {
+            return listener;
+        }
+        try {
+            limit.getOperationBucket().acquire(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to write "
+                    + dest);
+        }
+        return new ThrottledListener(limit.getByteBucket(), listener);
+    }
+
+    /**
+     * Replace the rate limits for copies and moves. The limits themselves
+     * can be changed at any time through the limiter.
+     *
+     * @param rateLimiter limits to use
+     */
+    public void setRateLimiter(DestinationRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public DestinationRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Replace the engine used for copies, e.g. to change its chunk size.
+     *
+     * @param copyEngine engine to use
+     */
+    public void setCopyEngine(FileCopyEngine copyEngine) {
+        this.copyEngine = copyEngine;
+        this.moveStrategy = new FileMoveStrategy(copyEngine);
+    }
+
+    /**
+     * Replace the copier used for copies that aren't waited for, e.g. to
+     * change the number in flight. The old copier finishes the copies it
+     * already has.
+     *
+     * @param asyncCopier copier to use
+     */
+    public synchronized void setAsyncCopier(AsyncFileCopier asyncCopier) {
+        AsyncFileCopier old = this.asyncCopier;
+        this.asyncCopier = asyncCopier;
+        if (old != null) {
+            old.close();
         }
-        return copyStatus;
+    }
+
+    private synchronized AsyncFileCopier getAsyncCopier() {
+        if (asyncCopier == null) {
+            asyncCopier = new AsyncFileCopier(
+                    AsyncFileCopier.DEFAULT_MAX_IN_FLIGHT,
+                    AsyncFileCopier.DEFAULT_BUFFER_SIZE,
+                    AsyncFileCopier.DEFAULT_THREAD_COUNT);
+        }
+        return asyncCopier;
+    }
 
+    /**
+     * Replace the deduplicator that checks destinations for files that are
+     * already there.
+     *
+     * @param deduplicator deduplicator to use
+     */
+    public void setDeduplicator(ContentDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    public ContentDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * Get the move strategy, for its rename and bytes saved counts.
+     *
+     * @return FileMoveStrategy used for moves
+     */
+    public FileMoveStrategy getMoveStrategy() {
+        return moveStrategy;
     }
     
     /**
@@ -37,13 +37,20 @@ import static java.nio.file.LinkOption.*;
 import java.nio.file.attribute.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * This class contains the algorithm for registering and unregistering
- * directories to be watched for changes. My goal is for this class to be easily
+ * directories to be watched for changes using the OS change notification
+ * service. PollingFileSystemWatcher is the alternative for paths where OS
+ * notification doesn't work. My goal is for this class to be easily
  * used by other programs/projects, so I'll minimize dependency on external
  * resources. This is a singleton class. Use the getInstance method to access
  * the object.
@@ -51,13 +58,39 @@ import org.apache.logging.log4j.Logger;
  * @author Chris Lamke <https://chris.lamke.org>
  * @throws java.io.IOException
  */
-public class FileSystemWatcher {
+public class FileSystemWatcher implements FileWatcher {
 
     private static FileSystemWatcher watcherInstance = null;
 
     private final Logger logger = LogManager.getLogger(FileSystemWatcher.class.getName());
-    private WatchService watchService;
-    private Map<WatchKey, Path> watchKeys;
+    // Directories are spread across one or more WatchService shards so each
+    // shard can be drained by its own thread.
+    private WatchService[] watchServices;
+    // Registered keys by key and by path. Keys of recursively watched
+    // directories are marked so new sub-directories created under them are
+    // registered as they appear.
+    private WatchKeyRegistry registry;
+    // Watcher that takes over directories evicted to stay within the watch
+    // budget, or null to leave them unwatched.
+    private FileWatcher budgetFallback = null;
+    private ForkJoinPool registrationPool;
+    private int notificationBatchSize = DEFAULT_NOTIFICATION_BATCH_SIZE;
+    // Sorted names of the entries each directory held when addWatchPath()
+    // registered it. No CREATE is reported for these, so a rescan uses them
+    // to tell files that were already there from ones whose CREATE was lost.
+    private final Map<Path, String[]> registeredEntries
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Default upper bound on the number of notifications gathered from ready
+     * WatchKeys in a single call.
+     */
+    public static final int DEFAULT_NOTIFICATION_BATCH_SIZE = 1000;
+
+    /**
+     * Default number of WatchService shards.
+     */
+    public static final int DEFAULT_SHARD_COUNT = 1;
 
     @SuppressWarnings("unchecked")
     static <T> WatchEvent<T> cast(WatchEvent<?> event) {
@@ -71,8 +104,9 @@ public class FileSystemWatcher {
      */
     private FileSystemWatcher() {
         try {
-            watchService = FileSystems.getDefault().newWatchService();
-            watchKeys = new HashMap<>();
+            watchServices = createWatchServices(DEFAULT_SHARD_COUNT);
+            registry = new WatchKeyRegistry();
+            registrationPool = new ForkJoinPool();
         } catch (IOException e) {
             logger.log(Level.ERROR, e.toString());
         }
@@ -92,6 +126,110 @@ public class FileSystemWatcher {
     }
 
 
+    /**
+     * Set the number of WatchService shards that watched directories are
+     * spread across. This must be called before any path is registered.
+     *
+     * @param shardCount number of shards, must be positive
+     * @return true if the shard count was changed, false otherwise
+     */
+    public synchronized boolean setShardCount(int shardCount) {
+        if (shardCount < 1) {
+            logger.error("Invalid shard count {}. Keeping {}",
+                    shardCount, watchServices.length);
+            return false;
+        }
+        if (shardCount == watchServices.length) {
+            return true;
+        }
+        if (registry.getWatchCount() > 0) {
+            logger.error("Shard count can't change once paths are watched");
+            return false;
+        }
+
+        try {
+            WatchService[] newServices = createWatchServices(shardCount);
+            for (WatchService service : watchServices) {
+                service.close();
+            }
+            watchServices = newServices;
+        } catch (IOException e) {
+            logger.error("Unable to create {} watch shards - {}",
+                    shardCount, e.toString());
+            return false;
+        }
+        logger.info("Watching with {} WatchService shards", shardCount);
+        return true;
+    }
+
+    /**
+     * Get the number of WatchService shards.
+     *
+     * @return int number of shards
+     */
+    @Override
+    public int getShardCount() {
+        return watchServices.length;
+    }
+
+    /**
+     * Set the maximum number of OS watches to hold, or 0 for no limit. On
+     * Linux each watched directory uses one inotify watch, limited by
+     * fs.inotify.max_user_watches. Once the budget is used up, registering
+     * another directory evicts the directory that has gone longest without
+     * changes and hands it to the budget fallback watcher.
+     *
+     * @param budget maximum number of watches, 0 for no limit
+     */
+    public void setWatchBudget(int budget) {
+        registry.setWatchBudget(budget);
+    }
+
+    /**
+     * Set the watcher that takes over directories evicted to stay within the
+     * watch budget, typically a PollingFileSystemWatcher.
+     *
+     * @param fallback watcher for evicted directories, or null
+     */
+    public void setBudgetFallback(FileWatcher fallback) {
+        budgetFallback = fallback;
+    }
+
+    /**
+     * Get the number of OS watches currently held.
+     *
+     * @return int number of watches
+     */
+    public int getWatchCount() {
+        return registry.getWatchCount();
+    }
+
+    /**
+     * Set the number of notifications after which a call stops draining
+     * further ready WatchKeys. All events of a key are always taken together,
+     * so a batch can exceed this size by the events of its last key.
+     *
+     * @param batchSize maximum notifications per batch, must be positive
+     */
+    public void setNotificationBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            logger.error("Invalid notification batch size {}. Keeping {}",
+                    batchSize, notificationBatchSize);
+            return;
+        }
+        notificationBatchSize = batchSize;
+    }
+
+    /**
+     * Get the number of notifications after which a call stops draining
+     * further ready WatchKeys.
+     *
+     * @return int maximum notifications per batch
+     */
+    public int getNotificationBatchSize() {
+        return notificationBatchSize;
+    }
+
     /**
      * Register the given directory with the WatchService
      *
@@ -100,12 +238,24 @@ public class FileSystemWatcher {
      * @return true if successful, false otherwise
      * @throws java.io.IOException
      */
+    @Override
     public boolean addWatchPath(String watchPath, boolean isRecursive) throws IOException {
         Path path = Paths.get(watchPath);
         if (isRecursive == true) {
             return registerWatchPathWithRecursion(path);
         } else {
-            return registerWatchPathSingle(path);
+            boolean registered = registerWatchPathSingle(path);
+            List<String> names = new ArrayList<>();
+            try (DirectoryStream<Path> entries
+                    = Files.newDirectoryStream(path)) {
+                for (Path entry : entries) {
+                    names.add(entry.getFileName().toString());
+                }
+                recordRegisteredEntries(path, names);
+            } catch (IOException | DirectoryIteratorException e) {
+                logger.error("Unable to list {} - {}", path, e.toString());
+            }
+            return registered;
         }
     }
 
@@ -117,25 +267,45 @@ public class FileSystemWatcher {
      * @return true if successful, false otherwise
      * @throws java.io.IOException
      */
+    @Override
     public boolean removeWatchPath(String watchPath, boolean isRecursive) throws IOException {
         Path path = Paths.get(watchPath);
+        boolean removed;
         if (isRecursive == true) {
-            return unregisterWatchPathSingle(path);
+            removed = unregisterWatchPathWithRecursion(path);
+            registeredEntries.keySet().removeIf(dir -> dir.startsWith(path));
         } else {
-            return unregisterWatchPathWithRecursion(path);
+            removed = unregisterWatchPathSingle(path);
+            registeredEntries.remove(path);
+        }
+
+        // Anything evicted over budget is watched by the fallback instead.
+        if (budgetFallback != null) {
+            removed = budgetFallback.removeWatchPath(watchPath, isRecursive)
+                    || removed;
         }
+        return removed;
     }
 
     /**
      * Register the given directory with the WatchService
      */
     private boolean registerWatchPathSingle(Path path) throws IOException {
+        return registerWatchPathSingle(path, false);
+    }
+
+    /**
+     * Register the given directory with the WatchService, marking it as part
+     * of a recursive watch if requested.
+     */
+    private boolean registerWatchPathSingle(Path path, boolean isRecursive)
+            throws IOException {
 
-        WatchKey watchKey = path.register(
-                watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        WatchKey watchKey = path.register(watchServices[getShardIndex(path)],
+                ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
 
         // See if the path was already registered and this is an update.
-        Path existingPath = watchKeys.get(watchKey);
+        Path existingPath = registry.getPath(watchKey);
         if (existingPath == null) {
             logger.debug("Registering path {}", path);
         } else {
@@ -144,118 +314,420 @@ public class FileSystemWatcher {
             }
         }
 
-        watchKeys.put(watchKey, path);
+        Map<Path, Boolean> evicted
+                = registry.register(path, watchKey, isRecursive);
+        evicted.forEach(this::moveToBudgetFallback);
 
         // TODO need to determine success vs failure and return approp. value.
         return true;
 
     }
 
+    /**
+     * Hand a directory evicted to stay within the watch budget over to the
+     * fallback watcher. A directory from a recursive watch stays recursive,
+     * so subdirectories created in it are still picked up.
+     */
+    private void moveToBudgetFallback(Path path, boolean isRecursive) {
+        if (budgetFallback == null) {
+            logger.error("Watch budget of {} reached. {} is no longer watched",
+                    registry.getWatchBudget(), path);
+            return;
+        }
+        try {
+            budgetFallback.addWatchPath(path.toString(), isRecursive);
+            logger.info("Watch budget of {} reached. {} moved to fallback",
+                    registry.getWatchBudget(), path);
+        } catch (IOException e) {
+            logger.error("Unable to move {} to fallback watcher - {}",
+                    path, e.toString());
+        }
+    }
+
     /**
      * Register the given directory, and all its sub-directories, with the
-     * WatchService.
+     * WatchService. Large trees are walked in parallel on the registration
+     * pool, one fork/join task per directory.
      */
     private boolean registerWatchPathWithRecursion(Path startPath) throws IOException {
-        // register directory and sub-directories
-        Files.walkFileTree(startPath, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs)
-                    throws IOException {
-                registerWatchPathSingle(path);
-                return FileVisitResult.CONTINUE;
-            }
-        });
+        return registerWatchPathWithRecursion(startPath, null);
+    }
 
-        // TODO need to determine success vs failure and return approp. value.
-        return true;
+    /**
+     * Register the given directory, and all its sub-directories, adding
+     * every entry found under it to the given queue. Parent directories are
+     * added before their contents. If the queue is null, the entries are
+     * recorded as already present at registration instead.
+     */
+    private boolean registerWatchPathWithRecursion(Path startPath,
+            Queue<Path> found) throws IOException {
+        if (!Files.isDirectory(startPath, NOFOLLOW_LINKS)) {
+            throw new NotDirectoryException(startPath.toString());
+        }
+
+        long startTime = System.nanoTime();
+        int registered = registrationPool.invoke(
+                new RegisterDirectoryTask(startPath, found));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - startTime);
+        logger.info("Registered {} directories under {} in {} ms",
+                registered, startPath, elapsedMillis);
+
+        return registered > 0;
     }
 
     /**
-     * Unregister the given directory with the WatchService
+     * Fork/join task that registers one directory and forks a sub-task for
+     * each of its sub-directories. Symbolic links are not followed, matching
+     * Files.walkFileTree. Directories that can't be read are logged and
+     * skipped so one bad subtree doesn't stop the rest of the walk. Entries
+     * are listed after the directory is registered, so an entry created in
+     * between may be both found and reported by the WatchService.
      */
-    private boolean unregisterWatchPathSingle(Path path) throws IOException {
+    private class RegisterDirectoryTask extends RecursiveTask<Integer> {
 
-        WatchKey watchKey = path.register(
-                watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        private static final long serialVersionUID = 1L;
 
-        // See if the path was already registered and this is an update.
-        Path existingPath = watchKeys.get(watchKey);
-        if (existingPath == null) {
-            logger.debug("Registering path {}", path);
-        } else {
-            if (!path.equals(existingPath)) {
-                logger.debug("Updating path {} -> ", existingPath, path);
+        private final Path directory;
+        private final Queue<Path> found;
+
+        RegisterDirectoryTask(Path directory, Queue<Path> found) {
+            this.directory = directory;
+            this.found = found;
+        }
+
+        @Override
+        protected Integer compute() {
+            List<RegisterDirectoryTask> subTasks = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            try {
+                registerWatchPathSingle(directory, true);
+                try (DirectoryStream<Path> entries
+                        = Files.newDirectoryStream(directory)) {
+                    for (Path entry : entries) {
+                        if (found != null) {
+                            found.add(entry);
+                        } else {
+                            names.add(entry.getFileName().toString());
+                        }
+                        if (Files.isDirectory(entry, NOFOLLOW_LINKS)) {
+                            subTasks.add(new RegisterDirectoryTask(entry,
+                                    found));
+                        }
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                logger.error("Unable to register {} - {}",
+                        directory, e.toString());
+                return 0;
+            }
+            if (found == null) {
+                recordRegisteredEntries(directory, names);
+            }
+
+            int registered = 1;
+            for (RegisterDirectoryTask task : invokeAll(subTasks)) {
+                registered += task.join();
             }
+            return registered;
         }
+    }
 
-        watchKeys.put(watchKey, path);
+    private void recordRegisteredEntries(Path directory, List<String> names) {
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted);
+        registeredEntries.put(directory, sorted);
+    }
 
-        // TODO need to determine success vs failure and return approp. value.
-        return true;
+    /**
+     * wasPresentAtRegistration() Check whether an entry was already in its
+     * directory when addWatchPath() registered the directory, and hasn't
+     * been reported deleted since.
+     *
+     * @param entry path of the entry
+     * @return true if the entry was there before it was watched
+     */
+    boolean wasPresentAtRegistration(Path entry) {
+        String[] names = registeredEntries.get(entry.getParent());
+        return (names != null) && Arrays.binarySearch(names,
+                entry.getFileName().toString()) >= 0;
+    }
 
+    /**
+     * retainRegisteredEntries() Forget the entries present at registration
+     * that a complete listing of their directory no longer found.
+     *
+     * @param directory directory that was listed
+     * @param entryPaths paths of the entries found
+     */
+    void retainRegisteredEntries(Path directory, Set<String> entryPaths) {
+        registeredEntries.computeIfPresent(directory, (dir, names) -> {
+            String[] kept = Arrays.stream(names)
+                    .filter(name -> entryPaths.contains(
+                            dir.resolve(name).toString()))
+                    .toArray(String[]::new);
+            return (kept.length > 0) ? kept : null;
+        });
+    }
+
+    private void forgetRegisteredEntry(Path entry) {
+        String name = entry.getFileName().toString();
+        registeredEntries.computeIfPresent(entry.getParent(),
+                (dir, names) -> {
+                    int index = Arrays.binarySearch(names, name);
+                    if (index < 0) {
+                        return names;
+                    }
+                    String[] kept = new String[names.length - 1];
+                    System.arraycopy(names, 0, kept, 0, index);
+                    System.arraycopy(names, index + 1, kept, index,
+                            kept.length - index);
+                    return (kept.length > 0) ? kept : null;
+                });
     }
 
     /**
-     * Register the given directory, and all its sub-directories, with the
-     * WatchService.
+     * watchNewDirectory() Register a directory whose CREATE notification was
+     * lost, if its parent is watched recursively and it isn't registered
+     * yet, and add a CREATE for every entry already in it.
+     *
+     * @param directory path of the directory
+     * @param notifications collection to add notifications to
+     * @return true if the directory was registered
      */
-    private boolean unregisterWatchPathWithRecursion(Path startPath) throws IOException {
-        // register directory and sub-directories
-        Files.walkFileTree(startPath, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs)
-                    throws IOException {
-                registerWatchPathSingle(path);
-                return FileVisitResult.CONTINUE;
+    boolean watchNewDirectory(Path directory,
+            FileNotificationCollection notifications) {
+        WatchKey parentKey = registry.getWatchKey(directory.getParent());
+        if (parentKey == null || !registry.isRecursive(parentKey)
+                || registry.getWatchKey(directory) != null) {
+            return false;
+        }
+        return registerNewDirectory(directory, notifications);
+    }
+
+    /**
+     * Register a directory created under a recursive watch, and its
+     * sub-directories. Anything already in it was put there before it was
+     * watched, so a CREATE is added for each entry found while registering.
+     */
+    private boolean registerNewDirectory(Path directory,
+            FileNotificationCollection notifications) {
+        try {
+            if (!Files.isDirectory(directory, NOFOLLOW_LINKS)) {
+                return false;
             }
-        });
+            Queue<Path> found = new ConcurrentLinkedQueue<>();
+            boolean registered = registerWatchPathWithRecursion(directory,
+                    found);
+            for (Path entry : found) {
+                notifications.addNotification(new FileNotification(
+                        FileNotification.NotificationType.CREATE,
+                        entry.toString()));
+            }
+            return registered;
+        } catch (IOException x) {
+            logger.error("Unable to watch new directory {} - {}",
+                    directory, x.toString());
+            return false;
+        }
+    }
 
-        // TODO need to determine success vs failure and return approp. value.
-        return true;
+    /**
+     * Unregister the given directory with the WatchService, cancelling its
+     * key.
+     */
+    private boolean unregisterWatchPathSingle(Path path) {
+        boolean removed = registry.unregister(path);
+        if (removed) {
+            logger.debug("Unregistered path {}", path);
+        }
+        return removed;
+    }
+
+    /**
+     * Unregister the given directory, and all its sub-directories, with the
+     * WatchService, cancelling exactly the keys under that directory.
+     */
+    private boolean unregisterWatchPathWithRecursion(Path startPath) {
+        List<Path> removed = registry.unregisterSubtree(startPath);
+        logger.info("Unregistered {} directories under {}",
+                removed.size(), startPath);
+        return !removed.isEmpty();
     }
 
     /**
      * This method checks to see if any files have changed in the paths being
-     * monitored and returns a list of notifications.
+     * monitored and returns a list of notifications. Every shard is drained
+     * of its signalled WatchKeys, up to the notification batch size. If
+     * nothing is ready, it waits up to the given timeout, split evenly across
+     * the shards, for a notification to become available.
      *
      * @author Chris Lamke <https://chris.lamke.org>
      * @param millisecs as poll timeout in millisecs
-     * @return FileNotificationCollection
+     * @return FileNotificationCollection, or null if nothing changed
      */
+    @Override
     public FileNotificationCollection getFileNotificationsPoll(int millisecs) {
 
         logger.debug("getFileNotificationsPoll with timeout = {} ms", millisecs);
-        FileNotificationCollection notifications = null;
 
-        // wait for key to be signalled
-        WatchKey key;
-        key = watchService.poll();
-        // Need to support WatchKey watchKey = watchService.poll(long timeout, TimeUnit units);
-        if (key == null) {
+        WatchService[] services = watchServices;
+        FileNotificationCollection notifications
+                = new FileNotificationCollection();
+        try {
+            for (WatchService service : services) {
+                WatchKey key = service.poll();
+                if (key != null) {
+                    drainReadyKeys(service, key, notifications);
+                }
+            }
+
+            // wait for key to be signalled
+            long shardMillis = Math.max(1, millisecs / services.length);
+            for (int i = 0; (i < services.length)
+                    && (notifications.getNotificationCount() == 0); i++) {
+                WatchKey key = services[i].poll(shardMillis,
+                        TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    drainReadyKeys(services[i], key, notifications);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            logger.error("Poll attempted on closed WatchService");
+        }
+
+        if (notifications.getNotificationCount() == 0) {
             logger.debug("No notification available");
-            return notifications;
+            return null;
         }
+        return notifications;
+    }
 
-        Path dir = watchKeys.get(key);
+    /**
+     * This method checks to see if any files have changed in the paths being
+     * monitored and blocks until a notification is available, then returns a
+     * list of notifications drained from all signalled WatchKeys, up to the
+     * notification batch size. It returns null if the calling thread was
+     * interrupted or the WatchService was closed while waiting. With more
+     * than one shard only the first shard is waited on, so use
+     * getFileNotificationsBlock(int) with a thread per shard instead.
+     *
+     * @return FileNotificationCollection
+     */
+    public FileNotificationCollection getFileNotificationsBlock() {
+        return getFileNotificationsBlock(0);
+    }
+
+    /**
+     * This method blocks until a notification is available on the given
+     * shard, then returns a list of notifications drained from all of that
+     * shard's signalled WatchKeys, up to the notification batch size. It
+     * returns null if the calling thread was interrupted or the WatchService
+     * was closed while waiting.
+     *
+     * @param shard index of the shard to wait on
+     * @return FileNotificationCollection
+     */
+    @Override
+    public FileNotificationCollection getFileNotificationsBlock(int shard) {
+
+        WatchService service = watchServices[shard];
+        WatchKey key;
+        try {
+            key = service.take();
+        } catch (InterruptedException e) {
+            logger.debug("Interrupted while waiting for notifications");
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ClosedWatchServiceException e) {
+            logger.error("Wait attempted on closed WatchService");
+            return null;
+        }
+
+        FileNotificationCollection notifications
+                = new FileNotificationCollection();
+        drainReadyKeys(service, key, notifications);
+        return notifications;
+    }
+
+    /**
+     * Gather the notifications of the given signalled WatchKey and of every
+     * other WatchKey already signalled on the same WatchService, stopping
+     * once the batch size is reached. Keys left behind stay queued in the
+     * WatchService for the next call.
+     *
+     * @param service WatchService the key belongs to
+     * @param firstKey signalled WatchKey to start with
+     * @param notifications collection to add notifications to
+     */
+    private void drainReadyKeys(WatchService service, WatchKey firstKey,
+            FileNotificationCollection notifications) {
+        int keyCount = 0;
+
+        WatchKey key = firstKey;
+        while (key != null) {
+            addNotificationsFromKey(key, notifications);
+            keyCount++;
+            if (notifications.getNotificationCount() >= notificationBatchSize) {
+                break;
+            }
+            try {
+                key = service.poll();
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+        }
+
+        logger.debug("Drained {} notifications from {} keys",
+                notifications.getNotificationCount(), keyCount);
+    }
+
+    /**
+     * Add the notifications for all events pending on a signalled WatchKey
+     * to the given collection, then reset the key so it can be signalled
+     * again.
+     *
+     * @param key signalled WatchKey
+     * @param notifications collection to add notifications to
+     */
+    private void addNotificationsFromKey(WatchKey key,
+            FileNotificationCollection notifications) {
+
+        Path dir = registry.getPath(key);
         if (dir == null) {
-            logger.error("WatchKey not recognized");
-            return notifications;
+            if (key.isValid()) {
+                logger.error("WatchKey not recognized");
+            } else {
+                // Cancelled after it was signalled.
+                logger.debug("Ignoring events of cancelled WatchKey");
+            }
+            return;
         }
-        notifications = new FileNotificationCollection();
 
+        registry.touch(key);
+        boolean recursive = registry.isRecursive(key);
+        boolean overflowReported = false;
         for (WatchEvent<?> event : key.pollEvents()) {
             WatchEvent.Kind kind = event.kind();
 
-            // TBD - provide example of how OVERFLOW event is handled
+            // Events were lost for this directory. Report the directory
+            // itself, once, so the caller can rescan it.
             if (kind == OVERFLOW) {
-                logger.error("OVERFLOW event reported by FileWatcher");
-                return null;
+                logger.error("OVERFLOW event reported for {}", dir);
+                if (!overflowReported) {
+                    notifications.addNotification(new FileNotification(
+                            FileNotification.NotificationType.OVERFLOW,
+                            dir.toString()));
+                    overflowReported = true;
+                }
+                continue;
             }
 
             // Context for directory entry event is the file name of entry
             WatchEvent<Path> ev = cast(event);
-            Path name = ev.context();
-            Path child = dir.resolve(name);
+            Path child = dir.resolve(ev.context());
 
             // print out event
             logger.debug("Notification {}: {}\n", event.kind().name(), child);
@@ -270,17 +742,12 @@ public class FileSystemWatcher {
                 case "ENTRY_DELETE":
                     notification.addNotificationType(
                             FileNotification.NotificationType.DELETE);
+                    forgetRegisteredEntry(child);
                     break;
                 case "ENTRY_MODIFY":
                     notification.addNotificationType(
                             FileNotification.NotificationType.MODIFY);
                     break;
-                case "OVERFLOW":
-                    notification.addNotificationType(
-                            FileNotification.NotificationType.NONE);
-                    logger.error(
-                            "ERROR: FileWatcher reported overflow condition");
-                    break;
 
                 default:
                     logger.error(
@@ -291,48 +758,34 @@ public class FileSystemWatcher {
 
             // if directory is created, and watching recursively, then
             // register it and its sub-directories
-            // TODO need to handle checking for recursive flag when 
-            // new directory is created to determine what kind of
-            // registration to do here.
-            boolean recursive = false;
             if (recursive && (kind == ENTRY_CREATE)) {
-                try {
-                    if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
-                        registerWatchPathWithRecursion(child);
-                    }
-                } catch (IOException x) {
-                    // ignore to keep sample readbale
-                }
-            }
-
-            // reset key and remove from set if directory no longer accessible
-            boolean valid = key.reset();
-            if (!valid) {
-                watchKeys.remove(key);
-
-                // all directories are inaccessible
-                if (watchKeys.isEmpty()) {
-                    break;
-                }
+                registerNewDirectory(child, notifications);
             }
         }
 
-        return notifications;
+        // reset key and remove from set if directory no longer accessible
+        boolean valid = key.reset();
+        if (!valid) {
+            logger.info("Path {} is no longer accessible", dir);
+            registry.unregister(key);
+        }
     }
 
     /**
-     * NOT IMPLEMENTED - This method checks to see if any files have changed in the paths being
-     * monitored and blocks until a notification is available, then returns a
-     * list of notifications.
-     *
-     * @return FileNotificationCollection
+     * Pick the shard for a directory by hashing its path, which spreads
+     * the directories of a large tree evenly across the shards.
      */
-    public FileNotificationCollection getFileNotificationsBlock() {
-        // Not implemented
+    private int getShardIndex(Path path) {
+        return (path.hashCode() & Integer.MAX_VALUE) % watchServices.length;
+    }
 
-        // FileNotification test = new FileNotification();
-        //  return test;
-        return null;
+    private static WatchService[] createWatchServices(int shardCount)
+            throws IOException {
+        WatchService[] services = new WatchService[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            services[i] = FileSystems.getDefault().newWatchService();
+        }
+        return services;
     }
 
 }
@@ -35,20 +35,57 @@ public class FileTypeActionDef {
     String action = "";
     String changePath = "";
     int priority = 1;
+    // Time to wait after the change before acting, 0 to act at once.
+    long delayMillis = 0;
 
     public FileTypeActionDef(String fileTypeName, String changeType,
             String action, String changePath, int priority) {
+        this(fileTypeName, changeType, action, changePath, priority, 0);
+    }
+
+    public FileTypeActionDef(String fileTypeName, String changeType,
+            String action, String changePath, int priority,
+            long delayMillis) {
         this.fileTypeName = fileTypeName;
         this.changeType = changeType;
         this.action = action;
         this.changePath = changePath;
         this.priority = priority;
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * matches() Check whether this action applies to a change of the given
+     * kind to a file of the given type. Type names are compared ignoring
+     * case, and a change type of MOD or MODIFY matches modifications.
+     *
+     * @param typeName file type code from FileTypeDecider
+     * @param notificationType kind of change
+     * @return true if the action applies
+     */
+    public boolean matches(String typeName,
+            FileNotification.NotificationType notificationType) {
+        if (typeName == null || !fileTypeName.equalsIgnoreCase(typeName)) {
+            return false;
+        }
+        switch (notificationType) {
+            case CREATE:
+                return changeType.equalsIgnoreCase("CREATE");
+            case MODIFY:
+                return changeType.equalsIgnoreCase("MOD")
+                        || changeType.equalsIgnoreCase("MODIFY");
+            case DELETE:
+                return changeType.equalsIgnoreCase("DELETE");
+            default:
+                return false;
+        }
     }
 
     public String getFileTypeActionDefAsString() {
         String fileTypeDef = "Type " + fileTypeName + " change " + changeType
                 + " action " + action + " priority " + priority + " path "
-                + changePath;
+                + changePath + (delayMillis > 0
+                        ? " delay " + delayMillis + " ms" : "");
         return fileTypeDef;
     }
 }
@@ -24,8 +24,14 @@
 package org.lamke.fileorganizer;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.tika.Tika;
@@ -34,6 +40,12 @@ import org.apache.tika.Tika;
  * This class determines the type of a file based on the FileType definitions it
  * has. If it can't determine a file type, it sets the type to "UNK".
  *
+ * Tika reads the file to detect its type, so the types found are kept in a
+ * bounded cache, least recently used first out. The cache is keyed by the
+ * file's identity (its fileKey, or its path where the file system has no
+ * keys) plus its size and modification time, so a file that is renamed
+ * keeps its entry and a file that is rewritten gets a new one.
+ *
  * @author Chris Lamke <https://chris.lamke.org>
  */
 public class FileTypeDecider {
@@ -49,6 +61,49 @@ public class FileTypeDecider {
 
     Map fileTypeCodes;
 
+    /**
+     * Default number of detected types kept.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * Identifies one version of a file.
+     */
+    private static class FileVersion {
+
+        final Object identity;
+        final long size;
+        final long modifiedMillis;
+
+        FileVersion(Object identity, long size, long modifiedMillis) {
+            this.identity = identity;
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof FileVersion)) {
+                return false;
+            }
+            FileVersion version = (FileVersion) other;
+            return size == version.size
+                    && modifiedMillis == version.modifiedMillis
+                    && identity.equals(version.identity);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(identity, size, modifiedMillis);
+        }
+    }
+
+    // Tika types by file version, in access order. Guarded by itself.
+    private final LinkedHashMap<FileVersion, String> detectedTypes;
+    private volatile int cacheSize = DEFAULT_CACHE_SIZE;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
     /**
      * Private FileTypeDecider constructor because this is a singleton class.
      *
@@ -58,6 +113,14 @@ public class FileTypeDecider {
         tika = new Tika();
         fileTypeCodes = new HashMap();
         loadFileTypeCodes();
+        detectedTypes = new LinkedHashMap<FileVersion, String>(256, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<FileVersion, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
     }
 
     /**
@@ -105,9 +168,29 @@ public class FileTypeDecider {
      * @throws java.io.IOException
      */
     public String getFileType(String filePath) {
+        FileVersion version = getFileVersion(filePath);
+        if (version != null && cacheSize > 0) {
+            String type;
+            synchronized (detectedTypes) {
+                type = detectedTypes.get(version);
+            }
+            if (type != null) {
+                hitCount.incrementAndGet();
+                String typeCode = (String) fileTypeCodes.get(type);
+                logger.debug("File {} type already known as {}. Returning {}.",
+                        filePath, type, typeCode);
+                return typeCode;
+            }
+        }
         try {
+            missCount.incrementAndGet();
             String type = tika.detect(new java.io.File(filePath));
             String typeCode = (String) fileTypeCodes.get(type);
+            if (version != null && cacheSize > 0) {
+                synchronized (detectedTypes) {
+                    detectedTypes.put(version, type);
+                }
+            }
             
             logger.info("Tika: File {} type identified as {}. Returning {}.",
                     filePath, type, typeCode);
@@ -118,4 +201,70 @@ public class FileTypeDecider {
         }
     }
 
+    /**
+     * Get the cache key for the file as it is now, from the attributes
+     * already read for it where possible.
+     *
+     * @return FileVersion, or null if the file's attributes can't be read
+     */
+    private FileVersion getFileVersion(String filePath) {
+        try {
+            BasicFileAttributes attributes = FileAttributeCache.getInstance()
+                    .getAttributes(Paths.get(filePath));
+            Object identity = (attributes.fileKey() != null)
+                    ? attributes.fileKey() : filePath;
+            return new FileVersion(identity, attributes.size(),
+                    attributes.lastModifiedTime().toMillis());
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * setCacheSize() Set the number of detected types kept. 0 turns the
+     * cache off.
+     *
+     * @param cacheSize number of types kept
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = Math.max(0, cacheSize);
+        synchronized (detectedTypes) {
+            Iterator<FileVersion> versions = detectedTypes.keySet().iterator();
+            while (detectedTypes.size() > this.cacheSize) {
+                versions.next();
+                versions.remove();
+            }
+        }
+    }
+
+    /**
+     * getHitCount() Get the number of types found in the cache instead of
+     * by reading the file.
+     *
+     * @return long number of cache hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * getMissCount() Get the number of types detected by reading the file.
+     *
+     * @return long number of cache misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * getHitRatio() Get the share of lookups answered from the cache.
+     *
+     * @return double hits over all lookups, 0 if there have been none
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
 }
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+
+/**
+ * This interface defines a source of file notifications for a set of watched
+ * directories. Implementations may rely on OS change notification or on
+ * polling, but all of them report changes as FileNotifications so the rest of
+ * the app doesn't need to know which one is in use.
+ *
+ * A watcher is split into one or more shards. Each shard can be waited on by
+ * its own thread using getFileNotificationsBlock(int).
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public interface FileWatcher {
+
+    /**
+     * Start watching the given directory.
+     *
+     * @param watchPath as String - String containing path to watch for changes
+     * @param isRecursive as boolean - true if you want to watch all subdirs
+     * @return true if successful, false otherwise
+     * @throws java.io.IOException
+     */
+    boolean addWatchPath(String watchPath, boolean isRecursive)
+            throws IOException;
+
+    /**
+     * Stop watching the given directory.
+     *
+     * @param watchPath as String - String containing path to stop watching
+     * @param isRecursive as boolean - true to stop watching all subdirs too
+     * @return true if successful, false otherwise
+     * @throws java.io.IOException
+     */
+    boolean removeWatchPath(String watchPath, boolean isRecursive)
+            throws IOException;
+
+    /**
+     * Return the notifications for changes in the watched paths, waiting up
+     * to the given timeout for one to become available.
+     *
+     * @param millisecs as poll timeout in millisecs
+     * @return FileNotificationCollection, or null if nothing changed
+     */
+    FileNotificationCollection getFileNotificationsPoll(int millisecs);
+
+    /**
+     * Block until a change is seen on the given shard and return its
+     * notifications.
+     *
+     * @param shard index of the shard to wait on
+     * @return FileNotificationCollection, or null if the calling thread was
+     * interrupted or the watcher was closed
+     */
+    FileNotificationCollection getFileNotificationsBlock(int shard);
+
+    /**
+     * Get the number of shards that can be waited on independently.
+     *
+     * @return int number of shards
+     */
+    int getShardCount();
+
+}
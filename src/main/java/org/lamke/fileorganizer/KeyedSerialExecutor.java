@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * This class runs tasks that share a key one at a time, in the order they
+ * were added, while tasks with different keys run in parallel on the
+ * underlying executor. Keying tasks by file path keeps the actions for one
+ * file in order, e.g. a CREATE's actions finish before a later DELETE's
+ * actions start, without making other files wait.
+ *
+ * Only the oldest task of each key is handed to the executor. The rest wait
+ * in a queue for their key, which is dropped when it empties. The tasks
+ * handed over compare the same way as the tasks they wrap, so an executor
+ * with a priority queue still orders them.
+ *
+ * A task can be run again after a delay, for example when it failed on a
+ * file that was still locked. Its key stays held while it waits, so tasks
+ * added later for the same key still run after it, and no worker thread is
+ * tied up by the wait.
+ *
+ * Tasks can be spread over several executors, e.g. one per file store. The
+ * executor is picked for each task as it is handed over, and a key's tasks
+ * still run one at a time even when they go to different executors.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ * @param <T> task type
+ */
+public class KeyedSerialExecutor<T extends Runnable & Comparable<? super T>> {
+
+    // Picks the executor that runs a task.
+    private final Function<? super T, Executor> executorFor;
+    private final ScheduledExecutorService retryTimer;
+    // Gets the delay before a task that has just run is run again, or -1 if
+    // it is done.
+    private final ToLongFunction<T> retryDelay;
+    // Tasks waiting behind a running task, by key. A key is present while
+    // one of its tasks is with the executor.
+    private final HashMap<String, ArrayDeque<T>> waitingByKey;
+    private int waitingCount = 0;
+
+    /**
+     * A task handed to the executor, which starts the next task for its key
+     * when it finishes.
+     */
+    private class KeyedTask implements Runnable, Comparable<KeyedTask> {
+
+        final String key;
+        final T task;
+
+        KeyedTask(String key, T task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long delay = -1;
+            try {
+                task.run();
+                delay = retryDelay.applyAsLong(task);
+            } finally {
+                if (delay >= 0) {
+                    retryTimer.schedule(
+                            () -> executorFor.apply(task).execute(this),
+                            delay, TimeUnit.MILLISECONDS);
+                } else {
+                    runNext(key);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(KeyedTask other) {
+            return task.compareTo(other.task);
+        }
+    }
+
+    /**
+     * This is the KeyedSerialExecutor constructor.
+     *
+     * @param executor executor that runs the tasks
+     */
+    KeyedSerialExecutor(Executor executor) {
+        this(executor, null, task -> -1);
+    }
+
+    /**
+     * This is the KeyedSerialExecutor constructor for tasks that may need
+     * to run again.
+     *
+     * @param executor executor that runs the tasks
+     * @param retryTimer runs tasks again after their delay
+     * @param retryDelay called after each run of a task with the millisecs
+     * to wait before running it again, or -1 if it is done
+     */
+    KeyedSerialExecutor(Executor executor,
+            ScheduledExecutorService retryTimer, ToLongFunction<T> retryDelay) {
+        this(task -> executor, retryTimer, retryDelay);
+    }
+
+    /**
+     * This is the KeyedSerialExecutor constructor for tasks spread over
+     * several executors.
+     *
+     * @param executorFor picks the executor that runs a task
+     * @param retryTimer runs tasks again after their delay
+     * @param retryDelay called after each run of a task with the millisecs
+     * to wait before running it again, or -1 if it is done
+     */
+    KeyedSerialExecutor(Function<? super T, Executor> executorFor,
+            ScheduledExecutorService retryTimer, ToLongFunction<T> retryDelay) {
+        this.executorFor = executorFor;
+        this.retryTimer = retryTimer;
+        this.retryDelay = retryDelay;
+        this.waitingByKey = new HashMap<>();
+    }
+
+    /**
+     * execute() Run a task after every task already added with the same
+     * key has finished.
+     *
+     * @param key key the task is ordered by, e.g. a file path
+     * @param task task to run
+     */
+    public void execute(String key, T task) {
+        synchronized (waitingByKey) {
+            ArrayDeque<T> waiting = waitingByKey.get(key);
+            if (waiting != null) {
+                waiting.add(task);
+                waitingCount++;
+                return;
+            }
+            waitingByKey.put(key, new ArrayDeque<>(2));
+        }
+        executorFor.apply(task).execute(new KeyedTask(key, task));
+    }
+
+    private void runNext(String key) {
+        T next;
+        synchronized (waitingByKey) {
+            ArrayDeque<T> waiting = waitingByKey.get(key);
+            next = waiting.poll();
+            if (next == null) {
+                waitingByKey.remove(key);
+                return;
+            }
+            waitingCount--;
+        }
+        executorFor.apply(next).execute(new KeyedTask(key, next));
+    }
+
+    /**
+     * getWaitingCount() Get the number of tasks held back behind an earlier
+     * task with the same key.
+     *
+     * @return int number of held tasks
+     */
+    public int getWaitingCount() {
+        synchronized (waitingByKey) {
+            return waitingCount;
+        }
+    }
+
+    /**
+     * getActiveKeyCount() Get the number of keys with a task queued or
+     * running.
+     *
+     * @return int number of active keys
+     */
+    public int getActiveKeyCount() {
+        synchronized (waitingByKey) {
+            return waitingByKey.size();
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is a first-in first-out store of file notifications on local
+ * disk. The FileNotificationRingBuffer moves notifications here when it is
+ * full and reads them back once the processing side catches up. The file is
+ * truncated whenever everything written to it has been read.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+class NotificationSpillSegment {
+
+    private static final FileNotification.NotificationType[] TYPES
+            = FileNotification.NotificationType.values();
+
+    private final Path segmentPath;
+    private final FileChannel channel;
+    private DataOutputStream output;
+    private long readPosition = 0;
+    private long pendingCount = 0;
+
+    /**
+     * Open the segment file, discarding anything left in it.
+     *
+     * @param segmentPath path of the segment file
+     * @throws IOException
+     */
+    NotificationSpillSegment(Path segmentPath) throws IOException {
+        this.segmentPath = segmentPath;
+        this.channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        openOutput();
+    }
+
+    Path getPath() {
+        return segmentPath;
+    }
+
+    boolean hasPending() {
+        return pendingCount > 0;
+    }
+
+    long getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Append a notification to the end of the segment.
+     *
+     * @param notification notification to write
+     * @throws IOException
+     */
+    void write(FileNotification notification) throws IOException {
+        output.writeByte(notification.notificationType.ordinal());
+        output.writeUTF(notification.filePath);
+        output.writeBoolean(notification.sourcePath != null);
+        if (notification.sourcePath != null) {
+            output.writeUTF(notification.sourcePath);
+        }
+        pendingCount++;
+    }
+
+    /**
+     * Make everything written so far visible to read().
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * Read up to maxCount notifications from the front of the segment.
+     *
+     * @param maxCount max number of notifications to read
+     * @return List of notifications, in the order they were written
+     * @throws IOException
+     */
+    List<FileNotification> read(int maxCount) throws IOException {
+        flush();
+        List<FileNotification> notifications = new ArrayList<>();
+        channel.position(readPosition);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel)));
+        long bytesRead = 0;
+        // Nothing is taken off the segment until every read has worked, so
+        // a failed read can be tried again.
+        while (notifications.size() < maxCount
+                && notifications.size() < pendingCount) {
+            FileNotification.NotificationType type
+                    = TYPES[input.readUnsignedByte()];
+            String filePath = input.readUTF();
+            String sourcePath = input.readBoolean() ? input.readUTF() : null;
+            bytesRead += 1 + utfLength(filePath) + 1
+                    + ((sourcePath == null) ? 0 : utfLength(sourcePath));
+            notifications.add(new FileNotification(type, filePath,
+                    sourcePath));
+        }
+        readPosition += bytesRead;
+        pendingCount -= notifications.size();
+
+        if (pendingCount == 0) {
+            channel.truncate(0);
+            readPosition = 0;
+        }
+        openOutput();
+        return notifications;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes go to the end of the file, wherever the last read left the
+     * shared channel position.
+     */
+    private void openOutput() throws IOException {
+        channel.position(channel.size());
+        output = new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(channel)));
+    }
+
+    /**
+     * Number of bytes writeUTF uses for a string, including its length.
+     */
+    private static int utfLength(String value) {
+        int length = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * This class interns directory paths. Each directory path is stored once and
+ * given a small int id, so a file can be held as the id of its parent
+ * directory plus its own name instead of a full path string. Ids are handed
+ * out in order from 0 and are never reused. This is a singleton class. Use
+ * the getInstance method to access the object.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class PathDictionary {
+
+    /**
+     * Id of the empty directory, the parent of paths with no parent.
+     */
+    public static final int NO_DIRECTORY = 0;
+
+    private static PathDictionary pathDictionaryInstance = null;
+    // Directory path for each id, indexed by id.
+    private final ArrayList<String> directoryPaths;
+    private final HashMap<String, Integer> directoryIds;
+
+    /**
+     * Private PathDictionary constructor because this is a singleton class.
+     */
+    private PathDictionary() {
+        directoryPaths = new ArrayList<>();
+        directoryIds = new HashMap<>();
+        getDirectoryId("");
+    }
+
+    /**
+     * Public static method to get instance of PathDictionary class.
+     *
+     * @return PathDictionary instance
+     */
+    public static synchronized PathDictionary getInstance() {
+        if (pathDictionaryInstance == null) {
+            pathDictionaryInstance = new PathDictionary();
+        }
+        return pathDictionaryInstance;
+    }
+
+    /**
+     * getDirectoryId() Get the id of a directory path, adding it if it
+     * isn't known yet.
+     *
+     * @param directoryPath directory path, "" for none
+     * @return int directory id
+     */
+    public synchronized int getDirectoryId(String directoryPath) {
+        Integer id = directoryIds.get(directoryPath);
+        if (id == null) {
+            id = directoryPaths.size();
+            directoryPaths.add(directoryPath);
+            directoryIds.put(directoryPath, id);
+        }
+        return id;
+    }
+
+    /**
+     * findDirectoryId() Get the id of a directory path without adding it.
+     *
+     * @param directoryPath directory path
+     * @return int directory id, or -1 if the path isn't known
+     */
+    public synchronized int findDirectoryId(String directoryPath) {
+        Integer id = directoryIds.get(directoryPath);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * getDirectoryPath() Get the directory path for an id.
+     *
+     * @param directoryId id from getDirectoryId()
+     * @return String directory path
+     */
+    public synchronized String getDirectoryPath(int directoryId) {
+        return directoryPaths.get(directoryId);
+    }
+
+    /**
+     * getPath() Join a directory id and a name back into a full path.
+     *
+     * @param directoryId id of the parent directory
+     * @param name file or directory name
+     * @return String full path
+     */
+    public String getPath(int directoryId, String name) {
+        String directory = getDirectoryPath(directoryId);
+        if (directory.isEmpty()) {
+            return name;
+        }
+        if (directory.endsWith(File.separator)) {
+            return directory + name;
+        }
+        return directory + File.separator + name;
+    }
+
+    /**
+     * getDirectoryCount() Get the number of directory paths held.
+     *
+     * @return int number of directories
+     */
+    public synchronized int getDirectoryCount() {
+        return directoryPaths.size();
+    }
+
+    /**
+     * getParentPath() Get the parent directory part of a path.
+     *
+     * @param path full path
+     * @return String parent directory path, "" if there is none
+     */
+    public static String getParentPath(String path) {
+        int end = path.lastIndexOf(File.separatorChar);
+        if (end < 0) {
+            return "";
+        }
+        // Keep the separator for a root such as "/" or "c:\".
+        if (end == 0 || path.charAt(end - 1) == ':') {
+            return (end == path.length() - 1) ? "" : path.substring(0, end + 1);
+        }
+        return path.substring(0, end);
+    }
+
+    /**
+     * getName() Get the last name in a path.
+     *
+     * @param path full path
+     * @return String file or directory name
+     */
+    public static String getName(String path) {
+        return path.substring(path.lastIndexOf(File.separatorChar) + 1);
+    }
+
+}
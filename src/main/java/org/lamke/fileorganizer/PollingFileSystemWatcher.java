@@ -0,0 +1,371 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class watches directories by polling them instead of relying on OS
+ * change notification, which doesn't see changes made by other hosts on
+ * network mounts. Each directory is kept as a compact DirectorySnapshot and
+ * rescanned when due, and the differences are reported as FileNotifications.
+ * Due directories are scanned in parallel. A directory that just changed is
+ * polled at the minimum interval, and the interval doubles each time a scan
+ * finds nothing, up to the maximum. This is a singleton class. Use the
+ * getInstance method to access the object.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class PollingFileSystemWatcher implements FileWatcher {
+
+    /**
+     * Default shortest time between scans of a directory.
+     */
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Default longest time between scans of a directory.
+     */
+    public static final long DEFAULT_MAX_INTERVAL_MILLIS = 30000;
+
+    private static PollingFileSystemWatcher watcherInstance = null;
+
+    private final Logger logger
+            = LogManager.getLogger(PollingFileSystemWatcher.class.getName());
+    private final Map<Path, PolledDirectory> directories;
+    private final ForkJoinPool scanPool;
+    private long minIntervalMillis = DEFAULT_MIN_INTERVAL_MILLIS;
+    private long maxIntervalMillis = DEFAULT_MAX_INTERVAL_MILLIS;
+
+    /**
+     * A directory being polled and its last known contents.
+     */
+    private static class PolledDirectory {
+
+        final Path path;
+        final boolean isRecursive;
+        DirectorySnapshot snapshot;
+        long intervalMillis;
+        long nextScanMillis;
+
+        PolledDirectory(Path path, boolean isRecursive,
+                DirectorySnapshot snapshot, long intervalMillis,
+                long nowMillis) {
+            this.path = path;
+            this.isRecursive = isRecursive;
+            this.snapshot = snapshot;
+            this.intervalMillis = intervalMillis;
+            this.nextScanMillis = nowMillis + intervalMillis;
+        }
+    }
+
+    /**
+     * Private PollingFileSystemWatcher constructor because this is a
+     * singleton class.
+     */
+    private PollingFileSystemWatcher() {
+        directories = new HashMap<>();
+        scanPool = new ForkJoinPool();
+    }
+
+    /**
+     * Public static method to get instance of PollingFileSystemWatcher class.
+     *
+     * @return PollingFileSystemWatcher instance
+     */
+    public static synchronized PollingFileSystemWatcher getInstance() {
+        if (watcherInstance == null) {
+            watcherInstance = new PollingFileSystemWatcher();
+        }
+
+        return watcherInstance;
+    }
+
+    /**
+     * Set the range the adaptive poll interval of each directory moves in.
+     *
+     * @param minMillis shortest time between scans of a directory
+     * @param maxMillis longest time between scans of a directory
+     */
+    public synchronized void setPollInterval(long minMillis, long maxMillis) {
+        if (minMillis < 1 || maxMillis < minMillis) {
+            logger.error("Invalid poll interval {} - {} ms. Keeping {} - {} ms",
+                    minMillis, maxMillis, minIntervalMillis,
+                    maxIntervalMillis);
+            return;
+        }
+        minIntervalMillis = minMillis;
+        maxIntervalMillis = maxMillis;
+    }
+
+    @Override
+    public synchronized boolean addWatchPath(String watchPath,
+            boolean isRecursive) throws IOException {
+        Path path = Paths.get(watchPath);
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            throw new NotDirectoryException(watchPath);
+        }
+
+        long startTime = System.nanoTime();
+        int added = addPolledDirectory(path, isRecursive, nowMillis());
+        logger.info("Polling {} directories under {}. Ready in {} ms",
+                added, path, TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - startTime));
+
+        // Wake up the pump so it picks up the new schedule.
+        notifyAll();
+        return added > 0;
+    }
+
+    @Override
+    public synchronized boolean removeWatchPath(String watchPath,
+            boolean isRecursive) throws IOException {
+        Path path = Paths.get(watchPath);
+        if (!isRecursive) {
+            return directories.remove(path) != null;
+        }
+
+        boolean removed = false;
+        List<Path> toRemove = new ArrayList<>();
+        for (Path directory : directories.keySet()) {
+            if (directory.startsWith(path)) {
+                toRemove.add(directory);
+            }
+        }
+        for (Path directory : toRemove) {
+            directories.remove(directory);
+            removed = true;
+        }
+        return removed;
+    }
+
+    @Override
+    public FileNotificationCollection getFileNotificationsPoll(int millisecs) {
+        long deadline = nowMillis() + millisecs;
+        try {
+            return waitAndScan(deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public FileNotificationCollection getFileNotificationsBlock(int shard) {
+        try {
+            return waitAndScan(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            logger.debug("Interrupted while waiting for notifications");
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public int getShardCount() {
+        return 1;
+    }
+
+    /**
+     * Get the number of directories being polled.
+     *
+     * @return int number of polled directories
+     */
+    public synchronized int getDirectoryCount() {
+        return directories.size();
+    }
+
+    /**
+     * Wait until directories are due, scan them and return the changes.
+     * Keeps going until something changed or the deadline passes.
+     */
+    private FileNotificationCollection waitAndScan(long deadline)
+            throws InterruptedException {
+        for (;;) {
+            List<PolledDirectory> due = waitForDueDirectories(deadline);
+            if (due == null) {
+                return null;
+            }
+
+            FileNotificationCollection notifications = scanDirectories(due);
+            if (notifications.getNotificationCount() > 0) {
+                return notifications;
+            }
+        }
+    }
+
+    /**
+     * Wait for the next directory to become due and return all directories
+     * that are due, or null once the deadline has passed.
+     */
+    private synchronized List<PolledDirectory> waitForDueDirectories(
+            long deadline) throws InterruptedException {
+        for (;;) {
+            long now = nowMillis();
+            long nextScan = Long.MAX_VALUE;
+            List<PolledDirectory> due = new ArrayList<>();
+            for (PolledDirectory directory : directories.values()) {
+                if (directory.nextScanMillis <= now) {
+                    due.add(directory);
+                } else {
+                    nextScan = Math.min(nextScan, directory.nextScanMillis);
+                }
+            }
+            if (!due.isEmpty()) {
+                return due;
+            }
+            if (now >= deadline) {
+                return null;
+            }
+
+            long wakeUp = Math.min(nextScan, deadline);
+            if (wakeUp == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(Math.max(1, wakeUp - now));
+            }
+        }
+    }
+
+    /**
+     * Scan the given directories in parallel, then diff each one against its
+     * last snapshot and reschedule it.
+     */
+    private FileNotificationCollection scanDirectories(
+            List<PolledDirectory> due) throws InterruptedException {
+        List<Callable<DirectorySnapshot>> scans = new ArrayList<>();
+        for (PolledDirectory directory : due) {
+            scans.add(() -> DirectorySnapshot.scan(directory.path));
+        }
+        List<Future<DirectorySnapshot>> results = scanPool.invokeAll(scans);
+
+        FileNotificationCollection notifications
+                = new FileNotificationCollection();
+        synchronized (this) {
+            long now = nowMillis();
+            for (int i = 0; i < due.size(); i++) {
+                PolledDirectory directory = due.get(i);
+                if (directories.get(directory.path) != directory) {
+                    // Removed while it was being scanned.
+                    continue;
+                }
+
+                DirectorySnapshot snapshot;
+                try {
+                    snapshot = results.get(i).get();
+                } catch (ExecutionException e) {
+                    // The directory is gone or unreadable. Its parent's
+                    // scan, or the NIO watcher, reports the deletion.
+                    logger.info("Stopped polling {} - {}", directory.path,
+                            e.getCause().toString());
+                    directories.remove(directory.path);
+                    continue;
+                }
+
+                int changes = snapshot.diff(directory.snapshot,
+                        directory.path, notifications);
+                if (directory.isRecursive) {
+                    addNewSubDirectories(directory, snapshot, now);
+                }
+                directory.snapshot = snapshot;
+                if (changes > 0) {
+                    directory.intervalMillis = minIntervalMillis;
+                } else {
+                    directory.intervalMillis = Math.min(maxIntervalMillis,
+                            directory.intervalMillis * 2);
+                }
+                directory.nextScanMillis = now + directory.intervalMillis;
+            }
+        }
+
+        logger.debug("Scanned {} directories, {} notifications", due.size(),
+                notifications.getNotificationCount());
+        return notifications;
+    }
+
+    /**
+     * Start polling sub-directories of a recursively polled directory that
+     * weren't there at its last scan. They start from an empty snapshot and
+     * are scanned right away, so whatever is already inside them is reported
+     * as created.
+     */
+    private void addNewSubDirectories(PolledDirectory directory,
+            DirectorySnapshot snapshot, long now) {
+        for (String name : snapshot.getDirectoryNames()) {
+            Path subDirectory = directory.path.resolve(name);
+            if (!directories.containsKey(subDirectory)) {
+                PolledDirectory polled = new PolledDirectory(subDirectory,
+                        true, DirectorySnapshot.empty(), minIntervalMillis,
+                        now);
+                polled.nextScanMillis = now;
+                directories.put(subDirectory, polled);
+            }
+        }
+    }
+
+    /**
+     * Take the initial snapshot of a directory and, if recursive, of all its
+     * sub-directories, and schedule them for polling.
+     */
+    private int addPolledDirectory(Path path, boolean isRecursive, long now)
+            throws IOException {
+        DirectorySnapshot snapshot = DirectorySnapshot.scan(path);
+        directories.put(path, new PolledDirectory(path, isRecursive,
+                snapshot, minIntervalMillis, now));
+
+        int added = 1;
+        if (isRecursive) {
+            for (String name : snapshot.getDirectoryNames()) {
+                try {
+                    added += addPolledDirectory(path.resolve(name), true, now);
+                } catch (IOException e) {
+                    logger.error("Unable to poll {} - {}",
+                            path.resolve(name), e.toString());
+                }
+            }
+        }
+        return added;
+    }
+
+    private static long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * This class decides what happens to a task that failed. Files that are
+ * still being written, or are held open by another program such as a
+ * virus scanner, often can't be moved or copied right away, so the task is
+ * tried again later according to the RetryPolicy for the kind of failure.
+ * The policy is found by exception class, looking at superclasses until
+ * one has a policy. Tasks that run out of retries, or fail in a way that
+ * waiting won't fix, go on the dead letter list.
+ *
+ * Counts of retries, recoveries and dead letters and the time from first
+ * failure to success are kept for monitoring. This class is thread safe.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class RetryEngine {
+
+    /**
+     * Default number of retries for lock and sharing failures.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 8;
+
+    /**
+     * Default wait before the first retry.
+     */
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+
+    /**
+     * Default longest wait between retries.
+     */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 60000;
+
+    /**
+     * Most dead letters kept. Older ones are dropped but still counted.
+     */
+    public static final int DEAD_LETTER_LIMIT = 1000;
+
+    /**
+     * A task that was given up on.
+     */
+    public static class DeadLetter {
+
+        final Task task;
+        final Exception failure;
+        final int attempts;
+        final long failedAtMillis;
+
+        DeadLetter(Task task, Exception failure, int attempts) {
+            this.task = task;
+            this.failure = failure;
+            this.attempts = attempts;
+            this.failedAtMillis = System.currentTimeMillis();
+        }
+
+        public Task getTask() {
+            return task;
+        }
+
+        public Exception getFailure() {
+            return failure;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getFailedAtMillis() {
+            return failedAtMillis;
+        }
+    }
+
+    private final Logger logger
+            = LogManager.getLogger(RetryEngine.class.getName());
+    private final HashMap<Class<?>, RetryPolicy> policies;
+    private final ArrayDeque<DeadLetter> deadLetters;
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong recoveredCount = new AtomicLong();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+    private final AtomicLong totalRecoveryNanos = new AtomicLong();
+    private final AtomicLong maxRecoveryNanos = new AtomicLong();
+
+    /**
+     * This is the RetryEngine constructor. File system failures without a
+     * more specific class, which is how sharing violations on locked files
+     * show up, get the given policy. So does denied access, which is how
+     * Windows reports a file another program has open, but the policy's
+     * retry limit means a file that really can't be accessed is given up
+     * on. Other I/O failures get a few quick retries. A missing file, an
+     * existing destination, a path that isn't a directory or a cancelled
+     * copy won't be fixed by waiting, so they aren't retried.
+     *
+     * @param lockedFilePolicy policy for files that are locked or in use
+     */
+    RetryEngine(RetryPolicy lockedFilePolicy) {
+        policies = new HashMap<>();
+        deadLetters = new ArrayDeque<>();
+        setPolicy(IOException.class, new RetryPolicy(3,
+                DEFAULT_BASE_DELAY_MILLIS, DEFAULT_BASE_DELAY_MILLIS * 8));
+        setPolicy(NoSuchFileException.class, RetryPolicy.NO_RETRY);
+        setPolicy(AccessDeniedException.class, lockedFilePolicy);
+        setPolicy(FileAlreadyExistsException.class, RetryPolicy.NO_RETRY);
+        setPolicy(NotDirectoryException.class, RetryPolicy.NO_RETRY);
+        setPolicy(FileSystemException.class, lockedFilePolicy);
+        // Cancelled or interrupted copies.
+        setPolicy(InterruptedIOException.class, RetryPolicy.NO_RETRY);
+    }
+
+    /**
+     * setPolicy() Set the policy for a kind of failure and its subclasses
+     * that have no policy of their own.
+     *
+     * @param failureClass exception class
+     * @param policy policy to use
+     */
+    public synchronized void setPolicy(Class<? extends Exception> failureClass,
+            RetryPolicy policy) {
+        policies.put(failureClass, policy);
+    }
+
+    /**
+     * getPolicy() Get the policy for a failure.
+     *
+     * @param failure exception the task failed with
+     * @return RetryPolicy to use, NO_RETRY if none applies
+     */
+    public synchronized RetryPolicy getPolicy(Exception failure) {
+        for (Class<?> type = failure.getClass(); type != null;
+                type = type.getSuperclass()) {
+            RetryPolicy policy = policies.get(type);
+            if (policy != null) {
+                return policy;
+            }
+        }
+        return RetryPolicy.NO_RETRY;
+    }
+
+    /**
+     * onFailure() Record a failed attempt and decide whether to try again.
+     *
+     * @param task task that failed
+     * @param failure what it failed with
+     * @return long millisecs to wait before the next attempt, or -1 if the
+     * task has been given up on
+     */
+    public long onFailure(Task task, Exception failure) {
+        int retryNumber = task.attempts;
+        if (retryNumber == 1) {
+            task.firstFailureNanos = System.nanoTime();
+        }
+        RetryPolicy policy = getPolicy(failure);
+        long delay = policy.getRetryDelay(retryNumber);
+        if (delay < 0) {
+            addDeadLetter(new DeadLetter(task, failure, task.attempts));
+            logger.error("ERROR: Giving up on task {} after {} attempts - {}",
+                    task.getTaskAsString(), task.attempts, failure.toString());
+            return -1;
+        }
+
+        retryCount.incrementAndGet();
+        logger.info("Task {} failed ({}). Retry {} of {} in {} ms",
+                task.getTaskAsString(), failure.toString(), retryNumber,
+                policy.getMaxRetries(), delay);
+        return delay;
+    }
+
+    /**
+     * onSuccess() Record that a task finished, noting how long it took to
+     * get through if it needed retries.
+     *
+     * @param task task that finished
+     */
+    public void onSuccess(Task task) {
+        if (task.attempts <= 1) {
+            return;
+        }
+        long recoveryNanos = System.nanoTime() - task.firstFailureNanos;
+        recoveredCount.incrementAndGet();
+        totalRecoveryNanos.addAndGet(recoveryNanos);
+        maxRecoveryNanos.accumulateAndGet(recoveryNanos, Math::max);
+        logger.info("Task {} succeeded after {} attempts",
+                task.getTaskAsString(), task.attempts);
+    }
+
+    private synchronized void addDeadLetter(DeadLetter deadLetter) {
+        deadLetterCount.incrementAndGet();
+        if (deadLetters.size() >= DEAD_LETTER_LIMIT) {
+            deadLetters.poll();
+        }
+        deadLetters.add(deadLetter);
+    }
+
+    /**
+     * getDeadLetters() Get the tasks most recently given up on, oldest
+     * first.
+     *
+     * @return List of dead letters
+     */
+    public synchronized List<DeadLetter> getDeadLetters() {
+        return new ArrayList<>(deadLetters);
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    public long getRecoveredCount() {
+        return recoveredCount.get();
+    }
+
+    public long getDeadLetterCount() {
+        return deadLetterCount.get();
+    }
+
+    /**
+     * getAverageRecoveryMillis() Get the average time from a task's first
+     * failure to its success, for tasks that succeeded after a retry.
+     *
+     * @return long average millisecs, 0 if none have recovered
+     */
+    public long getAverageRecoveryMillis() {
+        long recovered = recoveredCount.get();
+        return (recovered == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(
+                totalRecoveryNanos.get() / recovered);
+    }
+
+    public long getMaxRecoveryMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxRecoveryNanos.get());
+    }
+
+}
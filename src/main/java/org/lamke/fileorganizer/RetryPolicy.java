@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class says how often and how soon a failed task is tried again. The
+ * wait doubles with each retry, from the base delay up to the max delay,
+ * and a random amount of up to half the wait is taken off so tasks that
+ * failed together don't all retry together.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class RetryPolicy {
+
+    /**
+     * Policy for failures that won't go away by waiting.
+     */
+    public static final RetryPolicy NO_RETRY = new RetryPolicy(0, 0, 0);
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    /**
+     * This is the RetryPolicy constructor.
+     *
+     * @param maxRetries number of times to try again before giving up
+     * @param baseDelayMillis wait before the first retry
+     * @param maxDelayMillis longest wait between retries
+     */
+    public RetryPolicy(int maxRetries, long baseDelayMillis,
+            long maxDelayMillis) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * getRetryDelay() Get how long to wait before the given retry.
+     *
+     * @param retryNumber 1 for the first retry
+     * @return long millisecs to wait, or -1 to give up
+     */
+    public long getRetryDelay(int retryNumber) {
+        if (retryNumber > maxRetries) {
+            return -1;
+        }
+        int doublings = Math.min(retryNumber - 1, 62);
+        long delay = (baseDelayMillis > (maxDelayMillis >> doublings))
+                ? maxDelayMillis : baseDelayMillis << doublings;
+        long jitter = ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        return delay - jitter;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public String getRetryPolicyAsString() {
+        return "retries " + maxRetries + " base " + baseDelayMillis
+                + " ms max " + maxDelayMillis + " ms";
+    }
+
+}
@@ -23,20 +23,206 @@
  */
 package org.lamke.fileorganizer;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 /**
  * This class defines tasks the app will execute, including file copies and
- * moves, file type transforms, etc.
+ * moves, file type transforms, etc. A task carries out one configured
+ * action for one file. Tasks are ordered by their action's priority, where
+ * 1 is the highest, and then by the order they were queued in.
+ *
  * @author Chris Lamke <https://chris.lamke.org>
  */
-public class Task {
-    
+public class Task implements Runnable, Comparable<Task> {
+
+    private static final Logger logger
+            = LogManager.getLogger(Task.class.getName());
+    private final FileTypeActionDef actionDef;
+    private final String filePath;
+    private final FileNotification.NotificationType notificationType;
+    // Content hashes kept in the file's record, may be null.
+    private final ContentHash contentHash;
+    // Set by the TaskQueue, so tasks of equal priority run in queue order.
+    long sequence = 0;
+    // Number of times the task has been run, and what the last run failed
+    // with, or null if it succeeded. Used by the RetryEngine.
+    int attempts = 0;
+    Exception failure = null;
+    long firstFailureNanos = 0;
+    // Journal offset of the notification that led to the task, or -1. The
+    // journal isn't trimmed past it until the task is done.
+    long journalOffset = -1;
+    private volatile boolean cancelled = false;
+    // Last tenth of a copy that was logged.
+    private int loggedTenths = 0;
+
     /**
      * This is the Task constructor.
      *
+     * @param actionDef action to carry out
+     * @param filePath path of the file the action applies to
+     * @param notificationType kind of change that triggered the action
+     */
+    Task(FileTypeActionDef actionDef, String filePath,
+            FileNotification.NotificationType notificationType) {
+        this(actionDef, filePath, notificationType, null);
+    }
+
+    /**
+     * This is the Task constructor for a file with a record, whose content
+     * hashes are kept so they aren't computed again.
      *
+     * @param actionDef action to carry out
+     * @param filePath path of the file the action applies to
+     * @param notificationType kind of change that triggered the action
+     * @param contentHash content hashes from the file's record, may be null
+     */
+    Task(FileTypeActionDef actionDef, String filePath,
+            FileNotification.NotificationType notificationType,
+            ContentHash contentHash) {
+        this.actionDef = actionDef;
+        this.filePath = filePath;
+        this.notificationType = notificationType;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * run() Carry out the action. A failure is kept for getFailure() rather
+     * than thrown, so it doesn't stop the worker thread and the task can be
+     * retried.
+     */
+    @Override
+    public void run() {
+        attempts++;
+        failure = null;
+        loggedTenths = 0;
+        try {
+            FileSystemUtilities fileUtilities
+                    = FileSystemUtilities.getInstance();
+            switch (actionDef.action.toUpperCase()) {
+                case "MOVE":
+                    placeFile(fileUtilities, true);
+                    break;
+                case "COPY":
+                    placeFile(fileUtilities, false);
+                    break;
+                case "MSG":
+                    logger.info("{} of {} ({})", notificationType, filePath,
+                            actionDef.getFileTypeActionDefAsString());
+                    break;
+                default:
+                    logger.error("ERROR: Unknown action {} for {}",
+                            actionDef.action, filePath);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            logger.error("ERROR: Task {} failed", getTaskAsString(), e);
+            failure = e;
+        }
+    }
+
+    /**
+     * Move or copy the file to the destination, unless the same content is
+     * already there.
+     */
+    private void placeFile(FileSystemUtilities fileUtilities, boolean isMove)
+            throws IOException {
+        String destPath = getDestinationPath();
+        ContentDeduplicator deduplicator = fileUtilities.getDeduplicator();
+        if (deduplicator.placeDuplicate(Paths.get(filePath),
+                Paths.get(destPath), contentHash, isMove)) {
+            return;
+        }
+        if (isMove) {
+            fileUtilities.moveFileChecked(filePath, destPath,
+                    this::onCopyProgress);
+        } else {
+            fileUtilities.copyFileChecked(filePath, destPath,
+                    this::onCopyProgress);
+        }
+        deduplicator.addFile(Paths.get(destPath), contentHash);
+    }
+
+    /**
+     * Log a copy's progress every tenth of the way, and stop it if the task
+     * has been cancelled.
      */
-    Task() {
-        
+    private boolean onCopyProgress(long bytesCopied, long totalBytes) {
+        int tenths = (totalBytes == 0)
+                ? 10 : (int) (bytesCopied * 10 / totalBytes);
+        if (tenths > loggedTenths) {
+            loggedTenths = tenths;
+            logger.debug("Copying {}: {} of {} bytes", filePath, bytesCopied,
+                    totalBytes);
+        }
+        return !cancelled;
     }
-    
+
+    /**
+     * cancel() Ask the task to stop. A copy in progress stops at its next
+     * chunk and its partial destination is removed.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * getFailure() Get what the last run of the task failed with.
+     *
+     * @return Exception, or null if the last run succeeded
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Tasks with a lower priority number come first. Ties go to the task
+     * queued first.
+     */
+    @Override
+    public int compareTo(Task other) {
+        int order = Integer.compare(getPriority(), other.getPriority());
+        return (order != 0) ? order : Long.compare(sequence, other.sequence);
+    }
+
+    public int getPriority() {
+        return actionDef.priority;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public FileNotification.NotificationType getNotificationType() {
+        return notificationType;
+    }
+
+    public FileTypeActionDef getActionDef() {
+        return actionDef;
+    }
+
+    /**
+     * getDestinationPath() Get where a MOVE or COPY puts the file: the
+     * action path plus the file's name.
+     *
+     * @return String destination path
+     */
+    public String getDestinationPath() {
+        return Paths.get(actionDef.changePath)
+                .resolve(Paths.get(filePath).getFileName()).toString();
+    }
+
+    public String getTaskAsString() {
+        return actionDef.action + " " + filePath + " (priority "
+                + actionDef.priority + ")";
+    }
+
 }
@@ -23,21 +23,195 @@
  */
 package org.lamke.fileorganizer;
 
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 /**
- * This class stores tasks to be executed in FIFO order. Tasks include file
- * moves, file type transforms, etc.
+ * This class stores tasks to be executed and runs them on pools of worker
+ * threads, so a slow task such as a large copy doesn't hold up the app's
+ * main loop or the tasks behind it. Tasks are run in FileStoreLanes by the
+ * file stores they use, so a slow network share only holds up tasks that
+ * use it. Within a lane, waiting tasks are taken highest priority first and
+ * in FIFO order within a priority. Tasks for the same
+ * file always run one at a time in the order they were added, so a file's
+ * actions are applied in the order its changes happened. A task that fails
+ * is handed to the RetryEngine, which may have it run again after a delay.
+ * The journal offsets of unfinished tasks are tracked, so the notification
+ * journal is only trimmed past a change once its tasks have succeeded or
+ * been given up on.
+ * Tasks include file moves, file type transforms, etc.
+ *
  * @author Chris Lamke <https://chris.lamke.org>
  */
 public class TaskQueue {
-    
+
+    /**
+     * Default number of tasks using a file store at once, one per
+     * processor.
+     */
+    public static final int DEFAULT_WORKER_COUNT
+            = Runtime.getRuntime().availableProcessors();
+
+    private final Logger logger
+            = LogManager.getLogger(TaskQueue.class.getName());
+    private final FileStoreLanes lanes;
+    private final KeyedSerialExecutor<Task> tasksByPath;
+    private final ScheduledExecutorService retryTimer;
+    private final RetryEngine retryEngine;
+    private final AtomicLong nextSequence = new AtomicLong();
+    // Number of unfinished tasks for each journal offset.
+    private final TreeMap<Long, Integer> unfinishedOffsets = new TreeMap<>();
+    private volatile Consumer<Task> doneListener = task -> {
+    };
+
     /**
      * This is the TaskQueue constructor.
      *
+     * @param workerCount number of tasks using a file store at once
+     * @param retryEngine decides whether failed tasks are run again
      * @author Chris Lamke <https://chris.lamke.org>
      *
      */
-    TaskQueue() {
-        
+    TaskQueue(int workerCount, RetryEngine retryEngine) {
+        this(new FileStoreLanes(workerCount), retryEngine);
     }
-    
+
+    /**
+     * This is the TaskQueue constructor for lanes with their own worker
+     * limits.
+     *
+     * @param lanes runs tasks by the file stores they use
+     * @param retryEngine decides whether failed tasks are run again
+     */
+    TaskQueue(FileStoreLanes lanes, RetryEngine retryEngine) {
+        this.lanes = lanes;
+        this.retryEngine = retryEngine;
+        retryTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "task-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        tasksByPath = new KeyedSerialExecutor<>(lanes::getLane, retryTimer,
+                this::getRetryDelay);
+    }
+
+    /**
+     * addTask() Queue a task to run when a worker is free and any earlier
+     * task for the same file has finished.
+     *
+     * @param task task to run
+     */
+    public void addTask(Task task) {
+        task.sequence = nextSequence.getAndIncrement();
+        if (task.journalOffset >= 0) {
+            synchronized (unfinishedOffsets) {
+                unfinishedOffsets.merge(task.journalOffset, 1, Integer::sum);
+            }
+        }
+        logger.debug("Queueing task {}", task.getTaskAsString());
+        tasksByPath.execute(task.getFilePath(), task);
+    }
+
+    /**
+     * Report how a task's run went to the RetryEngine and get the delay
+     * before it runs again, or -1 if it is done.
+     */
+    private long getRetryDelay(Task task) {
+        long delay;
+        if (task.getFailure() == null) {
+            retryEngine.onSuccess(task);
+            delay = -1;
+        } else {
+            delay = retryEngine.onFailure(task, task.getFailure());
+        }
+        if (delay < 0 && task.journalOffset >= 0) {
+            synchronized (unfinishedOffsets) {
+                unfinishedOffsets.computeIfPresent(task.journalOffset,
+                        (offset, count) -> (count > 1) ? count - 1 : null);
+            }
+        }
+        if (delay < 0) {
+            doneListener.accept(task);
+        }
+        return delay;
+    }
+
+    /**
+     * setDoneListener() Set what is told when a task has succeeded or been
+     * given up on. The listener is called on a worker thread.
+     *
+     * @param doneListener called with each finished task
+     */
+    public void setDoneListener(Consumer<Task> doneListener) {
+        this.doneListener = doneListener;
+    }
+
+    /**
+     * getOldestJournalOffset() Get the journal offset of the oldest change
+     * with a task that hasn't succeeded or been given up on, including
+     * tasks waiting to be retried.
+     *
+     * @return long oldest journal offset, or -1 if no unfinished task came
+     * from the journal
+     */
+    public long getOldestJournalOffset() {
+        synchronized (unfinishedOffsets) {
+            return unfinishedOffsets.isEmpty()
+                    ? -1 : unfinishedOffsets.firstKey();
+        }
+    }
+
+    public RetryEngine getRetryEngine() {
+        return retryEngine;
+    }
+
+    /**
+     * getPendingCount() Get the number of tasks waiting for a worker or for
+     * an earlier task for the same file.
+     *
+     * @return int number of waiting tasks
+     */
+    public int getPendingCount() {
+        return lanes.getQueuedCount() + tasksByPath.getWaitingCount();
+    }
+
+    /**
+     * getCompletedCount() Get the number of tasks that have finished.
+     *
+     * @return long number of finished tasks
+     */
+    public long getCompletedCount() {
+        return lanes.getCompletedCount();
+    }
+
+    /**
+     * shutdown() Stop taking tasks and wait for queued ones to finish.
+     *
+     * @param timeoutMillis longest time to wait
+     * @return true if every task finished in time
+     * @throws InterruptedException
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        // Tasks held behind another task for the same file are only handed
+        // to the workers as that task finishes, so wait for them first.
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (tasksByPath.getActiveKeyCount() > 0) {
+            if (System.nanoTime() >= deadline) {
+                retryTimer.shutdownNow();
+                lanes.shutdownNow();
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        retryTimer.shutdown();
+        return lanes.shutdown(Math.max(0, deadline - System.nanoTime()));
+    }
+
 }
@@ -0,0 +1,259 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.util.function.Consumer;
+
+/**
+ * This class is a hashed timing wheel that holds items until a deadline.
+ * Time is cut into ticks, and the wheel is a ring of buckets, one per tick,
+ * that wraps around. A timer goes into the bucket for its deadline tick,
+ * linked into that bucket's list, so scheduling and cancelling take
+ * constant time however many timers are pending. Each tick only the timers
+ * in one bucket are looked at, and those whose deadline tick has come are
+ * fired. The rest are for a later turn of the wheel.
+ *
+ * Deadlines are wall clock millisecs, so they keep their meaning when
+ * timers are saved and loaded again after a restart. Timers fire on the
+ * first tick at or after their deadline. This class isn't thread safe and
+ * is meant to be driven from the app's main loop.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ * @param <T> type of the items held
+ */
+public class TimingWheel<T> {
+
+    /**
+     * A scheduled item, used to cancel it.
+     *
+     * @param <T> type of the item held
+     */
+    public static final class Timer<T> {
+
+        private final T item;
+        private final long deadlineMillis;
+        private final long deadlineTick;
+        private Timer<T> previous;
+        private Timer<T> next;
+        private int bucket = -1;
+
+        private Timer(T item, long deadlineMillis, long deadlineTick) {
+            this.item = item;
+            this.deadlineMillis = deadlineMillis;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public long getDeadlineMillis() {
+            return deadlineMillis;
+        }
+
+        public boolean isPending() {
+            return bucket >= 0;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Timer<T>[] buckets;
+    private final int mask;
+    // Last tick whose bucket has been processed.
+    private long currentTick = 0;
+    // Deadline tick of the earliest pending timer, or -1 if not known.
+    private long earliestTick = -1;
+    private int size = 0;
+
+    /**
+     * This is the TimingWheel constructor.
+     *
+     * @param tickMillis length of a tick, the resolution of the wheel
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @param nowMillis current wall clock time
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickMillis, int wheelSize, long nowMillis) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.startMillis = nowMillis;
+        int bucketCount = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.buckets = (Timer<T>[]) new Timer<?>[bucketCount];
+        this.mask = bucketCount - 1;
+    }
+
+    /**
+     * schedule() Hold an item until the given deadline. A deadline that has
+     * already passed fires on the next tick.
+     *
+     * @param item item to hold
+     * @param deadlineMillis wall clock time the item is due
+     * @return Timer that can be passed to cancel()
+     */
+    public Timer<T> schedule(T item, long deadlineMillis) {
+        long tick = ceilDiv(deadlineMillis - startMillis, tickMillis);
+        tick = Math.max(tick, currentTick + 1);
+        Timer<T> timer = new Timer<>(item, deadlineMillis, tick);
+        int bucket = (int) (tick & mask);
+        timer.bucket = bucket;
+        timer.next = buckets[bucket];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        buckets[bucket] = timer;
+        if (size == 0 || (earliestTick >= 0 && tick < earliestTick)) {
+            earliestTick = tick;
+        }
+        size++;
+        return timer;
+    }
+
+    /**
+     * cancel() Remove a timer before it fires.
+     *
+     * @param timer timer returned by schedule()
+     * @return true if the timer was pending
+     */
+    public boolean cancel(Timer<T> timer) {
+        if (timer == null || !timer.isPending()) {
+            return false;
+        }
+        unlink(timer);
+        return true;
+    }
+
+    /**
+     * advance() Move the wheel up to the given time, firing every timer
+     * that has come due.
+     *
+     * @param nowMillis current wall clock time
+     * @param consumer called with the item of each timer that fires
+     * @return int number of timers fired
+     */
+    public int advance(long nowMillis, Consumer<T> consumer) {
+        long targetTick = Math.floorDiv(nowMillis - startMillis, tickMillis);
+        if (targetTick <= currentTick) {
+            return 0;
+        }
+
+        int fired = 0;
+        // After a long gap, one pass over every bucket covers all ticks.
+        long firstTick = Math.max(currentTick + 1, targetTick - mask);
+        currentTick = targetTick;
+        for (long tick = firstTick; tick <= targetTick; tick++) {
+            Timer<T> timer = buckets[(int) (tick & mask)];
+            while (timer != null) {
+                Timer<T> next = timer.next;
+                if (timer.deadlineTick <= targetTick) {
+                    unlink(timer);
+                    consumer.accept(timer.item);
+                    fired++;
+                }
+                timer = next;
+            }
+        }
+        return fired;
+    }
+
+    /**
+     * getMillisUntilNextDeadline() Get how long the caller can wait before
+     * calling advance() again, which is until the tick the earliest pending
+     * timer fires on.
+     *
+     * @param nowMillis current wall clock time
+     * @return long millisecs to wait, or -1 if no timers are pending
+     */
+    public long getMillisUntilNextDeadline(long nowMillis) {
+        if (size == 0) {
+            return -1;
+        }
+        if (earliestTick < 0) {
+            earliestTick = findEarliestTick();
+        }
+        long deadlineMillis = startMillis + earliestTick * tickMillis;
+        return Math.max(0, deadlineMillis - nowMillis);
+    }
+
+    /**
+     * Find the deadline tick of the earliest pending timer. Buckets are
+     * looked at in tick order for one turn of the wheel, so this stops at
+     * the first timer due in that turn. If every timer is for a later
+     * turn, the least deadline tick seen is used.
+     */
+    private long findEarliestTick() {
+        long least = Long.MAX_VALUE;
+        for (long tick = currentTick + 1; tick <= currentTick + buckets.length;
+                tick++) {
+            Timer<T> timer = buckets[(int) (tick & mask)];
+            for (; timer != null; timer = timer.next) {
+                if (timer.deadlineTick == tick) {
+                    return tick;
+                }
+                least = Math.min(least, timer.deadlineTick);
+            }
+        }
+        return least;
+    }
+
+    /**
+     * forEach() Pass every pending timer to the consumer, in no particular
+     * order. The consumer must not schedule or cancel timers.
+     *
+     * @param consumer called once for each pending timer
+     */
+    public void forEach(Consumer<Timer<T>> consumer) {
+        for (Timer<T> head : buckets) {
+            for (Timer<T> timer = head; timer != null; timer = timer.next) {
+                consumer.accept(timer);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void unlink(Timer<T> timer) {
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            buckets[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.bucket = -1;
+        if (timer.deadlineTick == earliestTick) {
+            earliestTick = -1;
+        }
+        size--;
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+
+}
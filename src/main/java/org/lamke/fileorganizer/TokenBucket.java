@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class limits the rate of something, such as bytes written or files
+ * moved, with a token bucket. Tokens are added at the rate up to the burst
+ * size, and each unit of work takes a token. A caller that takes more
+ * tokens than are left goes into debt and waits until the debt is paid
+ * back, so large requests are allowed but still held to the rate on
+ * average, and callers that come later wait their turn behind the debt.
+ *
+ * The rate and burst size can be changed while the bucket is in use. A
+ * rate of 0 or less means no limit. This class is thread safe.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class TokenBucket {
+
+    private double ratePerSecond;
+    private double burstSize;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * This is the TokenBucket constructor. The bucket starts full.
+     *
+     * @param ratePerSecond tokens added per second, 0 for no limit
+     * @param burstSize most tokens the bucket can hold
+     */
+    TokenBucket(double ratePerSecond, double burstSize) {
+        this.lastRefillNanos = System.nanoTime();
+        setRate(ratePerSecond, burstSize);
+        this.tokens = this.burstSize;
+    }
+
+    /**
+     * setRate() Change the rate and burst size.
+     *
+     * @param ratePerSecond tokens added per second, 0 for no limit
+     * @param burstSize most tokens the bucket can hold
+     */
+    public synchronized void setRate(double ratePerSecond, double burstSize) {
+        refill();
+        this.ratePerSecond = ratePerSecond;
+        this.burstSize = Math.max(1, burstSize);
+        tokens = Math.min(tokens, this.burstSize);
+    }
+
+    /**
+     * acquire() Take tokens, waiting until the rate allows them.
+     *
+     * @param count number of tokens to take
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire(long count) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            if (ratePerSecond <= 0 || count <= 0) {
+                return;
+            }
+            refill();
+            tokens -= count;
+            if (tokens >= 0) {
+                return;
+            }
+            waitNanos = (long) (-tokens / ratePerSecond * 1e9);
+        }
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    public synchronized double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    public synchronized double getBurstSize() {
+        return burstSize;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (ratePerSecond > 0) {
+            tokens = Math.min(burstSize,
+                    tokens + (now - lastRefillNanos) / 1e9 * ratePerSecond);
+        }
+        lastRefillNanos = now;
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps track of the WatchKeys registered by the
+ * FileSystemWatcher. Keys can be looked up by WatchKey or by directory path,
+ * and the paths are kept in a prefix tree so the keys of a whole subtree can
+ * be found and cancelled in time proportional to the size of the subtree.
+ *
+ * The registry also counts the watches in use against an optional budget.
+ * When a registration goes over the budget, the least recently active
+ * directories are evicted and handed back to the caller, which can watch
+ * them some other way.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+class WatchKeyRegistry {
+
+    /**
+     * One path component in the prefix tree. A node only has a key if its
+     * directory is registered itself.
+     */
+    private static class Node {
+
+        final Node parent;
+        final Path name;
+        final Map<Path, Node> children = new HashMap<>();
+        Path path = null;
+        WatchKey watchKey = null;
+        boolean isRecursive = false;
+
+        Node(Node parent, Path name) {
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+
+    private final Node root = new Node(null, null);
+    // Key lookups come from the pump threads on every signalled key, so they
+    // don't take the registry lock.
+    private final Map<WatchKey, Node> nodesByKey = new ConcurrentHashMap<>();
+    // Registered paths from least to most recently active.
+    private final LinkedHashMap<Path, Node> activity
+            = new LinkedHashMap<>(16, 0.75f, true);
+    private int watchBudget = 0;
+
+    /**
+     * Set the maximum number of watches to hold, or 0 for no limit. Lowering
+     * the budget takes effect at the next registration.
+     *
+     * @param budget maximum number of watches, 0 for no limit
+     */
+    synchronized void setWatchBudget(int budget) {
+        watchBudget = Math.max(0, budget);
+    }
+
+    synchronized int getWatchBudget() {
+        return watchBudget;
+    }
+
+    int getWatchCount() {
+        return nodesByKey.size();
+    }
+
+    /**
+     * Get the directory a key was registered for.
+     *
+     * @param watchKey key to look up
+     * @return Path of the directory, or null if the key isn't registered
+     */
+    Path getPath(WatchKey watchKey) {
+        Node node = nodesByKey.get(watchKey);
+        return (node == null) ? null : node.path;
+    }
+
+    /**
+     * Check whether a key belongs to a recursively watched directory.
+     *
+     * @param watchKey key to check
+     * @return true if the key's directory is watched recursively
+     */
+    boolean isRecursive(WatchKey watchKey) {
+        Node node = nodesByKey.get(watchKey);
+        return (node != null) && node.isRecursive;
+    }
+
+    /**
+     * Get the key registered for a directory.
+     *
+     * @param path directory to look up
+     * @return WatchKey, or null if the directory isn't registered
+     */
+    synchronized WatchKey getWatchKey(Path path) {
+        Node node = findNode(path);
+        return (node == null) ? null : node.watchKey;
+    }
+
+    /**
+     * Record a registered key. If the budget is exceeded, the least recently
+     * active directories other than this one are evicted: their keys are
+     * cancelled and their paths returned.
+     *
+     * @param path directory the key was registered for
+     * @param watchKey key returned by the WatchService
+     * @param isRecursive true if the directory is part of a recursive watch
+     * @return Map of whether each path evicted to stay within budget was
+     * part of a recursive watch, in eviction order and usually empty
+     */
+    synchronized Map<Path, Boolean> register(Path path, WatchKey watchKey,
+            boolean isRecursive) {
+        Node node = getOrCreateNode(path);
+        if (node.watchKey != null && node.watchKey != watchKey) {
+            nodesByKey.remove(node.watchKey);
+        }
+        node.path = path;
+        node.watchKey = watchKey;
+        node.isRecursive = node.isRecursive || isRecursive;
+        nodesByKey.put(watchKey, node);
+        activity.put(path, node);
+
+        Map<Path, Boolean> evicted = new LinkedHashMap<>();
+        if (watchBudget > 0) {
+            Iterator<Node> coldest = activity.values().iterator();
+            while (nodesByKey.size() > watchBudget && coldest.hasNext()) {
+                Node cold = coldest.next();
+                if (cold == node) {
+                    continue;
+                }
+                coldest.remove();
+                evicted.put(cold.path, cold.isRecursive);
+                clearNode(cold, false);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Mark a key's directory as active, moving it to the back of the
+     * eviction order.
+     *
+     * @param watchKey key that was signalled
+     */
+    synchronized void touch(WatchKey watchKey) {
+        Node node = nodesByKey.get(watchKey);
+        if (node != null) {
+            activity.get(node.path);
+        }
+    }
+
+    /**
+     * Cancel and forget the key of a single directory.
+     *
+     * @param path directory to stop watching
+     * @return true if the directory was registered
+     */
+    synchronized boolean unregister(Path path) {
+        Node node = findNode(path);
+        if (node == null || node.watchKey == null) {
+            return false;
+        }
+        clearNode(node, true);
+        return true;
+    }
+
+    /**
+     * Forget a key that is no longer valid, without touching its subtree.
+     *
+     * @param watchKey key to forget
+     */
+    synchronized void unregister(WatchKey watchKey) {
+        Node node = nodesByKey.get(watchKey);
+        if (node != null && node.watchKey == watchKey) {
+            clearNode(node, true);
+        }
+    }
+
+    /**
+     * Cancel and forget the keys of a directory and everything under it.
+     * Only the nodes of the subtree are visited.
+     *
+     * @param path top of the subtree to stop watching
+     * @return List of directories that were unregistered
+     */
+    synchronized List<Path> unregisterSubtree(Path path) {
+        List<Path> removed = new ArrayList<>();
+        Node top = findNode(path);
+        if (top == null) {
+            return removed;
+        }
+
+        ArrayDeque<Node> toVisit = new ArrayDeque<>();
+        toVisit.push(top);
+        while (!toVisit.isEmpty()) {
+            Node node = toVisit.pop();
+            toVisit.addAll(node.children.values());
+            if (node.watchKey != null) {
+                removed.add(node.path);
+                activity.remove(node.path);
+                nodesByKey.remove(node.watchKey);
+                node.watchKey.cancel();
+                node.watchKey = null;
+            }
+        }
+
+        // Detach the subtree in one step rather than node by node.
+        top.children.clear();
+        prune(top);
+        return removed;
+    }
+
+    /**
+     * Cancel a node's key and remove it from the indexes, then prune the
+     * node from the tree if nothing is left under it.
+     */
+    private void clearNode(Node node, boolean removeActivity) {
+        if (removeActivity) {
+            activity.remove(node.path);
+        }
+        nodesByKey.remove(node.watchKey);
+        node.watchKey.cancel();
+        node.watchKey = null;
+        node.isRecursive = false;
+        prune(node);
+    }
+
+    /**
+     * Remove a node, and any parents left empty, from the tree.
+     */
+    private void prune(Node node) {
+        while (node.parent != null && node.watchKey == null
+                && node.children.isEmpty()) {
+            node.parent.children.remove(node.name);
+            node = node.parent;
+        }
+    }
+
+    private Node findNode(Path path) {
+        Node node = root;
+        for (Path component : components(path)) {
+            node = node.children.get(component);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private Node getOrCreateNode(Path path) {
+        Node node = root;
+        for (Path component : components(path)) {
+            Node parent = node;
+            node = parent.children.computeIfAbsent(component,
+                    name -> new Node(parent, name));
+        }
+        return node;
+    }
+
+    /**
+     * Split a path into its root, if any, followed by its name elements.
+     */
+    private static List<Path> components(Path path) {
+        List<Path> parts = new ArrayList<>(path.getNameCount() + 1);
+        if (path.getRoot() != null) {
+            parts.add(path.getRoot());
+        }
+        for (Path name : path) {
+            parts.add(name);
+        }
+        return parts;
+    }
+
+}
@@ -25,11 +25,13 @@ package org.lamke.fileorganizer;
 
 /**
  * This class defines an OS file system path to be watched for changes, including
- * whether all subdirectories of that path should be watched for changes.
+ * whether all subdirectories of that path should be watched for changes and
+ * whether the path is polled rather than watched through OS notification.
  * @author Chris Lamke <https://chris.lamke.org>
  */
 public class WatchPath {
     boolean isRecursive = false;
+    boolean isPolled = false;
     String path = null;
     
     WatchPath(String path, boolean isRecursive) {
@@ -37,6 +39,12 @@ public class WatchPath {
         this.path = path;
     }
     
+    WatchPath(String path, boolean isRecursive, boolean isPolled) {
+        this.isRecursive = isRecursive;
+        this.isPolled = isPolled;
+        this.path = path;
+    }
+    
     public String getPathString() {
         return this.path;
     } 
@@ -44,4 +52,8 @@ public class WatchPath {
     public boolean isPathRecursive() {
         return this.isRecursive;
     }
+    
+    public boolean isPathPolled() {
+        return this.isPolled;
+    }
 }
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests for DelayedTaskScheduler: pending tasks survive a save and load,
+ * tasks handed to the TaskQueue stay saved until they finish, and journal
+ * offsets are held until the tasks behind them are safe.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class DelayedTaskSchedulerTest {
+
+    private static final long TICK = 10;
+    private static final long HOUR = 3600 * 1000;
+
+    private Path directory;
+    private Path timerFile;
+    private CapturingQueue queue;
+
+    /**
+     * A TaskQueue that keeps the tasks it is given instead of running them.
+     */
+    private static class CapturingQueue extends TaskQueue {
+
+        final List<Task> added = new ArrayList<>();
+
+        CapturingQueue() {
+            super(1, new RetryEngine(RetryPolicy.NO_RETRY));
+        }
+
+        @Override
+        public void addTask(Task task) {
+            added.add(task);
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("timers");
+        timerFile = directory.resolve("timers.dat");
+        queue = new CapturingQueue();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException, InterruptedException {
+        queue.shutdown(1000);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path
+                    -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void pendingTasksSurviveSaveAndLoad()
+            throws InterruptedException {
+        DelayedTaskScheduler scheduler = new DelayedTaskScheduler(TICK,
+                timerFile);
+        scheduler.schedule(task("a.txt", 7), HOUR);
+        scheduler.schedule(task("b.txt", 3), 0);
+        scheduler.save();
+        assertFalse(scheduler.hasUnsavedChanges());
+
+        DelayedTaskScheduler loaded = new DelayedTaskScheduler(TICK,
+                timerFile);
+        assertEquals(2, loaded.load());
+        assertEquals(2, loaded.getPendingCount());
+        assertFalse(loaded.hasUnsavedChanges());
+
+        Thread.sleep(3 * TICK);
+        assertEquals(1, loaded.runDueTasks(queue));
+        Task task = queue.added.get(0);
+        assertEquals(pathOf("b.txt"), task.getFilePath());
+        assertEquals(FileNotification.NotificationType.CREATE,
+                task.getNotificationType());
+        assertEquals("TXT", task.getActionDef().fileTypeName);
+        assertEquals("MSG", task.getActionDef().action);
+        assertEquals(directory.toString(), task.getActionDef().changePath);
+        assertEquals(3, task.getActionDef().priority);
+        assertEquals(HOUR, task.getActionDef().delayMillis);
+        assertEquals(1, loaded.getPendingCount());
+    }
+
+    @Test
+    public void firedTaskStaysSavedUntilItFinishes()
+            throws InterruptedException {
+        DelayedTaskScheduler scheduler = new DelayedTaskScheduler(TICK,
+                timerFile);
+        scheduler.schedule(task("a.txt", 1), 0);
+        Thread.sleep(3 * TICK);
+        assertEquals(1, scheduler.runDueTasks(queue));
+        scheduler.save();
+
+        // A crash now would find the task in the timer file.
+        assertEquals(1, new DelayedTaskScheduler(TICK, timerFile).load());
+
+        scheduler.taskFinished(queue.added.get(0));
+        scheduler.runDueTasks(queue);
+        scheduler.save();
+        assertEquals(0, new DelayedTaskScheduler(TICK, timerFile).load());
+    }
+
+    @Test
+    public void movedTaskFollowsItsFile() throws InterruptedException {
+        DelayedTaskScheduler scheduler = new DelayedTaskScheduler(TICK,
+                timerFile);
+        scheduler.schedule(task("a.txt", 1), 2 * TICK);
+        scheduler.movePath(pathOf("a.txt"), pathOf("b.txt"));
+        assertEquals(0, scheduler.cancelPath(pathOf("a.txt")));
+
+        Thread.sleep(4 * TICK);
+        assertEquals(1, scheduler.runDueTasks(queue));
+        assertEquals(pathOf("b.txt"), queue.added.get(0).getFilePath());
+    }
+
+    @Test
+    public void savedChangesReleaseTheirJournalOffset() {
+        DelayedTaskScheduler scheduler = new DelayedTaskScheduler(TICK,
+                timerFile);
+        Task task = task("a.txt", 1);
+        task.journalOffset = 40;
+        scheduler.schedule(task, HOUR);
+        scheduler.holdJournalOffset(40);
+        assertEquals(40, scheduler.getOldestJournalOffset());
+
+        scheduler.save();
+        assertEquals(-1, scheduler.getOldestJournalOffset());
+    }
+
+    /**
+     * Without a timer file, pending tasks are only rebuilt by replaying the
+     * journal, so their offsets are held until they fire.
+     */
+    @Test
+    public void memoryOnlyTasksHoldTheirJournalOffset()
+            throws InterruptedException {
+        DelayedTaskScheduler scheduler = new DelayedTaskScheduler(TICK,
+                null);
+        Task later = task("a.txt", 1);
+        later.journalOffset = 40;
+        scheduler.schedule(later, HOUR);
+        Task sooner = task("b.txt", 1);
+        sooner.journalOffset = 20;
+        scheduler.schedule(sooner, 0);
+
+        scheduler.save();
+        assertEquals(20, scheduler.getOldestJournalOffset());
+        Thread.sleep(3 * TICK);
+        scheduler.runDueTasks(queue);
+        assertEquals(40, scheduler.getOldestJournalOffset());
+    }
+
+    private Task task(String fileName, int priority) {
+        return new Task(new FileTypeActionDef("TXT", "CREATE", "MSG",
+                directory.toString(), priority, HOUR), pathOf(fileName),
+                FileNotification.NotificationType.CREATE);
+    }
+
+    private String pathOf(String fileName) {
+        return directory.resolve(fileName).toString();
+    }
+
+}
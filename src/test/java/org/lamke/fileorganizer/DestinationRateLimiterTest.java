@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.nio.file.Paths;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.lamke.fileorganizer.TokenBucketTest.assertWithinRate;
+import static org.lamke.fileorganizer.TokenBucketTest.millisSince;
+
+/**
+ * Tests for DestinationRateLimiter: which limit applies to a path, and that
+ * byte and file rates through a limit stay within a tolerance of the
+ * configured rates.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class DestinationRateLimiterTest {
+
+    private final String root = Paths.get("limits").toAbsolutePath()
+            .toString();
+
+    @Test
+    public void deepestLimitApplies() {
+        DestinationRateLimiter limiter = new DestinationRateLimiter();
+        limiter.setLimit(root, 1000, 10, 1);
+        limiter.setLimit(Paths.get(root, "slow").toString(), 100, 1, 1);
+
+        assertEquals(100, limiter.getLimit(Paths.get(root, "slow", "a.txt")
+                .toString()).getByteBucket().getRatePerSecond());
+        assertEquals(1000, limiter.getLimit(Paths.get(root, "fast", "a.txt")
+                .toString()).getByteBucket().getRatePerSecond());
+        // A sibling whose name starts the same isn't under the limit.
+        assertEquals(1000, limiter.getLimit(Paths.get(root, "slower", "a")
+                .toString()).getByteBucket().getRatePerSecond());
+        assertNull(limiter.getLimit(Paths.get(root + "2", "a.txt")
+                .toString()));
+    }
+
+    @Test
+    public void settingALimitAgainChangesItInPlace() {
+        DestinationRateLimiter limiter = new DestinationRateLimiter();
+        limiter.setLimit(root, 1000, 10, 1);
+        DestinationRateLimiter.DestinationLimit limit
+                = limiter.getLimit(Paths.get(root, "a").toString());
+
+        limiter.setLimit(root, 5000, 20, 2);
+
+        assertSame(limit, limiter.getLimit(Paths.get(root, "a").toString()));
+        assertEquals(5000, limit.getByteBucket().getRatePerSecond());
+        assertEquals(10000, limit.getByteBucket().getBurstSize());
+        assertEquals(20, limit.getOperationBucket().getRatePerSecond());
+        assertEquals(40, limit.getOperationBucket().getBurstSize());
+    }
+
+    @Test
+    public void byteRateStaysWithinTolerance() throws InterruptedException {
+        DestinationRateLimiter limiter = new DestinationRateLimiter();
+        limiter.setLimit(root, 4 * 1024 * 1024, 0, 0.01);
+        TokenBucket bytes = limiter.getLimit(Paths.get(root, "a").toString())
+                .getByteBucket();
+        bytes.acquire((long) bytes.getBurstSize());
+
+        // 2 MB in 64 KB writes at 4 MB/sec.
+        long start = System.nanoTime();
+        for (int i = 0; i < 32; i++) {
+            bytes.acquire(64 * 1024);
+        }
+        assertWithinRate(2 * 1024 * 1024, 4 * 1024 * 1024, millisSince(start));
+    }
+
+    @Test
+    public void fileRateStaysWithinTolerance() throws InterruptedException {
+        DestinationRateLimiter limiter = new DestinationRateLimiter();
+        limiter.setLimit(root, 0, 200, 0.05);
+        TokenBucket operations = limiter.getLimit(Paths.get(root, "a")
+                .toString()).getOperationBucket();
+        operations.acquire((long) operations.getBurstSize());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            operations.acquire(1);
+        }
+        assertWithinRate(100, 200, millisSince(start));
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for FileAttributeCache, including the number of attribute reads
+ * made while one change goes through the app's stages.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileAttributeCacheTest {
+
+    private final FileAttributeCache cache = FileAttributeCache.getInstance();
+    private Path directory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("attribute-cache");
+        cache.setTimeToLive(60000);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        cache.setTimeToLive(FileAttributeCache.DEFAULT_TIME_TO_LIVE_MILLIS);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path
+                    -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void secondLookupIsServedFromTheCache() throws IOException {
+        Path file = Files.write(directory.resolve("a.txt"), new byte[10]);
+        long reads = cache.getReadCount();
+        long hits = cache.getHitCount();
+
+        assertEquals(10, cache.getAttributes(file).size());
+        assertEquals(10, cache.getAttributes(file).size());
+
+        assertEquals(1, cache.getReadCount() - reads);
+        assertEquals(1, cache.getHitCount() - hits);
+    }
+
+    @Test
+    public void invalidatedPathIsReadAgain() throws IOException {
+        Path file = Files.write(directory.resolve("a.txt"), new byte[10]);
+        cache.getAttributes(file);
+        Files.write(file, new byte[20]);
+        cache.invalidate(file);
+        long reads = cache.getReadCount();
+
+        assertEquals(20, cache.getAttributes(file).size());
+        assertEquals(1, cache.getReadCount() - reads);
+    }
+
+    @Test
+    public void freshReadOfAChangedFileIsCounted() throws IOException {
+        Path file = Files.write(directory.resolve("a.txt"), new byte[10]);
+        cache.readAttributes(file);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(
+                Files.getLastModifiedTime(file).toMillis() - 60000));
+        long changes = cache.getChangeCount();
+
+        cache.readAttributes(file);
+        cache.readAttributes(file);
+
+        assertEquals(1, cache.getChangeCount() - changes);
+    }
+
+    @Test
+    public void zeroTimeToLiveReadsEachTime() throws IOException {
+        Path file = Files.write(directory.resolve("a.txt"), new byte[10]);
+        cache.setTimeToLive(0);
+        long reads = cache.getReadCount();
+
+        cache.getAttributes(file);
+        cache.getAttributes(file);
+
+        assertEquals(2, cache.getReadCount() - reads);
+    }
+
+    @Test
+    public void missingFileIsNotCached() throws IOException {
+        Path file = directory.resolve("missing.txt");
+        FileRecord record = new FileRecord(file.toString(),
+                FileNotification.NotificationType.CREATE);
+
+        assertFalse(record.buildFileRecord());
+        Files.write(file, new byte[10]);
+        assertTrue(record.buildFileRecord());
+    }
+
+    /**
+     * A new file that is moved goes through the settle check, the file
+     * record, the duplicate check and the move. The settle check reads the
+     * attributes, and the later stages reuse them. Without the cache, the
+     * file record took three calls and the duplicate check and move one
+     * each.
+     */
+    @Test
+    public void changeIsHandledWithOneAttributeRead() throws IOException {
+        Path source = Files.write(directory.resolve("a.txt"),
+                "some text".getBytes());
+        Path destDirectory = Files.createDirectory(directory.resolve("dest"));
+        Path dest = destDirectory.resolve("a.txt");
+        ContentDeduplicator deduplicator = new ContentDeduplicator(
+                ContentDeduplicator.DedupMode.SKIP);
+        FileMoveStrategy moveStrategy = new FileMoveStrategy(
+                new FileCopyEngine(FileCopyEngine.DEFAULT_CHUNK_SIZE,
+                        FileCopyEngine.DEFAULT_BUFFER_SIZE, 1));
+        long reads = cache.getReadCount();
+        long hits = cache.getHitCount();
+
+        // Settle check.
+        cache.readAttributes(source);
+        FileRecord record = new FileRecord(source.toString(),
+                FileNotification.NotificationType.CREATE);
+        assertTrue(record.buildFileRecord());
+        assertFalse(deduplicator.placeDuplicate(source, dest,
+                record.getContentHash(), true));
+        moveStrategy.move(source, dest, null);
+
+        assertTrue(Files.exists(dest));
+        assertEquals(1, cache.getReadCount() - reads);
+        assertTrue(cache.getHitCount() - hits >= 3);
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests for FileNotificationCoalescer: new and modified files are held
+ * until their size and modification time stop changing, and a DELETE and
+ * CREATE for the same file are paired into a MOVE.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileNotificationCoalescerTest {
+
+    private static final long SETTLE_MILLIS = 500;
+
+    private final FileRecordCollection files
+            = FileRecordCollection.getInstance();
+    private Path directory;
+    private FileNotificationCoalescer coalescer;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("coalescer");
+        coalescer = new FileNotificationCoalescer(0, SETTLE_MILLIS, files);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                files.removeFileRecord(path.toString());
+                path.toFile().delete();
+            });
+        }
+    }
+
+    @Test
+    public void newFileIsHeldUntilItSettles()
+            throws IOException, InterruptedException {
+        Path file = Files.write(directory.resolve("a.txt"), new byte[10]);
+        add(FileNotification.NotificationType.CREATE, file);
+
+        // The first check only records the size and modification time.
+        assertEquals(Arrays.asList(), release());
+        Thread.sleep(SETTLE_MILLIS / 2);
+        Files.write(file, new byte[10], StandardOpenOption.APPEND);
+        add(FileNotification.NotificationType.MODIFY, file);
+        assertEquals(Arrays.asList(), release());
+        Thread.sleep(SETTLE_MILLIS / 2);
+        // Still within the quiet period after the write.
+        assertEquals(Arrays.asList(), release());
+
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals(Arrays.asList("CREATE " + file), release());
+        assertEquals(-1, coalescer.getMillisUntilNextCheck());
+    }
+
+    @Test
+    public void eventsForOnePathAreMerged()
+            throws IOException, InterruptedException {
+        Path file = Files.write(directory.resolve("a.txt"), new byte[10]);
+        add(FileNotification.NotificationType.MODIFY, file);
+        add(FileNotification.NotificationType.MODIFY, file);
+        add(FileNotification.NotificationType.MODIFY, file);
+
+        assertEquals(Arrays.asList("MODIFY " + file), releaseWhenSettled());
+    }
+
+    @Test
+    public void fileDeletedWhileSettlingIsDropped()
+            throws IOException, InterruptedException {
+        Path file = Files.write(directory.resolve("a.txt"), new byte[10]);
+        add(FileNotification.NotificationType.CREATE, file);
+        assertEquals(Arrays.asList(), release());
+        Files.delete(file);
+
+        assertEquals(Arrays.asList(), releaseWhenSettled());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    @Test
+    public void deleteIsNotHeldForTheSettleCheck() throws IOException {
+        Path file = directory.resolve("gone.txt");
+        add(FileNotification.NotificationType.DELETE, file);
+
+        assertEquals(Arrays.asList("DELETE " + file), release());
+    }
+
+    @Test
+    public void renameIsPairedIntoMove()
+            throws IOException, InterruptedException {
+        Path source = recordedFile("a.txt");
+        Path dest = Files.move(source, directory.resolve("b.txt"));
+        add(FileNotification.NotificationType.DELETE, source);
+        add(FileNotification.NotificationType.CREATE, dest);
+
+        assertEquals(Arrays.asList("MOVE " + dest + " from " + source),
+                releaseWhenSettled());
+    }
+
+    @Test
+    public void createSeenBeforeDeleteIsPairedIntoMove()
+            throws IOException, InterruptedException {
+        Path source = recordedFile("a.txt");
+        Path dest = Files.move(source, directory.resolve("b.txt"));
+        add(FileNotification.NotificationType.CREATE, dest);
+        add(FileNotification.NotificationType.DELETE, source);
+
+        assertEquals(Arrays.asList("MOVE " + dest + " from " + source),
+                releaseWhenSettled());
+    }
+
+    /**
+     * The same file key with a different size is treated as a different
+     * file, as it would be if the key had been reused.
+     */
+    @Test
+    public void changedSizeIsNotPaired()
+            throws IOException, InterruptedException {
+        Path source = recordedFile("a.txt");
+        Path dest = Files.move(source, directory.resolve("b.txt"));
+        Files.write(dest, new byte[5], StandardOpenOption.APPEND);
+        add(FileNotification.NotificationType.DELETE, source);
+        add(FileNotification.NotificationType.CREATE, dest);
+
+        assertEquals(Arrays.asList("DELETE " + source, "CREATE " + dest),
+                releaseWhenSettled());
+    }
+
+    @Test
+    public void deleteWithoutCachedAttributesIsNotPaired()
+            throws IOException, InterruptedException {
+        Path source = recordedFile("a.txt");
+        FileAttributeCache.getInstance().invalidate(source);
+        Path dest = Files.move(source, directory.resolve("b.txt"));
+        add(FileNotification.NotificationType.DELETE, source);
+        add(FileNotification.NotificationType.CREATE, dest);
+
+        assertEquals(Arrays.asList("DELETE " + source, "CREATE " + dest),
+                releaseWhenSettled());
+    }
+
+    /**
+     * Create a file and its record, as the app would after its CREATE.
+     */
+    private Path recordedFile(String name) throws IOException {
+        Path file = Files.write(directory.resolve(name), new byte[10]);
+        FileRecord record = new FileRecord(file.toString(),
+                FileNotification.NotificationType.CREATE);
+        record.buildFileRecord();
+        files.addFileRecord(file.toString(), record);
+        return file;
+    }
+
+    private void add(FileNotification.NotificationType type, Path file) {
+        coalescer.addNotification(new FileNotification(type,
+                file.toString()));
+    }
+
+    private List<String> release() {
+        List<String> released = new ArrayList<>();
+        FileNotificationCollection ready
+                = coalescer.releaseReadyNotifications();
+        while (ready.getNotificationCount() > 0) {
+            FileNotification notification = ready.popNotification();
+            released.add(notification.getFileNotificationType() + " "
+                    + notification.getFilePath()
+                    + ((notification.getSourcePath() == null)
+                    ? "" : " from " + notification.getSourcePath()));
+        }
+        return released;
+    }
+
+    /**
+     * Release what is ready, waiting out the settle check if anything is
+     * still pending.
+     */
+    private List<String> releaseWhenSettled() throws InterruptedException {
+        List<String> released = release();
+        for (int i = 0; i < 3 && coalescer.getPendingCount() > 0; i++) {
+            Thread.sleep(SETTLE_MILLIS + 50);
+            released.addAll(release());
+        }
+        return released;
+    }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests for FileNotificationJournal: replay after a restart, recovery from
+ * torn and corrupt entries, and compaction, including a crash part way
+ * through it.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileNotificationJournalTest {
+
+    // Layout of the journal file, from FileNotificationJournal.
+    private static final int HEADER_SIZE = 32;
+    private static final int BASE_OFFSET_POSITION = 8;
+    private static final int CONSUMER_OFFSET_POSITION = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long INITIAL_SIZE = 16L * 1024 * 1024;
+
+    private Path directory;
+    private Path journalFile;
+    private final List<FileNotificationJournal> opened = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal");
+        journalFile = directory.resolve("journal.dat");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        for (FileNotificationJournal journal : opened) {
+            journal.close();
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path
+                    -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void replayPassesUnprocessedEntriesWithTheirOffsets()
+            throws IOException {
+        FileNotificationJournal journal = open();
+        journal.append(notification("a.txt"));
+        long second = journal.append(new FileNotification(
+                FileNotification.NotificationType.MOVE, "b.txt", "old.txt"));
+        long third = journal.append(notification("c.txt"));
+        journal.commitConsumerOffset(second);
+        journal.close();
+        opened.remove(journal);
+
+        List<String> replayed = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        assertEquals(2, open().replay((notification, offset) -> {
+            replayed.add(notification.getFileNotificationType() + " "
+                    + notification.getFilePath() + " "
+                    + notification.getSourcePath());
+            offsets.add(offset);
+        }));
+
+        assertEquals(Arrays.asList("MOVE b.txt old.txt", "CREATE c.txt null"),
+                replayed);
+        assertEquals(Arrays.asList(second, third), offsets);
+    }
+
+    @Test
+    public void tornEntryAtTheEndIsDropped() throws IOException {
+        FileNotificationJournal journal = open();
+        journal.append(notification("a.txt"));
+        journal.append(notification("b.txt"));
+        long end = journal.getEndOffset();
+        journal.close();
+        opened.remove(journal);
+        // A length was written but the payload and checksum never were.
+        writeInt(HEADER_SIZE + (int) end, 40);
+
+        journal = open();
+        assertEquals(end, journal.getEndOffset());
+        assertEquals(Arrays.asList("a.txt", "b.txt"), replayPaths(journal));
+
+        // The next entry goes where the torn one was.
+        assertEquals(end, journal.append(notification("c.txt")));
+        assertEquals(Arrays.asList("a.txt", "b.txt", "c.txt"),
+                replayPaths(journal));
+    }
+
+    @Test
+    public void checksumMismatchEndsTheJournal() throws IOException {
+        FileNotificationJournal journal = open();
+        journal.append(notification("a.txt"));
+        long second = journal.append(notification("b.txt"));
+        journal.append(notification("c.txt"));
+        journal.close();
+        opened.remove(journal);
+        // Change a byte of the second entry's path.
+        int position = HEADER_SIZE + (int) second + RECORD_HEADER_SIZE + 3;
+        byte[] bytes = readBytes(position, 1);
+        bytes[0] ^= 0x01;
+        writeBytes(position, bytes);
+
+        journal = open();
+        assertEquals(second, journal.getEndOffset());
+        assertEquals(Arrays.asList("a.txt"), replayPaths(journal));
+    }
+
+    /**
+     * A full journal drops its processed entries by moving the live ones to
+     * the front, instead of growing.
+     */
+    @Test
+    public void compactionKeepsUnprocessedEntries() throws IOException {
+        FileNotificationJournal journal = open();
+        List<Long> offsets = new ArrayList<>();
+        // Each entry is about 60 KB, so 300 of them overfill the file.
+        for (int i = 0; i < 300; i++) {
+            offsets.add(journal.append(notification(bigPath(i))));
+            if (i == 189) {
+                journal.commitConsumerOffset(offsets.get(180));
+            }
+        }
+        journal.close();
+        opened.remove(journal);
+
+        assertEquals(INITIAL_SIZE, Files.size(journalFile));
+        journal = open();
+        List<Long> replayedOffsets = new ArrayList<>();
+        List<String> replayed = new ArrayList<>();
+        journal.replay((notification, offset) -> {
+            replayed.add(notification.getFilePath());
+            replayedOffsets.add(offset);
+        });
+        assertEquals(offsets.subList(180, 300), replayedOffsets);
+        assertEquals(bigPath(180), replayed.get(0));
+        assertEquals(bigPath(299), replayed.get(119));
+    }
+
+    /**
+     * Compaction copies the live entries to the front before the header
+     * points at them. A crash before the header is updated leaves the old
+     * layout in place.
+     */
+    @Test
+    public void crashBeforeCompactionHeaderUpdateKeepsOldLayout()
+            throws IOException {
+        long live = simulateCompactionCopy();
+
+        FileNotificationJournal journal = open();
+        List<Long> offsets = new ArrayList<>();
+        assertEquals(Arrays.asList("b.txt"), replayPaths(journal, offsets));
+        assertEquals(Arrays.asList(live), offsets);
+    }
+
+    /**
+     * A crash after the header points at the moved entries, but before the
+     * old copies are cleared, uses the new layout with the same offsets.
+     */
+    @Test
+    public void crashAfterCompactionHeaderUpdateUsesNewLayout()
+            throws IOException {
+        long live = simulateCompactionCopy();
+        writeLong(BASE_OFFSET_POSITION, live);
+
+        FileNotificationJournal journal = open();
+        List<Long> offsets = new ArrayList<>();
+        assertEquals(Arrays.asList("b.txt"), replayPaths(journal, offsets));
+        assertEquals(Arrays.asList(live), offsets);
+        long end = journal.getEndOffset();
+        assertEquals(end, journal.append(notification("c.txt")));
+        assertEquals(Arrays.asList("b.txt", "c.txt"), replayPaths(journal));
+    }
+
+    @Test
+    public void badHeaderDropsTheEntries() throws IOException {
+        FileNotificationJournal journal = open();
+        journal.append(notification("a.txt"));
+        journal.close();
+        opened.remove(journal);
+        // Consumer offset before the base offset.
+        writeLong(BASE_OFFSET_POSITION, 100);
+
+        journal = open();
+        assertEquals(Arrays.asList(), replayPaths(journal));
+        assertEquals(100, journal.append(notification("b.txt")));
+    }
+
+    /**
+     * Leave the journal as a compaction that crashed before updating the
+     * header would: a processed entry, then a live entry, with the live
+     * entry copied over the front of the file and the rest of the space in
+     * front of it cleared.
+     *
+     * @return journal offset of the live entry
+     */
+    private long simulateCompactionCopy() throws IOException {
+        FileNotificationJournal journal = open();
+        journal.append(notification(bigPath(0)));
+        long live = journal.append(notification("b.txt"));
+        long end = journal.getEndOffset();
+        journal.commitConsumerOffset(live);
+        journal.close();
+        opened.remove(journal);
+
+        int liveBytes = (int) (end - live);
+        int from = HEADER_SIZE + (int) live;
+        writeBytes(HEADER_SIZE, readBytes(from, liveBytes));
+        writeBytes(HEADER_SIZE + liveBytes,
+                new byte[from - HEADER_SIZE - liveBytes]);
+        assertEquals(live, readLong(CONSUMER_OFFSET_POSITION));
+        return live;
+    }
+
+    private FileNotificationJournal open() throws IOException {
+        FileNotificationJournal journal
+                = new FileNotificationJournal(journalFile, 1);
+        opened.add(journal);
+        return journal;
+    }
+
+    private static FileNotification notification(String path) {
+        return new FileNotification(FileNotification.NotificationType.CREATE,
+                path);
+    }
+
+    private static String bigPath(int number) {
+        char[] name = new char[60000];
+        Arrays.fill(name, 'x');
+        return number + new String(name);
+    }
+
+    private static List<String> replayPaths(FileNotificationJournal journal) {
+        return replayPaths(journal, new ArrayList<>());
+    }
+
+    private static List<String> replayPaths(FileNotificationJournal journal,
+            List<Long> offsets) {
+        List<String> paths = new ArrayList<>();
+        journal.replay((notification, offset) -> {
+            paths.add(notification.getFilePath());
+            offsets.add(offset);
+        });
+        return paths;
+    }
+
+    private byte[] readBytes(int position, int count) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(count);
+        try (FileChannel channel = FileChannel.open(journalFile,
+                StandardOpenOption.READ)) {
+            while (bytes.hasRemaining()
+                    && channel.read(bytes, position + bytes.position()) > 0) {
+                // Keep reading.
+            }
+        }
+        return bytes.array();
+    }
+
+    private long readLong(int position) throws IOException {
+        return ByteBuffer.wrap(readBytes(position, 8)).getLong();
+    }
+
+    private void writeBytes(int position, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try (FileChannel channel = FileChannel.open(journalFile,
+                StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        }
+    }
+
+    private void writeInt(int position, int value) throws IOException {
+        writeBytes(position, ByteBuffer.allocate(4).putInt(value).array());
+    }
+
+    private void writeLong(int position, long value) throws IOException {
+        writeBytes(position, ByteBuffer.allocate(8).putLong(value).array());
+    }
+
+}
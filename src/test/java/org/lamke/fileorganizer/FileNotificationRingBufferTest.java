@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests for FileNotificationRingBuffer: notifications come out in the order
+ * they were published, across wrap-around, and a publisher waits while the
+ * ring is full. With the SPILL and COALESCE overload policies, order is
+ * kept while the ring is full.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileNotificationRingBufferTest {
+
+    private final List<String> drained = new ArrayList<>();
+    private final Consumer<FileNotification> recorder = notification
+            -> drained.add(notification.getFileNotificationType() + " "
+                    + notification.getFilePath());
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(8, new FileNotificationRingBuffer(5).getCapacity());
+        assertEquals(8, new FileNotificationRingBuffer(8).getCapacity());
+    }
+
+    @Test
+    public void drainsInPublishOrder() throws InterruptedException {
+        FileNotificationRingBuffer ring = new FileNotificationRingBuffer(8);
+        ring.publish(FileNotification.NotificationType.CREATE, "a", null);
+        ring.publish(FileNotification.NotificationType.MODIFY, "b", null);
+        ring.publish(FileNotification.NotificationType.DELETE, "a", null);
+        assertEquals(3, ring.getDepth());
+
+        assertEquals(3, ring.drainTo(0, recorder));
+
+        assertEquals(Arrays.asList("CREATE a", "MODIFY b", "DELETE a"),
+                drained);
+        assertEquals(0, ring.getDepth());
+    }
+
+    @Test
+    public void orderIsKeptAcrossWrapAround() throws InterruptedException {
+        FileNotificationRingBuffer ring = new FileNotificationRingBuffer(4);
+        List<String> expected = new ArrayList<>();
+        int next = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++) {
+                String path = "file" + next++;
+                ring.publish(FileNotification.NotificationType.CREATE, path,
+                        null);
+                expected.add("CREATE " + path);
+            }
+            ring.drainTo(0, recorder);
+        }
+
+        assertEquals(expected, drained);
+    }
+
+    @Test
+    public void emptyRingTimesOut() throws InterruptedException {
+        FileNotificationRingBuffer ring = new FileNotificationRingBuffer(4);
+
+        assertEquals(0, ring.drainTo(0, recorder));
+        assertEquals(0, ring.drainTo(20, recorder));
+        assertEquals(0, drained.size());
+    }
+
+    @Test
+    public void fullRingBlocksThePublisher() throws InterruptedException {
+        FileNotificationRingBuffer ring = new FileNotificationRingBuffer(4);
+        for (String path : Arrays.asList("a", "b", "c", "d")) {
+            ring.publish(FileNotification.NotificationType.CREATE, path, null);
+        }
+        Thread publisher = new Thread(() -> {
+            try {
+                ring.publish(FileNotification.NotificationType.CREATE, "e",
+                        null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        publisher.start();
+        for (int i = 0; i < 500 && ring.getBlockedCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, ring.getBlockedCount());
+
+        assertEquals(4, ring.drainTo(0, recorder));
+        publisher.join(5000);
+        assertFalse(publisher.isAlive());
+        assertEquals(1, ring.drainTo(0, recorder));
+
+        assertEquals(Arrays.asList("CREATE a", "CREATE b", "CREATE c",
+                "CREATE d", "CREATE e"), drained);
+    }
+
+    /**
+     * Spilled notifications are older than those published after them, so
+     * they are drained first.
+     */
+    @Test
+    public void spilledNotificationsDrainFirst()
+            throws IOException, InterruptedException {
+        Path spillFile = Files.createTempFile("spill", ".dat");
+        try {
+            FileNotificationRingBuffer ring = new FileNotificationRingBuffer(
+                    4, FileNotificationRingBuffer.OverloadPolicy.SPILL,
+                    spillFile);
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                ring.publish(FileNotification.NotificationType.CREATE,
+                        "file" + i, null);
+                expected.add("CREATE file" + i);
+            }
+            assertEquals(8, ring.getSpilledCount());
+            assertEquals(10, ring.getDepth());
+
+            while (ring.drainTo(0, recorder) > 0) {
+                // Drain the spill segment, then the ring.
+            }
+
+            assertEquals(expected, drained);
+            assertEquals(0, ring.getBlockedCount());
+        } finally {
+            Files.deleteIfExists(spillFile);
+        }
+    }
+
+    /**
+     * A notification covered by one already queued for the same path is
+     * dropped, so the queued one keeps its place.
+     */
+    @Test
+    public void coalescedNotificationsKeepTheirPlace()
+            throws InterruptedException {
+        FileNotificationRingBuffer ring = new FileNotificationRingBuffer(4,
+                FileNotificationRingBuffer.OverloadPolicy.COALESCE, null);
+        ring.publish(FileNotification.NotificationType.CREATE, "a", null);
+        ring.publish(FileNotification.NotificationType.MODIFY, "b", null);
+        ring.publish(FileNotification.NotificationType.CREATE, "c", null);
+        ring.publish(FileNotification.NotificationType.DELETE, "d", null);
+
+        ring.publish(FileNotification.NotificationType.MODIFY, "a", null);
+        ring.publish(FileNotification.NotificationType.MODIFY, "b", null);
+        ring.publish(FileNotification.NotificationType.DELETE, "d", null);
+
+        assertEquals(3, ring.getCoalescedCount());
+        assertEquals(4, ring.drainTo(0, recorder));
+        assertEquals(Arrays.asList("CREATE a", "MODIFY b", "CREATE c",
+                "DELETE d"), drained);
+    }
+
+}
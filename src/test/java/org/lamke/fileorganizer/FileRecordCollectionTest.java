@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for FileRecordCollection, in particular re-keying records when a
+ * file or directory is moved.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileRecordCollectionTest {
+
+    private static final String SEP = File.separator;
+
+    private final FileRecordCollection files
+            = FileRecordCollection.getInstance();
+    private final String root = SEP + "records" + System.nanoTime();
+
+    @Test
+    public void movedFileKeepsItsRecord() {
+        FileRecord record = add(root + SEP + "a.txt");
+        int count = files.getFileRecordCount();
+
+        assertTrue(files.moveFileRecord(root + SEP + "a.txt",
+                root + SEP + "b.txt"));
+
+        assertNull(files.getFileRecord(root + SEP + "a.txt"));
+        assertSame(record, files.getFileRecord(root + SEP + "b.txt"));
+        assertEquals(root + SEP + "b.txt", record.getPath());
+        assertEquals(count, files.getFileRecordCount());
+        files.removeFileRecord(root + SEP + "b.txt");
+    }
+
+    @Test
+    public void unknownFileIsNotMoved() {
+        assertFalse(files.moveFileRecord(root + SEP + "none.txt",
+                root + SEP + "b.txt"));
+        assertNull(files.getFileRecord(root + SEP + "b.txt"));
+    }
+
+    /**
+     * Moving a directory moves the records of everything under it, at any
+     * depth.
+     */
+    @Test
+    public void movedDirectoryTakesItsContents() {
+        String oldDir = root + SEP + "old";
+        String newDir = root + SEP + "new";
+        add(oldDir);
+        add(oldDir + SEP + "a.txt");
+        add(oldDir + SEP + "sub");
+        FileRecord nested = add(oldDir + SEP + "sub" + SEP + "b.txt");
+        int count = files.getFileRecordCount();
+
+        assertTrue(files.moveFileRecord(oldDir, newDir));
+
+        assertEquals(new HashSet<>(Arrays.asList(newDir + SEP + "a.txt",
+                newDir + SEP + "sub")),
+                files.getFileRecordPathsInDirectory(newDir));
+        assertEquals(new HashSet<>(Arrays.asList(
+                newDir + SEP + "sub" + SEP + "b.txt")),
+                files.getFileRecordPathsInDirectory(newDir + SEP + "sub"));
+        assertTrue(files.getFileRecordPathsInDirectory(oldDir).isEmpty());
+        assertTrue(files.getFileRecordPathsInDirectory(
+                oldDir + SEP + "sub").isEmpty());
+        assertEquals(newDir + SEP + "sub" + SEP + "b.txt", nested.getPath());
+        assertEquals(count, files.getFileRecordCount());
+
+        for (String path : Arrays.asList(newDir, newDir + SEP + "a.txt",
+                newDir + SEP + "sub", newDir + SEP + "sub" + SEP + "b.txt")) {
+            files.removeFileRecord(path);
+        }
+    }
+
+    private FileRecord add(String path) {
+        FileRecord record = new FileRecord(path,
+                FileNotification.NotificationType.CREATE);
+        files.addFileRecord(path, record);
+        return record;
+    }
+
+}
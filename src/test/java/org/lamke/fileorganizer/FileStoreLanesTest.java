@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests for FileStoreLanes.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileStoreLanesTest {
+
+    private Path directory;
+    private FileStoreLanes lanes;
+
+    /**
+     * A task that compares by priority like Task, and records its run.
+     */
+    private static class TestTask implements Runnable, Comparable<TestTask> {
+
+        final int priority;
+        final Runnable body;
+
+        TestTask(int priority, Runnable body) {
+            this.priority = priority;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            body.run();
+        }
+
+        @Override
+        public int compareTo(TestTask other) {
+            return Integer.compare(priority, other.priority);
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("store-lanes");
+        lanes = new FileStoreLanes(4);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        lanes.shutdownNow();
+        Files.deleteIfExists(directory);
+    }
+
+    private Task newTask(String action, String file, String dest) {
+        return new Task(new FileTypeActionDef("TXT", "CREATE", action, dest,
+                1), file, FileNotification.NotificationType.CREATE);
+    }
+
+    /**
+     * Tasks in two lanes that share a store are held to the store's limit
+     * together, not each.
+     */
+    @Test
+    public void storeLimitHoldsAcrossLanes() throws Exception {
+        String file = directory.resolve("a.txt").toString();
+        lanes.setStoreLimit(directory.toString(), 2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(20);
+        Runnable body = () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            sleep(10);
+            running.decrementAndGet();
+            done.countDown();
+        };
+
+        for (int i = 0; i < 10; i++) {
+            lanes.getLane(newTask("MSG", file, "")).execute(
+                    new TestTask(1, body));
+            lanes.getLane(newTask("COPY", file, directory.toString()))
+                    .execute(new TestTask(1, body));
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(lanes.shutdown(TimeUnit.SECONDS.toNanos(10)));
+        assertEquals(2, lanes.getLaneCount());
+        assertEquals(2, maxRunning.get());
+        assertEquals(20, lanes.getCompletedCount());
+    }
+
+    /**
+     * Tasks on a store at its limit don't hold up tasks on another store.
+     */
+    @Test
+    public void busyStoreDoesNotBlockOtherStores() throws Exception {
+        Path other = Paths.get("/dev/shm");
+        assumeTrue(Files.isDirectory(other) && !Files.getFileStore(other)
+                .equals(Files.getFileStore(directory)));
+        String file = directory.resolve("a.txt").toString();
+        String otherFile = other.resolve("a.txt").toString();
+        lanes.setStoreLimit(directory.toString(), 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch otherDone = new CountDownLatch(5);
+
+        for (int i = 0; i < 3; i++) {
+            lanes.getLane(newTask("COPY", file, directory.toString()))
+                    .execute(new TestTask(1, () -> await(release)));
+        }
+        for (int i = 0; i < 5; i++) {
+            lanes.getLane(newTask("COPY", otherFile, other.toString()))
+                    .execute(new TestTask(1, otherDone::countDown));
+        }
+
+        assertTrue(otherDone.await(10, TimeUnit.SECONDS));
+        assertEquals(1, lanes.getActiveCount(directory.toString()));
+        assertEquals(2, lanes.getQueuedCount());
+        release.countDown();
+        assertTrue(lanes.shutdown(TimeUnit.SECONDS.toNanos(10)));
+    }
+
+    @Test
+    public void waitingTasksStartHighestPriorityFirst() throws Exception {
+        String file = directory.resolve("a.txt").toString();
+        lanes.setStoreLimit(directory.toString(), 1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        Task task = newTask("COPY", file, directory.toString());
+
+        lanes.getLane(task).execute(new TestTask(0, () -> await(release)));
+        for (int priority : new int[]{3, 1, 2}) {
+            lanes.getLane(task).execute(new TestTask(priority,
+                    () -> order.add(priority)));
+        }
+        release.countDown();
+
+        assertTrue(lanes.shutdown(TimeUnit.SECONDS.toNanos(10)));
+        assertEquals(Arrays.asList(1, 2, 3), order);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests for the FileTypeDecider cache of detected types.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class FileTypeDeciderTest {
+
+    private final FileTypeDecider decider = FileTypeDecider.getInstance();
+    private final FileAttributeCache attributeCache
+            = FileAttributeCache.getInstance();
+    private Path directory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("type-decider");
+        decider.setCacheSize(FileTypeDecider.DEFAULT_CACHE_SIZE);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        decider.setCacheSize(FileTypeDecider.DEFAULT_CACHE_SIZE);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path
+                    -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void sameFileIsDetectedOnce() throws IOException {
+        Path file = Files.write(directory.resolve("a.txt"),
+                "some text".getBytes());
+        long misses = decider.getMissCount();
+        long hits = decider.getHitCount();
+
+        assertEquals("txt", decider.getFileType(file.toString()));
+        assertEquals("txt", decider.getFileType(file.toString()));
+
+        assertEquals(1, decider.getMissCount() - misses);
+        assertEquals(1, decider.getHitCount() - hits);
+    }
+
+    @Test
+    public void renamedFileKeepsItsEntry() throws IOException {
+        Path file = Files.write(directory.resolve("a.txt"),
+                "some text".getBytes());
+        decider.getFileType(file.toString());
+        if (Files.readAttributes(file, BasicFileAttributes.class)
+                .fileKey() == null) {
+            // Without file keys entries are by path.
+            return;
+        }
+        Path renamed = Files.move(file, directory.resolve("b.txt"));
+        long misses = decider.getMissCount();
+
+        assertEquals("txt", decider.getFileType(renamed.toString()));
+        assertEquals(0, decider.getMissCount() - misses);
+    }
+
+    @Test
+    public void rewrittenFileIsDetectedAgain() throws IOException {
+        Path file = Files.write(directory.resolve("a.txt"),
+                "some text".getBytes());
+        decider.getFileType(file.toString());
+        Files.write(file, "%PDF-1.4\n".getBytes());
+        Files.setLastModifiedTime(file, FileTime.fromMillis(
+                Files.getLastModifiedTime(file).toMillis() + 5000));
+        attributeCache.invalidate(file);
+        long misses = decider.getMissCount();
+
+        assertEquals("pdf", decider.getFileType(file.toString()));
+        assertEquals(1, decider.getMissCount() - misses);
+    }
+
+    @Test
+    public void zeroCacheSizeDetectsEachTime() throws IOException {
+        Path file = Files.write(directory.resolve("a.txt"),
+                "some text".getBytes());
+        decider.setCacheSize(0);
+        long misses = decider.getMissCount();
+
+        decider.getFileType(file.toString());
+        decider.getFileType(file.toString());
+
+        assertEquals(2, decider.getMissCount() - misses);
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for KeyedSerialExecutor: tasks with the same key run one at a time
+ * in the order they were added, including across retries, while other keys
+ * go on in parallel.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class KeyedSerialExecutorTest {
+
+    private ExecutorService workers;
+    private ScheduledExecutorService retryTimer;
+
+    /**
+     * A task that records its key and number each time it runs.
+     */
+    private static class TestTask implements Runnable, Comparable<TestTask> {
+
+        final String key;
+        final int number;
+        final Runnable body;
+        int runs = 0;
+
+        TestTask(String key, int number, Runnable body) {
+            this.key = key;
+            this.number = number;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            runs++;
+            body.run();
+        }
+
+        @Override
+        public int compareTo(TestTask other) {
+            return Integer.compare(number, other.number);
+        }
+    }
+
+    @BeforeEach
+    public void setUp() {
+        workers = Executors.newFixedThreadPool(4);
+        retryTimer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        workers.shutdownNow();
+        retryTimer.shutdownNow();
+    }
+
+    @Test
+    public void sameKeyRunsInOrderOneAtATime() throws InterruptedException {
+        KeyedSerialExecutor<TestTask> executor
+                = new KeyedSerialExecutor<>(workers);
+        String[] keys = {"a", "b", "c"};
+        int perKey = 200;
+        Map<String, List<Integer>> order = new HashMap<>();
+        Map<String, AtomicInteger> running = new HashMap<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(keys.length * perKey);
+        for (String key : keys) {
+            order.put(key, Collections.synchronizedList(new ArrayList<>()));
+            running.put(key, new AtomicInteger());
+        }
+
+        for (int i = 0; i < perKey; i++) {
+            for (String key : keys) {
+                int number = i;
+                executor.execute(key, new TestTask(key, number, () -> {
+                    if (running.get(key).incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    order.get(key).add(number);
+                    Thread.yield();
+                    running.get(key).decrementAndGet();
+                    done.countDown();
+                }));
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (String key : keys) {
+            List<Integer> ran = order.get(key);
+            assertEquals(perKey, ran.size());
+            for (int i = 0; i < perKey; i++) {
+                assertEquals(i, (int) ran.get(i));
+            }
+        }
+        waitForIdle(executor);
+    }
+
+    @Test
+    public void otherKeysRunWhileOneIsBusy() throws InterruptedException {
+        KeyedSerialExecutor<TestTask> executor
+                = new KeyedSerialExecutor<>(workers);
+        CountDownLatch otherRan = new CountDownLatch(1);
+        CountDownLatch sameKeyRan = new CountDownLatch(1);
+        AtomicInteger waitedOk = new AtomicInteger();
+
+        // The first task only finishes once a task for another key has run,
+        // so this hangs if keys are run one at a time.
+        executor.execute("busy", new TestTask("busy", 0, () -> {
+            try {
+                if (otherRan.await(5, TimeUnit.SECONDS)
+                        && sameKeyRan.getCount() == 1) {
+                    waitedOk.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        executor.execute("busy", new TestTask("busy", 1,
+                sameKeyRan::countDown));
+        executor.execute("other", new TestTask("other", 2,
+                otherRan::countDown));
+
+        assertTrue(sameKeyRan.await(5, TimeUnit.SECONDS));
+        assertEquals(1, waitedOk.get());
+        waitForIdle(executor);
+    }
+
+    @Test
+    public void retriedTaskKeepsItsPlace() throws InterruptedException {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        // The first task fails once and is run again 50 ms later.
+        KeyedSerialExecutor<TestTask> executor = new KeyedSerialExecutor<>(
+                workers, retryTimer,
+                task -> (task.number == 0 && task.runs == 1) ? 50 : -1);
+        executor.execute("a", new TestTask("a", 0, () -> order.add("first")));
+        executor.execute("a", new TestTask("a", 1, () -> {
+            order.add("second");
+            done.countDown();
+        }));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, order.size());
+        assertEquals("first", order.get(0));
+        assertEquals("first", order.get(1));
+        assertEquals("second", order.get(2));
+        waitForIdle(executor);
+    }
+
+    /**
+     * Wait for the executor to drop every key, which happens just after
+     * the last task's body returns.
+     */
+    private static void waitForIdle(KeyedSerialExecutor<?> executor)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executor.getActiveKeyCount() > 0
+                && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, executor.getActiveKeyCount());
+        assertEquals(0, executor.getWaitingCount());
+    }
+
+}
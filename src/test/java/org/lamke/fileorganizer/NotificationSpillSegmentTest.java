@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests for NotificationSpillSegment: notifications are read back first in
+ * first out, including when reads and writes are interleaved.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class NotificationSpillSegmentTest {
+
+    private Path directory;
+    private NotificationSpillSegment segment;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spill");
+        segment = new NotificationSpillSegment(directory.resolve("spill.dat"));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        segment.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path
+                    -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void interleavedReadsAndWritesKeepOrder() throws IOException {
+        write("a", "b", "c");
+        assertEquals(Arrays.asList("a", "b"), read(2));
+        write("d", "e");
+        assertEquals(3, segment.getPendingCount());
+
+        assertEquals(Arrays.asList("c", "d", "e"), read(10));
+        assertFalse(segment.hasPending());
+        assertEquals(0, Files.size(segment.getPath()));
+    }
+
+    @Test
+    public void movesAndNonAsciiPathsRoundTrip() throws IOException {
+        segment.write(new FileNotification(
+                FileNotification.NotificationType.MOVE, "neu/\u00fcber.txt",
+                "alt/\u4e2d.txt"));
+        write("after");
+
+        List<FileNotification> notifications = segment.read(10);
+        assertEquals(2, notifications.size());
+        assertEquals(FileNotification.NotificationType.MOVE,
+                notifications.get(0).getFileNotificationType());
+        assertEquals("neu/\u00fcber.txt", notifications.get(0).getFilePath());
+        assertEquals("alt/\u4e2d.txt", notifications.get(0).getSourcePath());
+        assertEquals("after", notifications.get(1).getFilePath());
+    }
+
+    private void write(String... paths) throws IOException {
+        for (String path : paths) {
+            segment.write(new FileNotification(
+                    FileNotification.NotificationType.CREATE, path));
+        }
+        segment.flush();
+    }
+
+    private List<String> read(int maxCount) throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (FileNotification notification : segment.read(maxCount)) {
+            paths.add(notification.getFilePath());
+        }
+        return paths;
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.File;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Tests for PathDictionary: each directory path gets one id, and paths are
+ * split and joined again without change.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class PathDictionaryTest {
+
+    private static final String SEP = File.separator;
+
+    private final PathDictionary dictionary = PathDictionary.getInstance();
+    private final String root = SEP + "dictionary" + System.nanoTime();
+
+    @Test
+    public void directoryKeepsItsId() {
+        int count = dictionary.getDirectoryCount();
+        int id = dictionary.getDirectoryId(root + SEP + "a");
+
+        assertEquals(id, dictionary.getDirectoryId(root + SEP + "a"));
+        assertEquals(id, dictionary.findDirectoryId(root + SEP + "a"));
+        assertNotEquals(id, dictionary.getDirectoryId(root + SEP + "b"));
+        assertEquals(count + 2, dictionary.getDirectoryCount());
+        assertEquals(root + SEP + "a", dictionary.getDirectoryPath(id));
+    }
+
+    @Test
+    public void unknownDirectoryIsNotAdded() {
+        int count = dictionary.getDirectoryCount();
+
+        assertEquals(-1, dictionary.findDirectoryId(root + SEP + "none"));
+        assertEquals(count, dictionary.getDirectoryCount());
+    }
+
+    @Test
+    public void pathIsSplitAndJoinedAgain() {
+        String path = root + SEP + "a" + SEP + "file.txt";
+        String parent = PathDictionary.getParentPath(path);
+
+        assertEquals(root + SEP + "a", parent);
+        assertEquals("file.txt", PathDictionary.getName(path));
+        assertEquals(path, dictionary.getPath(
+                dictionary.getDirectoryId(parent), "file.txt"));
+    }
+
+    @Test
+    public void rootAndBareNamesHaveParents() {
+        assertEquals(SEP, PathDictionary.getParentPath(SEP + "file.txt"));
+        assertEquals(SEP + "file.txt", dictionary.getPath(
+                dictionary.getDirectoryId(SEP), "file.txt"));
+        assertEquals("", PathDictionary.getParentPath("file.txt"));
+        assertEquals("file.txt", dictionary.getPath(
+                PathDictionary.NO_DIRECTORY, "file.txt"));
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for the order TaskQueue runs tasks in: highest priority first and
+ * FIFO within a priority when tasks wait for a worker, but always in the
+ * order they were added for the same file.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class TaskQueueTest {
+
+    private Path directory;
+    private TaskQueue tasks;
+    private final List<String> ran
+            = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * A task that records its name when it runs, after an optional wait.
+     */
+    private class RecordingTask extends Task {
+
+        final String name;
+        final CountDownLatch waitFor;
+
+        RecordingTask(String name, String fileName, int priority,
+                CountDownLatch waitFor) {
+            super(new FileTypeActionDef("TXT", "CREATE", "MSG",
+                    directory.toString(), priority),
+                    directory.resolve(fileName).toString(),
+                    FileNotification.NotificationType.CREATE);
+            this.name = name;
+            this.waitFor = waitFor;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (waitFor != null) {
+                    waitFor.await(5, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ran.add(name);
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("task-queue");
+        // One task at a time, so the rest wait for the worker.
+        tasks = new TaskQueue(1, new RetryEngine(RetryPolicy.NO_RETRY));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException, InterruptedException {
+        tasks.shutdown(5000);
+        Files.delete(directory);
+    }
+
+    @Test
+    public void waitingTasksRunByPriorityThenFifo()
+            throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        tasks.addTask(new RecordingTask("blocker", "0.txt", 3, release));
+        tasks.addTask(new RecordingTask("low", "1.txt", 3, null));
+        tasks.addTask(new RecordingTask("high-1", "2.txt", 1, null));
+        tasks.addTask(new RecordingTask("mid", "3.txt", 2, null));
+        tasks.addTask(new RecordingTask("high-2", "4.txt", 1, null));
+        tasks.addTask(new RecordingTask("high-3", "5.txt", 1, null));
+        release.countDown();
+
+        assertTrue(tasks.shutdown(5000));
+        assertEquals(Arrays.asList("blocker", "high-1", "high-2", "high-3",
+                "mid", "low"), ran);
+    }
+
+    @Test
+    public void sameFileKeepsOrderOverPriority()
+            throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        tasks.addTask(new RecordingTask("blocker", "0.txt", 1, release));
+        tasks.addTask(new RecordingTask("a-first", "a.txt", 3, null));
+        tasks.addTask(new RecordingTask("a-second", "a.txt", 1, null));
+        tasks.addTask(new RecordingTask("b", "b.txt", 2, null));
+        release.countDown();
+
+        assertTrue(tasks.shutdown(5000));
+        // a-second outranks b, but only a-first was waiting for the worker
+        // alongside b. a-second waits for a-first to finish.
+        assertEquals(Arrays.asList("blocker", "b", "a-first", "a-second"),
+                ran);
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for TimingWheel: timers fire on the first tick at or after their
+ * deadline, including deadlines more than one turn of the wheel away, and
+ * cancelled timers don't fire.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class TimingWheelTest {
+
+    private static final long TICK = 1000;
+
+    // Eight buckets, so one turn of the wheel is 8 seconds.
+    private final TimingWheel<String> wheel = new TimingWheel<>(TICK, 8, 0);
+    private final List<String> fired = new ArrayList<>();
+
+    @Test
+    public void timerFiresOnTheTickOfItsDeadline() {
+        wheel.schedule("a", 2500);
+
+        assertEquals(0, wheel.advance(2999, fired::add));
+        assertEquals(1, wheel.advance(3000, fired::add));
+        assertEquals(Arrays.asList("a"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void laterTurnsWaitForTheirDeadline() {
+        wheel.schedule("near", 3000);
+        wheel.schedule("next turn", 11000);
+        wheel.schedule("third turn", 19000);
+
+        wheel.advance(3000, fired::add);
+        assertEquals(Arrays.asList("near"), fired);
+        // Passes the buckets of both later timers without firing them.
+        wheel.advance(10000, fired::add);
+        assertEquals(Arrays.asList("near"), fired);
+        wheel.advance(11000, fired::add);
+        assertEquals(Arrays.asList("near", "next turn"), fired);
+        wheel.advance(19000, fired::add);
+        assertEquals(Arrays.asList("near", "next turn", "third turn"), fired);
+    }
+
+    @Test
+    public void longGapFiresEverythingDue() {
+        wheel.schedule("a", 5000);
+        wheel.schedule("b", 30000);
+        wheel.schedule("c", 90000);
+
+        assertEquals(2, wheel.advance(60000, fired::add));
+        assertTrue(fired.containsAll(Arrays.asList("a", "b")));
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void cancelledTimerDoesNotFire() {
+        TimingWheel.Timer<String> timer = wheel.schedule("a", 2000);
+        wheel.schedule("b", 2000);
+
+        assertTrue(wheel.cancel(timer));
+        assertFalse(timer.isPending());
+        assertFalse(wheel.cancel(timer));
+        wheel.advance(2000, fired::add);
+
+        assertEquals(Arrays.asList("b"), fired);
+    }
+
+    @Test
+    public void pastDeadlineFiresOnTheNextTick() {
+        wheel.advance(5000, fired::add);
+        wheel.schedule("late", 1000);
+
+        assertEquals(0, wheel.advance(5999, fired::add));
+        assertEquals(1, wheel.advance(6000, fired::add));
+    }
+
+    @Test
+    public void waitIsUntilTheEarliestDeadline() {
+        assertEquals(-1, wheel.getMillisUntilNextDeadline(0));
+        TimingWheel.Timer<String> far = wheel.schedule("far", 20000);
+        assertEquals(20000, wheel.getMillisUntilNextDeadline(0));
+        TimingWheel.Timer<String> near = wheel.schedule("near", 4500);
+        assertEquals(4000, wheel.getMillisUntilNextDeadline(1000));
+
+        wheel.cancel(near);
+        assertEquals(19000, wheel.getMillisUntilNextDeadline(1000));
+        wheel.cancel(far);
+        assertEquals(-1, wheel.getMillisUntilNextDeadline(1000));
+    }
+
+}
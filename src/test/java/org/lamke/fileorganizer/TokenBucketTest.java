@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Chris Lamke <https://chris.lamke.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.lamke.fileorganizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for TokenBucket, including that the rate taken over time stays
+ * within a tolerance of the configured rate.
+ *
+ * @author Chris Lamke <https://chris.lamke.org>
+ */
+public class TokenBucketTest {
+
+    // Allowance for timer and scheduling jitter. A bucket may not go faster
+    // than its rate by more than LOW, and may be slower by up to HIGH on a
+    // busy machine.
+    private static final double LOW = 0.9;
+    private static final double HIGH = 1.5;
+
+    @Test
+    public void unlimitedBucketNeverWaits() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(0, 1);
+        long start = System.nanoTime();
+        bucket.acquire(1_000_000_000L);
+        assertTrue(millisSince(start) < 50);
+    }
+
+    @Test
+    public void fullBucketAllowsBurstAtOnce() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 50);
+        long start = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            bucket.acquire(1);
+        }
+        assertTrue(millisSince(start) < 50);
+    }
+
+    @Test
+    public void rateHoldsPastTheBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(2000, 10);
+        bucket.acquire(10);
+        long start = System.nanoTime();
+        for (int i = 0; i < 200; i++) {
+            bucket.acquire(5);
+        }
+        assertWithinRate(1000, 2000, millisSince(start));
+    }
+
+    @Test
+    public void largeRequestIsPaidBackBeforeTheNext()
+            throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000, 1);
+        bucket.acquire(1);
+        long start = System.nanoTime();
+        bucket.acquire(300);
+        bucket.acquire(1);
+        assertWithinRate(300, 1000, millisSince(start));
+    }
+
+    @Test
+    public void rateHoldsAcrossThreads() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(2000, 10);
+        bucket.acquire(10);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        bucket.acquire(5);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertWithinRate(1000, 2000, millisSince(start));
+    }
+
+    @Test
+    public void changedRateAppliesToLaterRequests()
+            throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        bucket.setRate(4000, 20);
+        assertEquals(4000, bucket.getRatePerSecond());
+        assertEquals(20, bucket.getBurstSize());
+        bucket.acquire(20);
+        long start = System.nanoTime();
+        bucket.acquire(1000);
+        bucket.acquire(1);
+        assertWithinRate(1000, 4000, millisSince(start));
+    }
+
+    /**
+     * Check that taking the tokens took about as long as the rate allows.
+     */
+    static void assertWithinRate(double tokens, double ratePerSecond,
+            long elapsedMillis) {
+        double expectedMillis = tokens / ratePerSecond * 1000;
+        assertTrue(elapsedMillis >= expectedMillis * LOW,
+                "Took " + elapsedMillis + " ms, expected " + expectedMillis);
+        assertTrue(elapsedMillis <= expectedMillis * HIGH,
+                "Took " + elapsedMillis + " ms, expected " + expectedMillis);
+    }
+
+    static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+}